@@ -0,0 +1,424 @@
+/**
+ * BandwidthShaper limits how fast data connections move file data, so that one large transfer
+ * cannot take the whole link from everyone else. Limits apply at three levels, each with a
+ * {@link TokenBucket} per direction: the whole server, each user across all of their sessions,
+ * and each session. A chunk of data pays into all three buckets and then waits, in one sleep,
+ * for the slowest of them. Chunks are kept small enough that a limited transfer pauses several
+ * times a second instead of sending a large burst and then stalling.
+ *
+ * Every limit can be changed while transfers run, with SITE RATE. The bytes moved and the time
+ * transfers spent waiting are counted, server-wide and per session, and shown by SITE RATE.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BandwidthShaper {
+    // Debts shorter than this are carried over to the next chunk instead of slept off
+    private static final long MIN_PAUSE_NANOS = 1_000_000;
+
+    // Smallest and largest chunk paid for at a time by a limited transfer
+    private static final long MIN_CHUNK = 1024;
+    private static final long MAX_CHUNK = 256 * 1024;
+
+    private final Limit global;
+    private final long defaultUserRate;
+    private final long defaultSessionRate;
+    private final ConcurrentHashMap<String, Limit> users = new ConcurrentHashMap<>();
+    private final Set<String> admins;
+
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder pauses = new LongAdder();
+    private final LongAdder pausedNanos = new LongAdder();
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    /**
+     * Constructs a BandwidthShaper. Rates are in bytes per second in each direction, 0 for no limit.
+     *
+     * @param globalRate The limit of all sessions together
+     * @param userRate The limit of all sessions of one user together, unless listed in userRates
+     * @param userRates Limits of particular users, as "name:rate" pairs separated by commas
+     * @param sessionRate The limit of each new session
+     * @param admins The users allowed to change the global limit and other users' limits, separated by commas
+    */
+    public BandwidthShaper(long globalRate, long userRate, String userRates, long sessionRate, String admins) {
+        this.global = new Limit(globalRate);
+        this.defaultUserRate = userRate;
+        this.defaultSessionRate = sessionRate;
+        this.admins = Set.of(admins.isBlank() ? new String[0] : admins.trim().split("\\s*,\\s*"));
+
+        for (String entry : userRates.split(",")) {
+            String[] fields = entry.trim().split(":");
+            if (fields.length != 2) {
+                continue;
+            }
+            try {
+                users.put(fields[0], new Limit(Long.parseLong(fields[1])));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring malformed rate limit for " + fields[0] + ": " + fields[1]);
+            }
+        }
+    }
+
+    /**
+     * Gets the shaper shared by all sessions, configured from {@link ServerConfig}.
+     *
+     * @return The shared shaper
+    */
+    public static BandwidthShaper getShared() {
+        return SharedShaper.INSTANCE;
+    }
+
+    private static class SharedShaper {
+        static final BandwidthShaper INSTANCE = new BandwidthShaper(ServerConfig.GLOBAL_RATE_LIMIT, ServerConfig.USER_RATE_LIMIT,
+                ServerConfig.USER_RATE_LIMITS, ServerConfig.SESSION_RATE_LIMIT, ServerConfig.RATE_ADMINS);
+    }
+
+    /**
+     * Starts shaping the transfers of a logged-in session.
+     *
+     * @param username The user the session is logged in as
+     * @return The session's shaper, to be closed when the session ends
+    */
+    public Session openSession(String username) {
+        sessions.incrementAndGet();
+        return new Session(username, userLimit(username), new Limit(defaultSessionRate));
+    }
+
+    /**
+     * Tells whether a user may change the global limit and the limits of other users.
+     *
+     * @param username The user
+     * @return {@code true} if the user is listed as a rate administrator
+    */
+    public boolean isAdmin(String username) {
+        return admins.contains(username);
+    }
+
+    /**
+     * Changes the limit of all sessions together.
+     *
+     * @param rate Bytes per second in each direction, 0 for no limit
+    */
+    public void setGlobalRate(long rate) {
+        global.setRate(rate);
+    }
+
+    /**
+     * Gets the limit of all sessions together.
+     *
+     * @return Bytes per second in each direction, 0 for no limit
+    */
+    public long getGlobalRate() {
+        return global.getRate();
+    }
+
+    /**
+     * Changes the limit of all sessions of a user together, including those already running.
+     *
+     * @param username The user
+     * @param rate Bytes per second in each direction, 0 for no limit
+    */
+    public void setUserRate(String username, long rate) {
+        userLimit(username).setRate(rate);
+    }
+
+    /**
+     * Gets the limit of all sessions of a user together.
+     *
+     * @param username The user
+     * @return Bytes per second in each direction, 0 for no limit
+    */
+    public long getUserRate(String username) {
+        return userLimit(username).getRate();
+    }
+
+    /**
+     * Describes the traffic of all sessions since the server started.
+     *
+     * @return e.g. "3 sessions sent 1048576 bytes and received 0 bytes, waited 1.024 s in 40 pauses"
+    */
+    public String getStatistics() {
+        return describe(sessions.get() + " sessions", bytesSent.sum(), bytesReceived.sum(), pausedNanos.sum(), pauses.sum());
+    }
+
+    private Limit userLimit(String username) {
+        return users.computeIfAbsent(username, name -> new Limit(defaultUserRate));
+    }
+
+    private static String describe(String who, long sent, long received, long nanos, long count) {
+        return String.format(Locale.ROOT, "%s sent %d bytes and received %d bytes, waited %.3f s in %d pauses",
+                who, sent, received, nanos / 1e9, count);
+    }
+
+    // A limit at one level: the same rate for data sent and data received, with a bucket for each
+    private static class Limit {
+        final TokenBucket send;
+        final TokenBucket receive;
+
+        Limit(long rate) {
+            send = new TokenBucket(rate);
+            receive = new TokenBucket(rate);
+        }
+
+        void setRate(long rate) {
+            send.setRate(rate);
+            receive.setRate(rate);
+        }
+
+        long getRate() {
+            return send.getRate();
+        }
+
+        TokenBucket bucket(boolean sending) {
+            return sending ? send : receive;
+        }
+    }
+
+    /**
+     * The shaping of one session's transfers. Transfers either wrap their data connection
+     * streams with {@link #throttle(OutputStream)} and its overloads, or move at most
+     * {@link #chunkSize(long)} bytes at a time and report them with {@link #sent(long)} or
+     * {@link #received(long)}.
+    */
+    public class Session implements AutoCloseable {
+        private final String username;
+        private final Limit user;
+        private final Limit own;
+        private final LongAdder sessionSent = new LongAdder();
+        private final LongAdder sessionReceived = new LongAdder();
+        private final LongAdder sessionPauses = new LongAdder();
+        private final LongAdder sessionPausedNanos = new LongAdder();
+        private boolean closed = false;
+
+        private Session(String username, Limit user, Limit own) {
+            this.username = username;
+            this.user = user;
+            this.own = own;
+        }
+
+        /**
+         * Changes the limit of this session alone. The user and global limits still apply.
+         *
+         * @param rate Bytes per second in each direction, 0 for no limit
+        */
+        public void setRate(long rate) {
+            own.setRate(rate);
+        }
+
+        /**
+         * Gets the limit of this session alone.
+         *
+         * @return Bytes per second in each direction, 0 for no limit
+        */
+        public long getRate() {
+            return own.getRate();
+        }
+
+        /**
+         * Gets the user the session is logged in as.
+         *
+         * @return The username
+        */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * Chooses how many bytes a transfer moves before it pays for them: all of them when no
+         * limit applies, otherwise about a sixteenth of a second's worth at the lowest limit.
+         *
+         * @param preferred The number of bytes the transfer would move without limits
+         * @return The number of bytes to move next
+        */
+        public long chunkSize(long preferred) {
+            long rate = lowestRate();
+            if (rate == 0) {
+                return preferred;
+            }
+            return Math.min(preferred, Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, rate / 16)));
+        }
+
+        /**
+         * Pays for bytes sent on a data connection, waiting if a limit has been exceeded.
+         *
+         * @param bytes The number of bytes sent
+         * @throws InterruptedIOException if the thread is interrupted while waiting
+        */
+        public void sent(long bytes) throws InterruptedIOException {
+            bytesSent.add(bytes);
+            sessionSent.add(bytes);
+            pace(bytes, true);
+        }
+
+        /**
+         * Pays for bytes received on a data connection, waiting if a limit has been exceeded.
+         *
+         * @param bytes The number of bytes received
+         * @throws InterruptedIOException if the thread is interrupted while waiting
+        */
+        public void received(long bytes) throws InterruptedIOException {
+            bytesReceived.add(bytes);
+            sessionReceived.add(bytes);
+            pace(bytes, false);
+        }
+
+        /**
+         * Wraps the output stream of a data connection so that what is written through it is shaped.
+         *
+         * @param out The data connection output stream
+         * @return The shaped stream; closing it closes the connection's stream
+        */
+        public OutputStream throttle(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    sent(1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int length = (int) chunkSize(len);
+                        out.write(b, off, length);
+                        sent(length);
+                        off += length;
+                        len -= length;
+                    }
+                }
+            };
+        }
+
+        /**
+         * Wraps the input stream of a data connection so that what is read through it is shaped.
+         *
+         * @param in The data connection input stream
+         * @return The shaped stream; closing it closes the connection's stream
+        */
+        public InputStream throttle(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    if (b != -1) {
+                        received(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int bytesRead = in.read(b, off, (int) chunkSize(len));
+                    if (bytesRead > 0) {
+                        received(bytesRead);
+                    }
+                    return bytesRead;
+                }
+            };
+        }
+
+        /**
+         * Wraps a data connection channel so that what is read from it is shaped.
+         *
+         * @param channel The data connection channel
+         * @return The shaped channel; closing it closes the connection
+        */
+        public ReadableByteChannel throttle(ReadableByteChannel channel) {
+            return new ReadableByteChannel() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    int limit = dst.limit();
+                    dst.limit(dst.position() + (int) chunkSize(dst.remaining()));
+                    int bytesRead;
+                    try {
+                        bytesRead = channel.read(dst);
+                    } finally {
+                        dst.limit(limit);
+                    }
+                    if (bytesRead > 0) {
+                        received(bytesRead);
+                    }
+                    return bytesRead;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+
+        /**
+         * Describes the traffic of this session.
+         *
+         * @return e.g. "this session sent 1048576 bytes and received 0 bytes, waited 1.024 s in 40 pauses"
+        */
+        public String getStatistics() {
+            return describe("this session", sessionSent.sum(), sessionReceived.sum(), sessionPausedNanos.sum(), sessionPauses.sum());
+        }
+
+        /**
+         * Stops counting the session among the active ones when it ends.
+        */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                sessions.decrementAndGet();
+            }
+        }
+
+        // The lowest limit that applies to the session, 0 if none does
+        private long lowestRate() {
+            long rate = 0;
+            for (long limit : new long[] {global.getRate(), user.getRate(), own.getRate()}) {
+                if (limit > 0 && (rate == 0 || limit < rate)) {
+                    rate = limit;
+                }
+            }
+            return rate;
+        }
+
+        // Takes the bytes from all three buckets and sleeps off the longest debt, if it is worth a pause
+        private void pace(long bytes, boolean sending) throws InterruptedIOException {
+            long wait = Math.max(global.bucket(sending).reserve(bytes),
+                    Math.max(user.bucket(sending).reserve(bytes), own.bucket(sending).reserve(bytes)));
+            if (wait < MIN_PAUSE_NANOS) {
+                return;
+            }
+            pauses.increment();
+            pausedNanos.add(wait);
+            sessionPauses.increment();
+            sessionPausedNanos.add(wait);
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Transfer interrupted while rate limited");
+            }
+        }
+    }
+}
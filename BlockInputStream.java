@@ -0,0 +1,116 @@
+/**
+ * BlockInputStream decodes a byte stream sent in block mode (MODE B, RFC 959 section 3.4.2).
+ * Headers and block data are read with readFully semantics, so blocks may arrive split across
+ * any number of TCP reads. Restart-marker blocks are consumed and remembered rather than passed
+ * on as data. The stream ends after the block marked EOF; a connection that closes before that
+ * block raises an {@link EOFException}, so a truncated transfer is never mistaken for a whole one.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class BlockInputStream extends InputStream {
+    // Descriptor codes
+    public static final int DATA = 0x00;
+    public static final int EOR = 0x80;
+    public static final int EOF = 0x40;
+    public static final int SUSPECTED_ERRORS = 0x20;
+    public static final int RESTART_MARKER = 0x10;
+
+    private final DataInputStream in;
+    private int remaining = 0; // data bytes left in the current block
+    private boolean lastBlock = false;
+    private long lastRestartMarker = -1;
+
+    /**
+     * Constructs a BlockInputStream.
+     *
+     * @param in The data connection input stream; buffering it keeps header reads cheap
+    */
+    public BlockInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextData()) {
+            return -1;
+        }
+        remaining--;
+        return in.readUnsignedByte();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextData()) {
+            return -1;
+        }
+        int bytesRead = in.read(b, off, Math.min(len, remaining));
+        if (bytesRead == -1) {
+            throw new EOFException("Data connection closed inside a block");
+        }
+        remaining -= bytesRead;
+        return bytesRead;
+    }
+
+    /**
+     * Reads block headers until there is data to return or the EOF block has been consumed.
+     *
+     * @return {@code false} at end of file
+    */
+    private boolean nextData() throws IOException {
+        while (remaining == 0) {
+            if (lastBlock) {
+                return false;
+            }
+
+            int descriptor = in.readUnsignedByte();
+            int count = in.readUnsignedShort();
+            if ((descriptor & RESTART_MARKER) != 0) {
+                byte[] marker = new byte[count];
+                in.readFully(marker);
+                lastRestartMarker = parseMarker(marker);
+                continue;
+            }
+
+            // EOR only separates records, and suspected errors are passed on as they are
+            remaining = count;
+            lastBlock = (descriptor & EOF) != 0;
+        }
+        return true;
+    }
+
+    private static long parseMarker(byte[] marker) throws IOException {
+        try {
+            return Long.parseLong(new String(marker, StandardCharsets.US_ASCII).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed restart marker", e);
+        }
+    }
+
+    /**
+     * Gets the file offset carried by the last restart marker received. Everything before it was
+     * sent in full, so an interrupted transfer can be restarted there with REST.
+     *
+     * @return The last restart marker, or -1 if none was received
+    */
+    public long getLastRestartMarker() {
+        return lastRestartMarker;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
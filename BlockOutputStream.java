@@ -0,0 +1,147 @@
+/**
+ * BlockOutputStream encodes a byte stream in block mode (MODE B, RFC 959 section 3.4.2).
+ * Every block is a one-byte descriptor, a two-byte unsigned count and up to 65535 bytes of data.
+ * Data is collected into full blocks, so the block size does not depend on how the caller
+ * chunks its writes. Every restart interval a restart-marker block carrying the current file
+ * offset is sent, and closing the stream sends the last block with the EOF descriptor bit.
+ * Since that block marks where the file ends, the data connection may be left open after it
+ * and carry the next file.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class BlockOutputStream extends FilterOutputStream {
+    public static final int MAX_BLOCK_SIZE = 65535;
+
+    private static final int HEADER_SIZE = 3;
+
+    private final int blockSize;
+    private final long restartInterval;
+    private final boolean closeConnection;
+    private final ByteBuffer pooledBuffer;
+    private final byte[] block; // header followed by the data of the block being filled
+    private int count = 0;
+    private long position;
+    private long nextRestartMarker;
+    private boolean closed = false;
+
+    /**
+     * Constructs a BlockOutputStream.
+     *
+     * @param out The data connection output stream
+     * @param blockSize The maximum number of data bytes per block, at most 65535
+     * @param restartInterval The number of bytes between restart markers, 0 for none
+     * @param startOffset The file offset of the first byte written, reported in restart markers
+    */
+    public BlockOutputStream(OutputStream out, int blockSize, long restartInterval, long startOffset) {
+        this(out, blockSize, restartInterval, startOffset, true);
+    }
+
+    /**
+     * Constructs a BlockOutputStream that may leave the data connection open when it is closed.
+     *
+     * @param out The data connection output stream
+     * @param blockSize The maximum number of data bytes per block, at most 65535
+     * @param restartInterval The number of bytes between restart markers, 0 for none
+     * @param startOffset The file offset of the first byte written, reported in restart markers
+     * @param closeConnection Whether closing the stream also closes the data connection
+    */
+    public BlockOutputStream(OutputStream out, int blockSize, long restartInterval, long startOffset, boolean closeConnection) {
+        super(out);
+        this.closeConnection = closeConnection;
+        this.blockSize = Math.max(1, Math.min(blockSize, MAX_BLOCK_SIZE));
+        this.restartInterval = restartInterval;
+        this.position = startOffset;
+        this.nextRestartMarker = restartInterval > 0 ? startOffset + restartInterval : Long.MAX_VALUE;
+        this.pooledBuffer = BufferPool.HEAP.acquire(HEADER_SIZE + this.blockSize);
+        this.block = pooledBuffer.array();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[HEADER_SIZE + count++] = (byte) b;
+        if (count == blockSize) {
+            writeBlock(BlockInputStream.DATA, count);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int length = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, HEADER_SIZE + count, length);
+            count += length;
+            off += length;
+            len -= length;
+            if (count == blockSize) {
+                writeBlock(BlockInputStream.DATA, count);
+            }
+        }
+    }
+
+    /**
+     * Sends the block being filled, even if it is not full, and flushes the data connection.
+    */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeBlock(BlockInputStream.DATA, count);
+        }
+        out.flush();
+    }
+
+    /**
+     * Sends the remaining data in a block marked EOF and closes the data connection, unless it
+     * is to be left open for the next file.
+    */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeBlock(BlockInputStream.EOF, count);
+            out.flush();
+        } finally {
+            BufferPool.HEAP.release(pooledBuffer);
+            if (closeConnection) {
+                out.close();
+            }
+        }
+    }
+
+    // Writes the header and data of the current block in one call, then a restart marker if one is due
+    private void writeBlock(int descriptor, int length) throws IOException {
+        block[0] = (byte) descriptor;
+        block[1] = (byte) (length >> 8);
+        block[2] = (byte) length;
+        out.write(block, 0, HEADER_SIZE + length);
+        count = 0;
+        position += length;
+
+        if (position >= nextRestartMarker && descriptor != BlockInputStream.EOF) {
+            writeRestartMarker();
+            nextRestartMarker = position + restartInterval;
+        }
+    }
+
+    // The marker is the file offset in ASCII digits: a transfer restarted with REST at it loses nothing
+    private void writeRestartMarker() throws IOException {
+        byte[] marker = Long.toString(position).getBytes(StandardCharsets.US_ASCII);
+        byte[] markerBlock = new byte[HEADER_SIZE + marker.length];
+        markerBlock[0] = (byte) BlockInputStream.RESTART_MARKER;
+        markerBlock[2] = (byte) marker.length;
+        System.arraycopy(marker, 0, markerBlock, HEADER_SIZE, marker.length);
+        out.write(markerBlock);
+    }
+}
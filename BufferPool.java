@@ -0,0 +1,182 @@
+/**
+ * BufferPool hands out reusable ByteBuffers so that transfers do not allocate a fresh buffer
+ * for every file. Buffers are grouped in power-of-two size classes from 4 KB to 1 MB; a request
+ * is rounded up to its class. Released buffers go to a shared pool bounded by a byte cap; buffers
+ * beyond the cap are dropped.
+ *
+ * Long-lived threads, such as the nio engine's transfer workers, first keep a few released
+ * buffers of each class for themselves (see {@link #useThreadCache()}). Session threads do not:
+ * a session's thread ends with the session, and the buffers cached in it would die with it.
+ *
+ * There are two pools: {@link #DIRECT} for paths that only use channels, and {@link #HEAP}
+ * for paths that go through java.io streams, which need an array-backed buffer.
+ *
+ * With {@code -Dftp.bufferPoolDebug=true} the pool remembers where every outstanding buffer
+ * was acquired, rejects double releases, and prints the buffers never released at exit.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 12; // 4 KB
+    private static final int MAX_CLASS_SHIFT = 20; // 1 MB
+    private static final int CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+    private static final int THREAD_CACHE_PER_CLASS = 2;
+
+    private static final long MAX_POOLED_BYTES = Long.getLong("ftp.bufferPoolMaxBytes", 64L * 1024 * 1024);
+    private static final boolean DEBUG = Boolean.getBoolean("ftp.bufferPoolDebug");
+
+    public static final BufferPool DIRECT = new BufferPool(true);
+    public static final BufferPool HEAP = new BufferPool(false);
+
+    // Whether the current thread lives long enough for a cache of its own to pay off
+    private static final ThreadLocal<Boolean> cachingThread = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] shared;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCache;
+    private final Map<ByteBuffer, Throwable> outstanding = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferPool(boolean direct) {
+        this.direct = direct;
+        this.shared = new ConcurrentLinkedQueue[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.threadCache = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] cache = new ArrayDeque[CLASSES];
+            for (int i = 0; i < CLASSES; i++) {
+                cache[i] = new ArrayDeque<>(THREAD_CACHE_PER_CLASS);
+            }
+            return cache;
+        });
+
+        if (DEBUG) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::reportLeaks));
+        }
+    }
+
+    /**
+     * Lets the calling thread keep a few released buffers for itself in every pool. Only threads
+     * that live as long as the server should call this.
+    */
+    public static void useThreadCache() {
+        cachingThread.set(Boolean.TRUE);
+    }
+
+    /**
+     * Creates threads that keep a cache of released buffers, for thread pools that live as long
+     * as the server.
+     *
+     * @param namePrefix The start of each thread's name, followed by its number
+     * @return The thread factory
+    */
+    public static ThreadFactory cachingThreads(String namePrefix) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> new Thread(() -> {
+            useThreadCache();
+            task.run();
+        }, namePrefix + count.incrementAndGet());
+    }
+
+    /**
+     * Borrows a cleared buffer with at least the requested capacity. Requests above the largest
+     * size class get a buffer that is not pooled.
+     *
+     * @param minCapacity The minimum capacity in bytes
+     * @return A buffer whose position is 0 and whose limit is its capacity
+    */
+    public ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClass(minCapacity);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            if (cachingThread.get()) {
+                buffer = threadCache.get()[sizeClass].pollFirst();
+            }
+            if (buffer == null) {
+                buffer = shared[sizeClass].poll();
+                if (buffer != null) {
+                    pooledBytes.addAndGet(-buffer.capacity());
+                }
+            }
+        }
+        if (buffer == null) {
+            int capacity = sizeClass >= 0 ? 1 << (sizeClass + MIN_CLASS_SHIFT) : minCapacity;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        buffer.clear();
+        if (DEBUG) {
+            outstanding.put(buffer, new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here"));
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool. The buffer must not be
+     * used afterwards.
+     *
+     * @param buffer The buffer to return, or null (ignored)
+    */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (DEBUG && outstanding.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not acquired from this pool");
+        }
+
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || buffer.capacity() != 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+            return; // Not pooled
+        }
+
+        ArrayDeque<ByteBuffer> local = cachingThread.get() ? threadCache.get()[sizeClass] : null;
+        if (local != null && local.size() < THREAD_CACHE_PER_CLASS) {
+            local.addFirst(buffer);
+        } else if (pooledBytes.addAndGet(buffer.capacity()) <= MAX_POOLED_BYTES) {
+            shared[sizeClass].add(buffer);
+        } else {
+            pooledBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * Gets the number of bytes held in the shared pool, excluding per-thread caches.
+     *
+     * @return The pooled bytes
+    */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    // Maps a capacity to its size class index, or -1 if it is larger than the largest class
+    private static int sizeClass(int capacity) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+        return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+    }
+
+    private void reportLeaks() {
+        synchronized (outstanding) {
+            for (Throwable acquiredAt : outstanding.values()) {
+                System.err.println("BufferPool leak: buffer never released");
+                acquiredAt.printStackTrace();
+            }
+        }
+    }
+}
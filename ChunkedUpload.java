@@ -0,0 +1,272 @@
+/**
+ * ChunkedUpload assembles one file from byte ranges uploaded concurrently over several sessions.
+ * The ranges are written with positional writes into a staging file outside the served directory
+ * tree, and the received ranges are tracked. Only when every byte has landed does the commit step
+ * move the staging file over the target, so other clients never see a half-uploaded file.
+ * Uploads are shared between sessions through a registry keyed by a random token.
+ *
+ * An upload that receives no part for {@link ServerConfig#UPLOAD_IDLE_TIMEOUT} milliseconds is
+ * abandoned, closing its staging file and deleting it, and one user may have at most
+ * {@link ServerConfig#MAX_UPLOADS_PER_USER} unfinished uploads. Idle uploads are swept when the
+ * registry is used, so no thread is needed. Committing or abandoning an upload takes it out of
+ * the registry first, so of two sessions that finish the same upload only one does the work.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChunkedUpload {
+    // Staging files live next to, not inside, the served directory tree
+    private static final Path STAGING_DIR = Paths.get("Server", "uploads");
+
+    // Milliseconds between sweeps for idle uploads
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private static final ConcurrentHashMap<String, ChunkedUpload> uploads = new ConcurrentHashMap<>();
+    private static volatile long nextSweep = 0;
+
+    private final String token;
+    private final Path target;
+    private final Path staging;
+    private final long size;
+    private final String owner;
+    private final FileChannel channel;
+    private final TreeMap<Long, Long> received = new TreeMap<>(); // start -> end (exclusive) of received ranges
+    private final AtomicInteger receiving = new AtomicInteger(); // parts being received right now
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    private ChunkedUpload(String token, Path target, long size, String owner) throws IOException {
+        this.token = token;
+        this.target = target;
+        this.size = size;
+        this.owner = owner;
+        Files.createDirectories(STAGING_DIR);
+        this.staging = STAGING_DIR.resolve(token);
+        this.channel = FileChannel.open(staging, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // Preallocate: transferFrom writes nothing at positions past the current end of file
+        if (size > 0) {
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    /**
+     * Starts a new chunked upload, unless the user already has as many unfinished uploads as
+     * {@link ServerConfig#MAX_UPLOADS_PER_USER} allows.
+     *
+     * @param target The path the file will have once committed
+     * @param size The total size of the file in bytes
+     * @param owner The user starting the upload
+     * @return The new upload, registered under its token, or null if the user has too many
+     * @throws IOException if the staging file cannot be created
+    */
+    public static ChunkedUpload open(Path target, long size, String owner) throws IOException {
+        expireIdle();
+        if (isFull(owner)) {
+            return null;
+        }
+        String token = UUID.randomUUID().toString().replace("-", "");
+        ChunkedUpload upload = new ChunkedUpload(token, target, size, owner);
+
+        // Checked again with the upload in hand, so concurrent opens cannot pass the limit together
+        boolean registered;
+        synchronized (uploads) {
+            registered = !isFull(owner);
+            if (registered) {
+                uploads.put(token, upload);
+            }
+        }
+        if (!registered) {
+            upload.discard();
+            return null;
+        }
+        return upload;
+    }
+
+    /**
+     * Looks up an upload by its token. Using an upload keeps it from being abandoned as idle.
+     *
+     * @param token The upload token
+     * @return The upload, or null if there is no such upload
+    */
+    public static ChunkedUpload get(String token) {
+        expireIdle();
+        ChunkedUpload upload = uploads.get(token);
+        if (upload != null) {
+            upload.lastActivity = System.currentTimeMillis();
+        }
+        return upload;
+    }
+
+    // Tells whether a user has as many unfinished uploads as allowed
+    private static boolean isFull(String owner) {
+        if (ServerConfig.MAX_UPLOADS_PER_USER <= 0) {
+            return false;
+        }
+        int count = 0;
+        for (ChunkedUpload upload : uploads.values()) {
+            if (upload.owner.equals(owner)) {
+                count++;
+            }
+        }
+        return count >= ServerConfig.MAX_UPLOADS_PER_USER;
+    }
+
+    // Abandons the uploads that have received nothing for too long, at most once per SWEEP_INTERVAL
+    private static void expireIdle() {
+        long now = System.currentTimeMillis();
+        if (ServerConfig.UPLOAD_IDLE_TIMEOUT <= 0 || now < nextSweep) {
+            return;
+        }
+        nextSweep = now + SWEEP_INTERVAL;
+        for (ChunkedUpload upload : uploads.values()) {
+            if (upload.receiving.get() == 0 && now - upload.lastActivity > ServerConfig.UPLOAD_IDLE_TIMEOUT) {
+                try {
+                    upload.abort();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the token other sessions use to refer to this upload.
+     *
+     * @return The upload token
+    */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Gets the path the file will have once committed.
+     *
+     * @return The target path
+    */
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * Receives one range from a data connection and writes it at its offset in the staging file.
+     * Writes never go past the declared file size.
+     *
+     * @param source The data connection channel
+     * @param offset The offset of the first byte of the range
+     * @param chunkSize The number of bytes requested per transfer call
+     * @return The number of bytes received
+     * @throws IOException if an I/O error occurs while receiving
+    */
+    public long receive(ReadableByteChannel source, long offset, long chunkSize) throws IOException {
+        long position = offset;
+        long transferred;
+        receiving.incrementAndGet();
+        try {
+            while (position < size && (transferred = channel.transferFrom(source, position, Math.min(chunkSize, size - position))) > 0) {
+                position += transferred;
+            }
+        } finally {
+            lastActivity = System.currentTimeMillis();
+            receiving.decrementAndGet();
+        }
+
+        synchronized (received) {
+            addRange(offset, position);
+        }
+        return position - offset;
+    }
+
+    // Merges [start, end) into the set of received ranges
+    private void addRange(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        Map.Entry<Long, Long> before = received.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = received.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            received.remove(next.getKey());
+        }
+        received.put(start, end);
+    }
+
+    /**
+     * Gets the number of bytes still missing.
+     *
+     * @return The number of bytes of the file that have not been received yet
+    */
+    public long missingBytes() {
+        synchronized (received) {
+            long covered = 0;
+            for (Map.Entry<Long, Long> range : received.entrySet()) {
+                covered += range.getValue() - range.getKey();
+            }
+            return size - covered;
+        }
+    }
+
+    /**
+     * Makes the file visible under its target name, replacing any existing file.
+     * The upload must be complete.
+     *
+     * @return false if the upload was already committed or abandoned, by this session or another
+     * @throws IOException if the staging file cannot be moved into place
+    */
+    public boolean commit() throws IOException {
+        if (!uploads.remove(token, this)) {
+            return false;
+        }
+        channel.truncate(size);
+        channel.force(false);
+        channel.close();
+        try {
+            Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    /**
+     * Abandons the upload and deletes its staging file.
+     *
+     * @return false if the upload was already committed or abandoned, by this session or another
+     * @throws IOException if the staging file cannot be deleted
+    */
+    public boolean abort() throws IOException {
+        if (!uploads.remove(token, this)) {
+            return false;
+        }
+        discard();
+        return true;
+    }
+
+    // Closes and deletes the staging file
+    private void discard() throws IOException {
+        channel.close();
+        Files.deleteIfExists(staging);
+    }
+}
@@ -1,6 +1,8 @@
 /**
  * The ClientHandler class handles communication with an FTP client.
  * It implements the Runnable interface for concurrent handling of multiple clients.
+ * No monitor is held around socket or file I/O, so a session running on a virtual thread
+ * never pins its carrier thread while it is blocked in a transfer or a data-connection accept.
  * 
  * @author Ching, Nicolas Miguel T.
  * @author Santos, Kyle Adrian L.
@@ -9,8 +11,13 @@
 */
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -19,36 +26,55 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Random;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Locale;
 
 public class ClientHandler implements Runnable {
     private Socket clientSocket;
-    private BufferedReader reader;
-    private PrintWriter writer;
-    private final int MIN_PASSIVE_PORT = 49152; // Minimum passive port number
-    private final int MAX_PASSIVE_PORT = 65535; // Maximum passive port number
+    private InetAddress localAddress;
+    private InetAddress clientAddress;
+    private ControlLineReader lineReader;
+    private ReplyWriter replies;
+    private final CommandLine queuedLine = new CommandLine(); // holds lines handed over as Strings by the nio engine
     private String serverDIR = "Server/home";
+    private final Path rootPath = Paths.get(serverDIR).toAbsolutePath().normalize(); // no path may lead outside it
     private String parentDIR = "";
     private String currentDIR = "/";
     private User currentUser = null;
+    private String username = "";
 
     Boolean isPASV = false;
     String mode = "";
     String type = "";
     String stru = "";
+    long restartOffset = 0; // Byte offset set by REST for the next RETR or STOR
+    long rangeEnd = -1; // Exclusive end offset set by RANG for the next RETR, -1 for end of file
+    CompressionCodec compressionCodec = ServerConfig.COMPRESSION_CODEC; // MODE C codec, set by SITE COMPRESS
+    int compressionLevel = ServerConfig.COMPRESSION_LEVEL;
+    String hashAlgorithm = ServerConfig.HASH_ALGORITHM; // Digest for HASH and the 226 reply, set by OPTS HASH
+    BandwidthShaper.Session bandwidth; // Rate limits of the logged-in session, set by SITE RATE
 
     // data connection
     Socket dataSocket;
-    ServerSocket serverSocket;
+    PushbackInputStream dataInput; // its read side, kept with it so bytes read ahead survive from one STOR to the next
+    PassivePortPool.Lease passiveLease;
 
     /**
      * Constructs a ClientHandler object with the specified client socket.
@@ -57,72 +83,63 @@ public class ClientHandler implements Runnable {
     */
     public ClientHandler(Socket clientSocket) {
         this.clientSocket = clientSocket;
+        this.localAddress = clientSocket.getLocalAddress();
+        this.clientAddress = clientSocket.getInetAddress();
         try {
-            reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            writer = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream()), true);
+            // Replies are already batched, so Nagle's algorithm would only delay them: a 226
+            // written while the 150 is unacknowledged would wait for the client's delayed ACK
+            clientSocket.setTcpNoDelay(true);
+            lineReader = new ControlLineReader(clientSocket.getInputStream());
+            replies = new ReplyWriter(clientSocket.getOutputStream());
+            replies.setDeferred(true);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Constructs a ClientHandler that is fed command lines by an external event loop
+     * instead of reading them from a blocking socket. Replies are written to the given stream
+     * when the event loop calls {@link #flushReplies()}.
+     * 
+     * @param out The stream that replies on the control connection are written to
+     * @param localAddress The local address of the control connection, advertised in PASV replies
+     * @param clientAddress The address of the client, the only host allowed to open data connections
+    */
+    ClientHandler(OutputStream out, InetAddress localAddress, InetAddress clientAddress) {
+        this.localAddress = localAddress;
+        this.clientAddress = clientAddress;
+        replies = new ReplyWriter(out);
+        replies.setDeferred(true);
+    }
+
     /**
      * Runs the client handler logic, handling FTP commands from the client.
     */
     @Override
     public void run() {
         try {
-            writer.printf("220 Welcome to NSCOM01 FTP server\r\n");
-
-            String username = "";
-
-            // Handle client commands
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(" ");
-                String command = parts[0].toUpperCase();
-
-                switch (command) {
-                    case "USER":
-                        if (parts.length == 2) {
-                            username = parts[1];
-                            writer.printf("331 User name okay, need password\r\n");
-                        } else {
-                            writer.printf("501 Syntax error in parameters or arguments\r\n");  // Send a response indicating that the USER command syntax is incorrect
-                        }
-                        break;
-                    case "PASS":
-                        if (username.equals("")) {
-                            writer.printf("503 Bad sequence of commands\r\n");
-                            break;
-                        }
-                        
-                        if (parts.length != 2) {
-                            writer.printf("501 Syntax error in parameters or arguments\r\n");  // Send a response indicating that the USER command syntax is incorrect
-                            break;
-                        }
-
-                        String password = parts[1];
-                        currentUser = FTPServer.authenticateUser(username, password);
-                        if (currentUser != null) {
-                            writer.printf("230 User logged in, proceed\r\n");
-                            // handle other FTP commands
-                            handleFTPCommands();
-                        } else {
-                            writer.printf("530 Not logged in\r\n");
-                        }
-                        break;
-                    case "QUIT":
-                        writer.printf("221 Goodbye.\r\n");
-                        break;
-                    default:
-                        writer.printf("503 Bad sequence of commands\r\n");
-                        break;
-                    
+            sendWelcome();
+
+            // Handle client commands, reading every line into the same buffer. Replies are sent
+            // once the commands the client pipelined, already in the buffer, are all done.
+            CommandLine line = new CommandLine();
+            while (lineReader.readLine(line)) {
+                handleCommand(line);
+                if (!lineReader.hasBufferedInput()) {
+                    replies.flush();
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (lineReader.isLineTooLong()) {
+                // The replies to the commands before it are sent first
+                reply("500 Command line too long\r\n");
+                replies.flush();
+            } else {
+                e.printStackTrace();
+            }
         } finally {
+            close();
             try {
                 clientSocket.close();
             } catch (IOException e) {
@@ -132,458 +149,1696 @@ public class ClientHandler implements Runnable {
     }
 
     /**
-     * Handles FTP commands sent by the client.
+     * Releases the session's data connection and passive port when the session ends.
+    */
+    void close() {
+        closeDataConnection();
+        if (bandwidth != null) {
+            bandwidth.close();
+        }
+    }
+
+    /**
+     * Sends the greeting that opens every control connection.
+    */
+    void sendWelcome() {
+        reply("220 Welcome to NSCOM01 FTP server\r\n");
+        replies.flush();
+    }
+
+    /**
+     * Sends the replies held back while pipelined commands ran. The nio engine calls this
+     * once it has executed every complete line it read.
+    */
+    void flushReplies() {
+        replies.flush();
+    }
+
+    /**
+     * Handles a single command line given as text, as the nio engine does for lines that had
+     * to wait behind a transfer.
+     * 
+     * @param line The command line as received, without the line terminator
+    */
+    void handleCommand(String line) {
+        if (!queuedLine.set(line)) {
+            reply("500 Command line too long\r\n");
+            return;
+        }
+        handleCommand(queuedLine);
+    }
+
+    /**
+     * Handles a single command line from the client. The verb is looked up in a table built
+     * when the server starts: before login only USER, PASS and QUIT are accepted, afterwards
+     * every command in {@link #FTP_COMMANDS}. Commands that need arguments are answered with
+     * 501 when they lack them, and transfers with 503 before PASV, so the handlers need not check.
+     *
+     * Replies are normally held back until the caller flushes them. A slow command flushes the
+     * replies before it and sends its own at once: the client may be waiting on the PASV reply
+     * to open the data connection, and on the 150 reply before it reads the data.
+     * 
+     * @param line The command line, without the line terminator
+    */
+    void handleCommand(CommandLine line) {
+        Command command = (currentUser == null ? LOGIN_COMMANDS : FTP_COMMANDS).get(line);
+        if (command == null) {
+            reply(currentUser == null ? "503 Bad sequence of commands\r\n" : "550 Requested action not taken\r\n");
+            return;
+        }
+        if (command.needsPassive && !isPASV) {
+            restartOffset = 0;
+            rangeEnd = -1;
+            reply("503 Bad sequence of commands\r\n");
+            return;
+        }
+        if (line.fieldCount() < command.minFields) {
+            reply("501 Syntax error in parameters or arguments\r\n");
+            return;
+        }
+        if (command.pathField > 0 && line.fieldCount() > command.pathField && !isInsideRoot(line.field(command.pathField))) {
+            restartOffset = 0;
+            rangeEnd = -1;
+            reply("550 Permission denied; the path leads outside the home directory\r\n");
+            return;
+        }
+        if (command.worker) {
+            boolean deferred = replies.setDeferred(false);
+            try {
+                command.handler.handle(this, line);
+            } finally {
+                replies.setDeferred(deferred);
+            }
+        } else {
+            command.handler.handle(this, line);
+        }
+    }
+
+    /**
+     * Tells the nio engine whether a command must run on a worker thread because it transfers
+     * data, reads files in bulk or checks a password with a deliberately slow hash.
+     *
+     * @param line The command line
+     * @return true if the command runs on a worker
+    */
+    static boolean runsOnWorker(CommandLine line) {
+        Command command = FTP_COMMANDS.get(line);
+        if (command == null) {
+            command = LOGIN_COMMANDS.get(line);
+        }
+        return command != null && command.worker;
+    }
+
+    // Runs one command for a session
+    private interface CommandHandler {
+        void handle(ClientHandler session, CommandLine line);
+    }
+
+    // An entry of the command tables
+    private static class Command {
+        final int minFields;        // fields the line needs, counting the verb
+        final boolean needsPassive; // answered with 503 unless PASV came first
+        final boolean worker;       // slow: run on a worker thread by the nio engine, replies not held back
+        final int pathField;        // field naming a file or directory, which must stay inside the root; 0 for none
+        final CommandHandler handler;
+
+        Command(int minFields, boolean needsPassive, boolean worker, CommandHandler handler) {
+            this(minFields, needsPassive, worker, 0, handler);
+        }
+
+        Command(int minFields, boolean needsPassive, boolean worker, int pathField, CommandHandler handler) {
+            this.minFields = minFields;
+            this.needsPassive = needsPassive;
+            this.worker = worker;
+            this.pathField = pathField;
+            this.handler = handler;
+        }
+    }
+
+    // Commands accepted before login
+    private static final CommandTable<Command> LOGIN_COMMANDS = new CommandTable<>(8);
+
+    // Commands accepted once logged in
+    private static final CommandTable<Command> FTP_COMMANDS = new CommandTable<>(64);
+
+    static {
+        LOGIN_COMMANDS.put("USER", new Command(1, false, false, (session, line) -> session.handleUserCommand(line)));
+        LOGIN_COMMANDS.put("PASS", new Command(1, false, true, (session, line) -> session.handlePassCommand(line)));
+        LOGIN_COMMANDS.put("QUIT", new Command(1, false, false, (session, line) -> session.reply("221 Goodbye.\r\n")));
+
+        FTP_COMMANDS.put("PASV", new Command(1, false, false, (session, line) -> session.handlePasvCommand()));
+        FTP_COMMANDS.put("QUIT", new Command(1, false, false, (session, line) -> session.reply("221 Goodbye.\r\n")));
+        FTP_COMMANDS.put("NOOP", new Command(1, false, false, (session, line) -> session.reply("200 NOOP ok\r\n")));
+        FTP_COMMANDS.put("PWD", new Command(1, false, false, (session, line) -> session.handlePwdCommand()));
+        FTP_COMMANDS.put("CWD", new Command(2, false, false, 1, (session, line) -> session.handleCwdCommand(line.field(1))));
+        FTP_COMMANDS.put("CDUP", new Command(1, false, false, (session, line) -> session.handleCdupCommand()));
+        FTP_COMMANDS.put("MKD", new Command(2, false, false, 1, (session, line) -> session.handleMkdCommand(line.field(1))));
+        FTP_COMMANDS.put("RMD", new Command(2, false, false, 1, (session, line) -> session.handleRmdCommand(line.field(1))));
+        FTP_COMMANDS.put("LIST", new Command(1, false, true, (session, line) -> session.handleListCommand()));
+        FTP_COMMANDS.put("RETR", new Command(2, true, true, 1, (session, line) -> session.handleRetrCommand(line.field(1))));
+        FTP_COMMANDS.put("REST", new Command(2, false, false, (session, line) -> session.handleRestCommand(line.field(1))));
+        FTP_COMMANDS.put("RANG", new Command(3, false, false, (session, line) -> session.handleRangCommand(line.field(1), line.field(2))));
+        FTP_COMMANDS.put("SIZE", new Command(2, false, false, 1, (session, line) -> session.handleSizeCommand(line.field(1))));
+        FTP_COMMANDS.put("MDTM", new Command(2, false, false, 1, (session, line) -> session.handleMdtmCommand(line.field(1))));
+        FTP_COMMANDS.put("MLST", new Command(1, false, false, 1, (session, line) -> session.handleMlstCommand(line.field(1))));
+        FTP_COMMANDS.put("MLSD", new Command(1, true, true, 1, (session, line) -> session.handleMlsdCommand(line.field(1))));
+        FTP_COMMANDS.put("UPLD", new Command(1, false, true, 2, (session, line) -> session.handleUpldCommand(line.fields())));
+        FTP_COMMANDS.put("DELT", new Command(1, true, true, 2, (session, line) -> session.handleDeltCommand(line.fields())));
+        FTP_COMMANDS.put("SITE", new Command(1, false, false, (session, line) -> session.handleSiteCommand(line.fields())));
+        FTP_COMMANDS.put("OPTS", new Command(1, false, false, (session, line) -> session.handleOptsCommand(line.fields())));
+        FTP_COMMANDS.put("HASH", new Command(2, false, true, 1, (session, line) -> session.handleHashCommand(line.field(1))));
+        FTP_COMMANDS.put("XCRC", new Command(2, false, true, 1, (session, line) -> session.handleXHashCommand("CRC32", line.field(1))));
+        FTP_COMMANDS.put("XMD5", new Command(2, false, true, 1, (session, line) -> session.handleXHashCommand("MD5", line.field(1))));
+        FTP_COMMANDS.put("XSHA1", new Command(2, false, true, 1, (session, line) -> session.handleXHashCommand("SHA-1", line.field(1))));
+        FTP_COMMANDS.put("XSHA256", new Command(2, false, true, 1, (session, line) -> session.handleXHashCommand("SHA-256", line.field(1))));
+        FTP_COMMANDS.put("DELE", new Command(2, false, false, 1, (session, line) -> session.handleDelCommand(session.currentDIR + line.field(1))));
+        FTP_COMMANDS.put("STOR", new Command(2, true, true, 1, (session, line) -> session.handleSTORCommand(line.field(1))));
+        FTP_COMMANDS.put("HELP", new Command(1, false, false, (session, line) -> session.handleHelpCommand()));
+        FTP_COMMANDS.put("TYPE", new Command(2, false, false, (session, line) -> session.handleTypeCommand(line.field(1))));
+        FTP_COMMANDS.put("MODE", new Command(2, false, false, (session, line) -> session.handleModeCommand(line.field(1))));
+        FTP_COMMANDS.put("STRU", new Command(2, false, false, (session, line) -> session.handleSTRUCommand(line.field(1))));
+    }
+
+    /**
+     * Checks that a name given by the client, taken relative to the current directory, stays
+     * inside the server's home directory once "." and ".." are resolved. Everything beside the
+     * home directory, such as the accounts file and the digest index, is then out of reach.
+     *
+     * @param name the file or directory name as sent by the client
+     * @return {@code true} if the path lies in the home directory
     */
-    private void handleFTPCommands() {
+    private boolean isInsideRoot(String name) {
         try {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(" ");
-                String command = parts[0].toUpperCase();
-
-                if (!isPASV && (command.equals("STOR") || command.equals("RETR"))) {
-                    writer.printf("503 Bad sequence of commands\r\n");
-                    continue;
-                }
+            return Paths.get(serverDIR + currentDIR + name).toAbsolutePath().normalize().startsWith(rootPath);
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends a reply on the control connection.
+     *
+     * @param text The reply, including its CRLF terminator
+    */
+    private void reply(String text) {
+        replies.reply(text);
+    }
+
+    /**
+     * Handles the USER command by remembering the username for the following PASS.
+     *
+     * @param line The command line
+    */
+    private void handleUserCommand(CommandLine line) {
+        if (line.fieldCount() == 2) {
+            username = line.field(1);
+            reply("331 User name okay, need password\r\n");
+        } else {
+            reply("501 Syntax error in parameters or arguments\r\n");  // Send a response indicating that the USER command syntax is incorrect
+        }
+    }
+
+    /**
+     * Handles the PASS command by checking the password of the user named by USER.
+     *
+     * @param line The command line
+    */
+    private void handlePassCommand(CommandLine line) {
+        if (username.equals("")) {
+            reply("503 Bad sequence of commands\r\n");
+            return;
+        }
+
+        if (line.fieldCount() != 2) {
+            reply("501 Syntax error in parameters or arguments\r\n");  // Send a response indicating that the PASS command syntax is incorrect
+            return;
+        }
+
+        currentUser = FTPServer.authenticateUser(username, line.field(1));
+        if (currentUser != null) {
+            if (bandwidth != null) {
+                bandwidth.close();
+            }
+            bandwidth = BandwidthShaper.getShared().openSession(currentUser.getUsername());
+            reply("230 User logged in, proceed\r\n");
+        } else {
+            reply("530 Not logged in\r\n");
+        }
+    }
+
+    /**
+     * Handles the PWD command by replying with the current directory.
+    */
+    private void handlePwdCommand() {
+        reply("257 \"" + currentDIR + "\" is the current directory\r\n");
+    }
+
+    /**
+     * Handles the CWD command by changing to a subdirectory of the current directory.
+     *
+     * @param directory the name of the subdirectory
+    */
+    private void handleCwdCommand(String directory) {
+        if(checkDIRExist(serverDIR + currentDIR + directory)) {
+            parentDIR = currentDIR;
+            currentDIR += directory + "/";
+            reply("250 Directory successfully changed\r\n");
+        }
+        else
+            reply("550 Directory not found\r\n");
+    }
+
+    /**
+     * Handles the CDUP command by changing to the parent of the current directory.
+    */
+    private void handleCdupCommand() {
+        if (parentDIR.length() == 0) {
+            // If already at the root server directory, cannot move further up
+            reply("550 Cannot change to parent directory\r\n");
+        } else {
+            // Update current directory to parent directory
+            currentDIR = parentDIR;
+            // Update parent directory to the parent directory of the new current directory
+            parentDIR = getParentDirectory(parentDIR);
     
-                switch (command) {
-                    case "PASV":
-                        handlePasvCommand();
-                        break;
-                    case "QUIT":
-                        writer.printf("221 Goodbye.\r\n");
-                        break;
-                    case "PWD":
-                        writer.printf("257 \"" + currentDIR + "\" is the current directory\r\n");
-                        break;
-                    case "CWD":
-                        if (parts.length < 2) {
-                            writer.printf("501 Syntax error in parameters or arguments\r\n");
-                        }
-                        if(checkDIRExist(serverDIR + currentDIR + parts[1])) {
-                            parentDIR = currentDIR;
-                            currentDIR += parts[1] + "/";
-                            writer.printf("250 Directory successfully changed\r\n");
-                        }
-                        else
-                            writer.printf("550 Directory not found\r\n");
-                        break;
-                    case "CDUP":
-                        if (parentDIR.length() == 0) {
-                            // If already at the root server directory, cannot move further up
-                            writer.printf("550 Cannot change to parent directory\r\n");
-                        } else {
-                            // Update current directory to parent directory
-                            currentDIR = parentDIR;
-                            // Update parent directory to the parent directory of the new current directory
-                            parentDIR = getParentDirectory(parentDIR);
-                    
-                            // Send success response to the client
-                            writer.printf("200 CDUP command successful\r\n");
-                        }
-                        break;
-                    case "MKD":
-                        // Create a File object representing the new directory
-                        File newDirectory = new File(serverDIR + currentDIR + parts[1]);
-
-                        // Attempt to create the directory
-                        boolean created = newDirectory.mkdir();
-
-                        // Send response to the client based on the success of the operation
-                        if (created) {
-                            writer.printf("257 \"" + currentDIR + parts[1] + "\" created successfully\r\n");
-                        } else {
-                            writer.printf("550 Failed to create directory\r\n");
-                        }
-                        break;
-                    case "RMD":
-                        // Create a File object representing the directory to be removed
-                        File directoryToRemove = new File(serverDIR + currentDIR + parts[1]);
-
-                        // Attempt to delete the directory
-                        boolean deleted = deleteDirectory(directoryToRemove);
-
-                        // Send response to the client based on the success of the operation
-                        if (deleted) {
-                            writer.printf("250 Directory \"" + currentDIR + parts[1] + "\" deleted successfully\r\n");
-                        } else {
-                            writer.printf("550 Failed to delete directory\r\n");
-                        }
-                        break;
-                    case "LIST":
-                        writer.printf(getFileList(serverDIR + currentDIR));
-                        break;
-                    case "RETR":
-                        if (parts.length < 2)
-                            writer.printf("501 Syntax error in parameters or arguments\r\n");
-                        else 
-                            handleRetrCommand(parts[1]);
-                        break;
-                    case "DELE":
-                        handleDelCommand(currentDIR + parts[1]);
-                        break;
-                
-                    case "STOR":
-                        if (parts.length < 2)
-                            writer.printf("501 Syntax error in parameters or arguments\r\n");
-                        else 
-                            handleSTORCommand(parts[1]);
-                        break;
-                    case "HELP":
-                        // Send a response containing detailed help information for each command
-                        writer.printf(  "214 The following commands are recognized:\n" +
-                                        "USER [user]       - Specify user for authentication\n" +
-                                        "PASS [pass]       - Specify password for authentication\n" +
-                                        "PWD               - Print working directory\n" +
-                                        "CWD [dir]         - Change working directory\n" +
-                                        "CDUP              - Change to the parent directory\n" +
-                                        "MKD [dir]         - Make directory\n" +
-                                        "RMD [dir]         - Remove directory\n" +
-                                        "PASV              - Enter passive mode for data transfer\n" +
-                                        "LIST              - List files in the current directory\n" +
-                                        "RETR [file name]  - Retrieve a file from the server\n" +
-                                        "DELE [file name]  - Delete a file\n" +
-                                        "STOR [file name]  - Store a file on the server\n" +
-                                        "HELP              - Display available commands and their descriptions\n" +
-                                        "TYPE [A or I]     - Set transfer mode (ASCII or Image)\n" +
-                                        "MODE [S, B, or C] - Set transfer mode (Stream, Block, or Compressed)\n" +
-                                        "STRU [F, R, or P] - Set file transfer structure (File, Record, or Page)\n" +
-                                        "QUIT              - Terminate the FTP session\n\n" +
-                                        "214 Help OK\r\n");
+            // Send success response to the client
+            reply("200 CDUP command successful\r\n");
+        }
+    }
+
+    /**
+     * Handles the MKD command by creating a directory in the current directory.
+     *
+     * @param directory the name of the new directory
+    */
+    private void handleMkdCommand(String directory) {
+        // Create a File object representing the new directory
+        File newDirectory = new File(serverDIR + currentDIR + directory);
+
+        // Attempt to create the directory
+        boolean created = newDirectory.mkdir();
+
+        // Send response to the client based on the success of the operation
+        if (created) {
+            invalidateCaches(newDirectory.toPath());
+            reply("257 \"" + currentDIR + directory + "\" created successfully\r\n");
+        } else {
+            reply("550 Failed to create directory\r\n");
+        }
+    }
+
+    /**
+     * Handles the RMD command by removing a directory of the current directory and everything in it.
+     *
+     * @param directory the name of the directory to remove
+    */
+    private void handleRmdCommand(String directory) {
+        // Create a File object representing the directory to be removed
+        File directoryToRemove = new File(serverDIR + currentDIR + directory);
+
+        // Attempt to delete the directory
+        boolean deleted = deleteDirectory(directoryToRemove);
+        invalidateCaches(directoryToRemove.toPath());
+
+        // Send response to the client based on the success of the operation
+        if (deleted) {
+            reply("250 Directory \"" + currentDIR + directory + "\" deleted successfully\r\n");
+        } else {
+            reply("550 Failed to delete directory\r\n");
+        }
+    }
+
+    /**
+     * Handles the HELP command by listing every command with a short description.
+    */
+    private void handleHelpCommand() {
+        // Send a response containing detailed help information for each command
+        reply(  "214 The following commands are recognized:\n" +
+                "USER [user]       - Specify user for authentication\n" +
+                "PASS [pass]       - Specify password for authentication\n" +
+                "PWD               - Print working directory\n" +
+                "CWD [dir]         - Change working directory\n" +
+                "CDUP              - Change to the parent directory\n" +
+                "MKD [dir]         - Make directory\n" +
+                "RMD [dir]         - Remove directory\n" +
+                "PASV              - Enter passive mode for data transfer\n" +
+                "LIST              - List files in the current directory\n" +
+                "RETR [file name]  - Retrieve a file from the server\n" +
+                "DELE [file name]  - Delete a file\n" +
+                "STOR [file name]  - Store a file on the server\n" +
+                "HELP              - Display available commands and their descriptions\n" +
+                "TYPE [A or I]     - Set transfer mode (ASCII or Image)\n" +
+                "MODE [S, B, or C] - Set transfer mode (Stream, Block, or Compressed)\n" +
+                "STRU [F, R, or P] - Set file transfer structure (File, Record, or Page)\n" +
+                "REST [offset]     - Restart the next RETR or STOR at a byte offset\n" +
+                "RANG [from] [to]  - Limit the next RETR to an inclusive byte range\n" +
+                "SIZE [file name]  - Show the size of a file in bytes\n" +
+                "MDTM [file name]  - Show the modification time of a file (UTC, YYYYMMDDHHMMSS.sss)\n" +
+                "MLST [name]       - Show the type, size and modification time of a file or directory\n" +
+                "MLSD [dir]        - List a directory with type, size and modification time (after PASV)\n" +
+                "UPLD [sub] [args] - Parallel upload (OPEN name size, PART token offset, DONE token, ABOR token)\n" +
+                "DELT [sub] [name] - Delta upload after PASV (SIGS name sends block signatures, STOR name receives a delta)\n" +
+                "SITE COMPRESS [LEVEL n or CODEC name] - Set the MODE C level (0-9) or codec (gzip, zlib)\n" +
+                "SITE CACHE        - Show the in-memory file cache size, hits and misses\n" +
+                "SITE RATE [SESSION, USER [name] or GLOBAL] [n] - Show or set a bandwidth limit in bytes/sec (0 for none)\n" +
+                "OPTS HASH [alg]   - Show or set the HASH algorithm (SHA-256, SHA-1, MD5 or CRC32)\n" +
+                "HASH [file name]  - Show the digest of a file with the OPTS HASH algorithm\n" +
+                "XCRC [file name]  - Show the CRC32 of a file (also XMD5, XSHA1 and XSHA256)\n" +
+                "NOOP              - Do nothing; keeps the session alive\n" +
+                "QUIT              - Terminate the FTP session\n\n" +
+                "214 Help OK\r\n");
+    }
+
+    /**
+     * Handles the PASV command by setting up a passive mode data connection.
+     * A pre-bound listener is leased from the shared {@link PassivePortPool}, and the server's
+     * IP address along with the passive port information is sent to the client. The incoming
+     * data connection is accepted in the background; {@link #acceptDataConnection()} picks it
+     * up when the transfer starts, so PASV never blocks the control connection.
+    */
+    private void handlePasvCommand() {
+        // A new PASV replaces any data connection that was set up but not used
+        closeDataConnection();
+
+        passiveLease = PassivePortPool.getShared().lease(clientAddress);
+        if (passiveLease == null) {
+            reply("425 Can't open data connection; no passive ports available\r\n");
+            return;
+        }
+        int passivePort = passiveLease.getPort();
+
+        // Get server's IP address
+        String ipAddress = localAddress.getHostAddress().replace(".", ",");
+
+        // Inform the client about the passive mode setup
+        reply("227 Entering Passive Mode (" + ipAddress + "," + (passivePort / 256) + ","
+                + (passivePort % 256) + ")\r\n");
         
-                        break;
-                    case "TYPE":
-                        if (parts.length < 2) {
-                            writer.printf("501 Syntax error in parameters or arguments\r\n");
-                        } else {
-                            handleTypeCommand(parts[1]);
-                        }
-                        break;
-                    case "MODE":
-                        if (parts.length < 2) {
-                            writer.printf("501 Syntax error in parameters or arguments\r\n");
-                        } else {
-                            handleModeCommand(parts[1]);
-                        }
-                        break;
-                    case "STRU":
-                        if (parts.length < 2) {
-                            writer.printf("501 Syntax error in parameters or arguments\r\n");
-                        } else {
-                            handleSTRUCommand(parts[1]);
-                        }
-                        break;
-                    default:
-                        writer.printf("550 Requested action not taken\r\n");
-                        break;
-                }
+        isPASV = true;
+    }
+
+    /**
+     * Waits for the data connection announced by the last PASV reply, if it has not been
+     * picked up yet. The client connects right after the PASV reply, so by the time a
+     * transfer command arrives the connection has normally been accepted already. The wait
+     * is bounded by {@link ServerConfig#DATA_CONNECTION_TIMEOUT}.
+     * 
+     * @return The data connection socket
+     * @throws IOException if the client does not connect in time
+    */
+    private Socket acceptDataConnection() throws IOException {
+        if (dataSocket == null) {
+            dataSocket = passiveLease.accept(ServerConfig.DATA_CONNECTION_TIMEOUT).socket();
+            // On a connection kept open in block mode, the short EOF block ending a file must not wait for an ACK
+            dataSocket.setTcpNoDelay(true);
+        }
+        return dataSocket;
+    }
+
+    /**
+     * Ends passive mode: closes the data connection, if any, and returns the passive port
+     * to the pool. Called when a transfer ends and when the session ends.
+    */
+    private void closeDataConnection() {
+        isPASV = false;
+        if (dataSocket != null) {
+            try {
+                dataSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            dataSocket = null;
+        }
+        dataInput = null;
+        if (passiveLease != null) {
+            passiveLease.release();
+            passiveLease = null;
+        }
+    }
+
+    /**
+     * Tells whether the data connection stays open after the current transfer. In block mode
+     * every file ends with an EOF block, so the connection is not needed to mark the end of
+     * the file and can carry the next RETR or STOR without another PASV and TCP handshake.
+     * The connection is still closed after a failed transfer, or when the next PASV arrives.
+     *
+     * @return {@code true} if the transfer leaves the data connection open
+    */
+    private boolean keepsDataConnection() {
+        return ServerConfig.KEEP_BLOCK_CONNECTION && mode.equals("B") && !(stru.equals("R") && type.equals("A"));
+    }
+
+    /**
+     * Gets the read side of the data connection. The same buffered stream serves every STOR on a
+     * connection kept open in block mode, so bytes of the next file that were read ahead along
+     * with the EOF block of this one are not lost.
+     *
+     * @return The data connection input stream, shaped by the session's rate limits
+     * @throws IOException if the connection is closed
+    */
+    private PushbackInputStream openDataInput() throws IOException {
+        if (dataInput == null) {
+            dataInput = new PushbackInputStream(new BufferedInputStream(bandwidth.throttle(dataSocket.getInputStream())), 1);
+        }
+        return dataInput;
+    }
+
+    /**
+     * Checks that a data connection kept open by an earlier transfer has not been closed by the
+     * client since. Data that is already waiting, read ahead or not, means it is open. Otherwise
+     * a non-blocking read finds either nothing, meaning it is still open, or the end of the
+     * stream; a byte that arrived just then is pushed back for the next transfer to read.
+     *
+     * @return {@code true} if the kept data connection can carry another transfer
+    */
+    private boolean isDataConnectionOpen() {
+        SocketChannel channel = dataSocket.getChannel();
+        if (channel == null) {
+            return !dataSocket.isClosed();
+        }
+        try {
+            if (dataInput != null && dataInput.available() > 0) {
+                return true;
+            }
+            ByteBuffer probe = ByteBuffer.allocate(1);
+            int bytesRead;
+            channel.configureBlocking(false);
+            try {
+                bytesRead = channel.read(probe);
+            } finally {
+                channel.configureBlocking(true);
+            }
+            if (bytesRead > 0) {
+                openDataInput().unread(probe.get(0));
+            }
+            return bytesRead >= 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Handles the STOR command by receiving data from the client and storing it in a file.
+     * The method creates input and output streams to read data from the dataSocket and write
+     * the received data to the specified file. It supports different transfer modes: "S" (Stream),
+     * "B" (Block), and "C" (Compressed). After receiving the data and storing it in the file,
+     * a success response is sent to the client, and the data connection is closed unless block
+     * mode keeps it open for the next transfer.
+     * 
+     * @param filename the name of the file to store the received data
+     * @throws IOException if an I/O error occurs while handling the STOR command
+    */
+    private void handleSTORCommand(String filename) {
+        long offset = restartOffset;
+        restartOffset = 0;
+
+        if (type.equals("A") && !filename.split("\\.")[1].equals("txt")) {
+            reply("504 Command not implemented for that parameter; TYPE is set to A (only Text-based files)\r\n");
+            return;
+        }
+
+        if (stru.equals("R") && !filename.split("\\.")[1].equals("txt")) {
+            reply("504 Command not implemented for that parameter; STRU is set to R (only Text-based files)\r\n");
+            return;
+        }
+
+        // Resuming past the end would leave a hole, and transferFrom writes nothing past the end of a file
+        if (offset > 0 && offset > new File(serverDIR + currentDIR + filename).length()) {
+            reply("554 Requested action not taken; restart offset is past the end of the file\r\n");
+            return;
+        }
+
+        // A block-mode data connection kept open by the previous transfer carries this one too
+        boolean keepOpen = keepsDataConnection();
+        reply(dataSocket != null ? "125 Data connection already open; transfer starting\r\n"
+                : "150 Ready to receive file [" + filename + "].\r\n");
+
+        // The cached copies of the old contents are no longer needed
+        invalidateCaches(Paths.get(serverDIR + currentDIR + filename));
+
+        try {
+            acceptDataConnection();
+        } catch (IOException e) {
+            e.printStackTrace();
+            reply("425 Can't open data connection\r\n");
+            closeDataConnection();
+            return;
+        }
+
+        if (stru.equals("R") && type.equals("A")) {
+            // Each record arrives as one line and is stored in the file under the home directory
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(bandwidth.throttle(dataSocket.getInputStream()), "UTF-8"));
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(openFileOutputStream(serverDIR + currentDIR + filename, offset), "UTF-8"))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    writer.write(line);
+                    writer.write("\n"); // Append newline character
+                }
+                writer.close();
+                reply("226 Closing data connection; transfer complete\r\n");
+            } catch (IOException e) {
+                e.printStackTrace();
+                reply("426 Connection closed; transfer aborted\r\n");
+            }
+            closeDataConnection();
+        }
+        else if (mode.equals("S") && isBinaryStream() && dataSocket.getChannel() != null && dataInput == null) {
+            // A whole upload is hashed as it arrives; a resumed one takes the digest from the index
+            MessageDigest digest = ServerConfig.TRANSFER_DIGESTS && offset == 0 ? DigestIndex.newDigest(hashAlgorithm) : null;
+            try {
+                long startTime = System.nanoTime();
+                long bytesReceived = receiveFileZeroCopy(serverDIR + currentDIR + filename, offset, digest);
+                String throughput = formatThroughput(bytesReceived, startTime);
+
+                if (ServerConfig.TRANSFER_DIGESTS) {
+                    throughput += formatDigest(Paths.get(serverDIR + currentDIR + filename), digest, -1, 0);
+                }
+
+                // Send a success response to the client
+                reply("226 Closing data connection; transfer complete" + throughput + "\r\n");
+            } catch (IOException e) {
+                e.printStackTrace();
+                reply("426 Connection closed; transfer aborted\r\n");
+            }
+            closeDataConnection();
+        }
+        else {
+            // Buffer to hold data temporarily, borrowed from the shared pool
+            int bufferSize = 64 * 1024;
+            ByteBuffer pooledBuffer = BufferPool.HEAP.acquire(bufferSize);
+            // A binary upload reports the stored file's digest, hashed as the bytes arrive unless it resumed a file
+            boolean reportDigest = ServerConfig.TRANSFER_DIGESTS && !type.equals("A");
+            MessageDigest digest = reportDigest && offset == 0 ? DigestIndex.newDigest(hashAlgorithm) : null;
+            try {
+                long startTime = System.nanoTime();
+                long bytesReceived = 0;
+
+                // Read data from the client through the connection's buffered stream, at no more than the session's rate limits
+                InputStream dataInputStream = openDataInput();
+
+                // Create an output stream to write the received data to the file
+                OutputStream outputStream = openFileOutputStream(serverDIR + currentDIR + filename, offset);
+
+                byte[] buffer = pooledBuffer.array();
+                int bytesRead;
+                switch (mode) {
+                    case "S":
+                        while ((bytesRead = dataInputStream.read(buffer, 0, bufferSize)) != -1) {
+                            outputStream.write(buffer, 0, bytesRead);
+                            updateDigest(digest, buffer, bytesRead);
+                            bytesReceived += bytesRead;
+                        }
+                        break;      
+                    case "B":
+                        BlockInputStream blockInputStream = new BlockInputStream(dataInputStream);
+                        try {
+                            while ((bytesRead = blockInputStream.read(buffer, 0, bufferSize)) != -1) {
+                                outputStream.write(buffer, 0, bytesRead);
+                                updateDigest(digest, buffer, bytesRead);
+                                bytesReceived += bytesRead;
+                            }
+                        } catch (EOFException e) {
+                            // The data connection closed before the EOF block: the file is incomplete
+                            reply("451 Requested action aborted; transfer incomplete after " + (offset + bytesReceived)
+                                    + " bytes (last restart marker " + blockInputStream.getLastRestartMarker() + ")\r\n");
+                            outputStream.close();
+                            invalidateCaches(Paths.get(serverDIR + currentDIR + filename));
+                            closeDataConnection();
+                            return;
+                        }
+                        break;
+
+                    case "C":
+                        try (InputStream decompressedInputStream = compressionCodec.decompress(dataInputStream)) {
+                            while ((bytesRead = decompressedInputStream.read(buffer, 0, bufferSize)) != -1) {
+                                outputStream.write(buffer, 0, bytesRead);
+                                updateDigest(digest, buffer, bytesRead);
+                                bytesReceived += bytesRead;
+                            }
+                        }
+                        break;
+                
+                    default:
+                        break;
+                }
+
+                String throughput = formatThroughput(bytesReceived, startTime);
+
+                // Close streams; the EOF block ended a block-mode file, so its connection may stay open
+                outputStream.close();
+                if (!keepOpen) {
+                    dataInputStream.close();
+                }
+
+                // The file is closed, so its digest is recorded for its final size and modification time
+                if (reportDigest) {
+                    throughput += formatDigest(Paths.get(serverDIR + currentDIR + filename), digest, -1, 0);
+                }
+
+                // Send a success response to the client
+                if (keepOpen) {
+                    reply("250 Requested file action okay, completed; data connection kept open" + throughput + "\r\n");
+                } else {
+                    reply("226 Closing data connection; transfer complete" + throughput + "\r\n");
+                    closeDataConnection();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                reply("426 Connection closed; transfer aborted\r\n");
+                closeDataConnection();
+            } finally {
+                BufferPool.HEAP.release(pooledBuffer);
+            }
+        }
+
+        // Drop anything another session cached from the partly written file during the upload
+        invalidateCaches(Paths.get(serverDIR + currentDIR + filename));
+    }
+
+    /**
+     * Drops the cached contents and compressed copies of a file, or of every file under a
+     * directory, and the listings that show it, for all sessions.
+     *
+     * @param path the file or directory that changed
+    */
+    private void invalidateCaches(Path path) {
+        DirectoryListingCache.getShared().invalidate(path);
+        FileContentCache.getShared().invalidate(path);
+        CompressedFileCache.getShared().invalidate(path);
+    }
+
+    /**
+     * Handles the RETR command by retrieving a file from the server and sending it to the client.
+     * The method checks if the specified file exists and is a regular file. If the file exists,
+     * it sends a status message to the client and opens a data connection for data transfer. If the
+     * transfer mode is "C" (Compressed), the file is sent compressed with the session's codec and level,
+     * and the codec and achieved ratio are reported in the final reply.
+     * Otherwise, the file is sent as-is. The method also supports ASCII mode conversion if the transfer
+     * type is set to "A" (ASCII). After transferring the file, a success response is sent to the client,
+     * and the data connection is closed unless block mode keeps it open for the next transfer.
+     *
+     * @param filename the name of the file to retrieve from the server
+    */
+    private void handleRetrCommand(String filename) {
+        long offset = restartOffset;
+        long end = rangeEnd;
+        restartOffset = 0;
+        rangeEnd = -1;
+
+        File file = new File(serverDIR + currentDIR + filename);
+        // A hot small file is served from memory without touching the file system
+        FileContentCache.Entry cachedContent = isBinaryStream() ? FileContentCache.getShared().get(file.toPath()) : null;
+        if (cachedContent != null || (file.exists() && file.isFile())) {
+            long length = cachedContent != null ? cachedContent.getSize() : file.length();
+            if (offset > length) {
+                reply("554 Requested action not taken; restart offset is past the end of the file\r\n");
+                return;
+            }
+
+            if (end >= 0 && !isBinaryStream()) {
+                reply("504 Command not implemented for that parameter; RANG requires TYPE I and MODE S\r\n");
+                return;
+            }
+            end = end < 0 ? length : Math.min(end, length);
+
+            // A binary download to the end of the file reports the whole file's digest, so a resumed copy can be
+            // checked too; from the start it is hashed on the way where the bytes pass through user space
+            boolean reportDigest = ServerConfig.TRANSFER_DIGESTS && !type.equals("A") && end == length;
+            MessageDigest digest = reportDigest && offset == 0 ? DigestIndex.newDigest(hashAlgorithm) : null;
+            long modified = cachedContent != null ? cachedContent.getLastModified() : file.lastModified();
+
+            if (type.equals("A") && !filename.split("\\.")[1].equals("txt")) {
+                reply("504 Command not implemented for that parameter; TYPE is set to A (only Text-based files)\r\n");
+                return;
+            }
+
+            if (stru.equals("R") && !filename.split("\\.")[1].equals("txt")) {
+                reply("504 Command not implemented for that parameter; STRU is set to R (only Text-based files)\r\n");
+                return;
+            }
+
+            // A block-mode data connection kept open by the previous transfer carries this one too,
+            // unless the client has closed it since
+            if (dataSocket != null && !isDataConnectionOpen()) {
+                closeDataConnection();
+                reply("425 Can't open data connection; the kept data connection was closed, send PASV\r\n");
+                return;
+            }
+            boolean keepOpen = keepsDataConnection();
+            reply(dataSocket != null ? "125 Data connection already open; transfer starting\r\n"
+                    : "150 File status [" + filename + "] okay; about to open data connection\r\n");
+
+            try {
+                acceptDataConnection();
+            } catch (IOException e) {
+                e.printStackTrace();
+                reply("425 Can't open data connection\r\n");
+                closeDataConnection();
+                return;
+            }
+
+            String transferSummary = "";
+            boolean aborted = false;
+            if (stru.equals("R") && type.equals("A")) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(openFileInputStream(file, offset), "UTF-8"));
+                    DataOutputStream outputStream = new DataOutputStream(bandwidth.throttle(dataSocket.getOutputStream()))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        outputStream.write(line.getBytes("UTF-8"));
+                        outputStream.write("\n".getBytes("UTF-8")); // Append newline character
+                    }
+                } catch (Exception | InternalError e) {
+                    e.printStackTrace();
+                    aborted = true;
+                }
+            }
+            else if (mode.equals("C")) {
+                // Whole binary downloads are served from, or else fill, the compressed-file cache
+                String variant = compressionCodec.getName() + " level " + compressionLevel;
+                boolean cacheable = offset == 0 && type.equals("I") && dataSocket.getChannel() != null;
+                CompressedFileCache.Hit hit = cacheable ? CompressedFileCache.getShared().lookup(file.toPath(), variant) : null;
+                CompressedFileCache.Fill fill = cacheable && hit == null ? CompressedFileCache.getShared().fill(file.toPath(), variant) : null;
+
+                if (hit != null) {
+                    digest = null; // Only compressed bytes are sent; the digest comes from the index
+                    try (CompressedFileCache.Hit cached = hit) {
+                        transferToDataConnection(cached.getChannel(), 0, cached.getChannel().size());
+                        transferSummary = " (" + cached.getSummary() + ", served from cache)";
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        reportDigest = false;
+                        aborted = true;
+                    }
+                } else {
+                    int bufferSize = 64 * 1024;
+                    ByteBuffer pooledBuffer = BufferPool.HEAP.acquire(bufferSize);
+                    try (InputStream fileInputStream = openFileInputStream(file, offset);
+                        OutputStream socketOutputStream = bandwidth.throttle(dataSocket.getOutputStream());
+                        OutputStream dataOutputStream = fill != null ? fill.tee(socketOutputStream) : socketOutputStream;
+                        CompressionOutputStream compressionOutputStream = CompressionOutputStream.open(dataOutputStream, compressionCodec, compressionLevel, file.length() - offset)) {
+                        byte[] buffer = pooledBuffer.array();
+                        int bytesRead;
+                        while ((bytesRead = fileInputStream.read(buffer, 0, bufferSize)) != -1) {
+                            if (type.equals("A")) {
+                                // Convert each byte to ASCII
+                                System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
+                                for (int i = 0; i < bytesRead; i++) {
+                                    // Convert byte to ASCII representation
+                                    buffer[i] = (byte) (buffer[i] & 0x7F);
+                                }
+                                System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
+                            }
+                            updateDigest(digest, buffer, bytesRead);
+                            
+                            compressionOutputStream.write(buffer, 0, bytesRead);
+                        }       
+                        compressionOutputStream.close();
+                        transferSummary = " (" + compressionOutputStream.getSummary() + ")";
+                        if (fill != null) {
+                            fill.commit(compressionOutputStream.getSummary());
+                        }
+                    } catch (IOException | InternalError e) {
+                        e.printStackTrace();
+                        reportDigest = false;
+                        aborted = true;
+                        if (fill != null) {
+                            fill.abort();
+                        }
+                    } finally {
+                        BufferPool.HEAP.release(pooledBuffer);
+                    }
+                }
+            }
+            else if (isBinaryStream() && dataSocket.getChannel() != null) {
+                try {
+                    FileContentCache.Entry content = cachedContent != null ? cachedContent : FileContentCache.getShared().load(file.toPath());
+                    if (content != null) {
+                        sendCachedContent(content, offset, end);
+                        if (digest != null) {
+                            digest.update(content.getContent()); // Hashing memory is cheap next to reading the file
+                            modified = content.getLastModified();
+                        }
+                    } else {
+                        digest = null; // The kernel copies the file; the digest comes from the index
+                        sendFileZeroCopy(file, offset, end);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    reportDigest = false;
+                    aborted = true;
+                }
+            }
+            else {
+                int bufferSize = mode.equals("B") ? ServerConfig.BLOCK_SIZE : 8192;
+                ByteBuffer pooledBuffer = BufferPool.HEAP.acquire(bufferSize);
+                try (InputStream fileInputStream = openFileInputStream(file, offset);
+                    BufferedInputStream bufferedInputStream = new BufferedInputStream(fileInputStream);
+                    // Block mode frames the data in blocks of up to 64 KB with restart markers
+                    OutputStream outputStream = mode.equals("B")
+                        ? new BlockOutputStream(bandwidth.throttle(dataSocket.getOutputStream()), ServerConfig.BLOCK_SIZE, ServerConfig.BLOCK_RESTART_INTERVAL, offset, !keepOpen)
+                        : new DataOutputStream(bandwidth.throttle(dataSocket.getOutputStream()))) {
+                    byte[] buffer = pooledBuffer.array();
+                    int bytesRead;
+                    
+                    while ((bytesRead = bufferedInputStream.read(buffer, 0, bufferSize)) != -1) {
+                        if (type.equals("A")) {
+                            // Convert each byte to ASCII
+                            System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
+                            for (int i = 0; i < bytesRead; i++) {
+                                // Convert byte to ASCII representation
+                                buffer[i] = (byte) (buffer[i] & 0x7F);
+                            }
+                            System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
+                        }
+                        updateDigest(digest, buffer, bytesRead);
+                        // Write file contents line by line to the data connection output stream
+                        outputStream.write(buffer, 0, bytesRead);
+                    }
+                } catch (Exception | InternalError e) {
+                    e.printStackTrace();
+                    reportDigest = false;
+                    aborted = true;
+                    keepOpen = false;
+                } finally {
+                    BufferPool.HEAP.release(pooledBuffer);
+                }
+            }
+
+
+            if (aborted) {
+                // A short file looks complete to the client, so a failed transfer must say so
+                reply("426 Connection closed; transfer aborted\r\n");
+                closeDataConnection();
+                return;
+            }
+            if (reportDigest) {
+                transferSummary += formatDigest(file.toPath(), digest, length, modified);
+            }
+            if (keepOpen) {
+                reply("250 Requested file action okay, completed; data connection kept open" + transferSummary + "\r\n");
+            } else {
+                reply("226 Closing data connection; transfer complete" + transferSummary + "\r\n");
+                closeDataConnection();
+            }
+        } else {
+            reply("550 File not found or cannot be accessed\r\n");
+        }
+
+    }
+
+
+    /**
+     * Checks whether the session transfers files unmodified: binary type in stream mode,
+     * with no ASCII conversion and no block or compressed framing.
+     *
+     * @return {@code true} if file bytes can be sent to the data connection as-is
+    */
+    private boolean isBinaryStream() {
+        return !type.equals("A") && !mode.equals("B") && !mode.equals("C");
+    }
+
+    /**
+     * Sends a file to the data connection with {@link FileChannel#transferTo}, which lets the
+     * kernel copy the file straight to the socket (sendfile) instead of passing every byte
+     * through user-space buffers. The data connection is closed afterwards to mark end of file.
+     *
+     * @param file the file to send
+     * @param offset the byte offset to start sending from
+     * @param end the byte offset to stop sending at (exclusive)
+     * @throws IOException if an I/O error occurs while sending the file
+    */
+    private void sendFileZeroCopy(File file, long offset, long end) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            transferToDataConnection(fileChannel, offset, end);
+        }
+    }
+
+    /**
+     * Sends part of an open file to the data connection with {@link FileChannel#transferTo},
+     * then closes the data connection to mark end of file. Under a rate limit the file is sent
+     * in chunks, each paid for before the next.
+     *
+     * @param fileChannel the channel of the file to send
+     * @param offset the byte offset to start sending from
+     * @param end the byte offset to stop sending at (exclusive)
+     * @throws IOException if an I/O error occurs while sending the file
+    */
+    private void transferToDataConnection(FileChannel fileChannel, long offset, long end) throws IOException {
+        try (SocketChannel socketChannel = dataSocket.getChannel()) {
+            long position = offset;
+            while (position < end) {
+                long transferred = fileChannel.transferTo(position, bandwidth.chunkSize(end - position), socketChannel);
+                position += transferred;
+                bandwidth.sent(transferred);
+            }
+        }
+    }
+
+    /**
+     * Sends a file held by the {@link FileContentCache} to the data connection, writing the
+     * off-heap buffer straight to the socket. The data connection is closed afterwards to mark
+     * end of file.
+     *
+     * @param content the cached file to send
+     * @param offset the byte offset to start sending from
+     * @param end the byte offset to stop sending at (exclusive)
+     * @throws IOException if an I/O error occurs while sending the file
+    */
+    private void sendCachedContent(FileContentCache.Entry content, long offset, long end) throws IOException {
+        ByteBuffer buffer = content.getContent();
+        buffer.limit((int) end).position((int) offset);
+        try (SocketChannel socketChannel = dataSocket.getChannel()) {
+            while (buffer.hasRemaining()) {
+                // Under a rate limit only a chunk is offered to the socket before it is paid for
+                buffer.limit((int) Math.min(end, buffer.position() + bandwidth.chunkSize(end - buffer.position())));
+                int written = socketChannel.write(buffer);
+                buffer.limit((int) end);
+                bandwidth.sent(written);
+            }
+        }
+    }
+
+    /**
+     * Opens a file for a RETR that passes its bytes through user-space framing (block mode,
+     * compression or ASCII conversion). Files of at least {@link ServerConfig#MMAP_THRESHOLD}
+     * bytes are read through a sliding memory-mapped window instead of read() calls; a transfer
+     * reading such a window also catches the InternalError raised if the file is truncated under it.
+     *
+     * @param file the file to open
+     * @param offset the byte offset to start reading from
+     * @return an input stream over the file contents
+     * @throws IOException if the file cannot be opened
+    */
+    private InputStream openFileInputStream(File file, long offset) throws IOException {
+        if (ServerConfig.MMAP_THRESHOLD > 0 && file.length() >= ServerConfig.MMAP_THRESHOLD) {
+            return new MappedFileInputStream(file, ServerConfig.MMAP_WINDOW_SIZE, offset);
+        }
+        FileInputStream fileInputStream = new FileInputStream(file);
+        fileInputStream.getChannel().position(offset);
+        return fileInputStream;
+    }
+
+    /**
+     * Opens a file for a STOR. Without a restart offset the file is created or truncated as usual;
+     * with one, the existing file is kept and written from that offset on.
+     *
+     * @param path the path of the file to write
+     * @param offset the byte offset to start writing at
+     * @return an output stream writing into the file
+     * @throws IOException if the file cannot be opened
+    */
+    private OutputStream openFileOutputStream(String path, long offset) throws IOException {
+        if (offset == 0) {
+            return new FileOutputStream(path);
+        }
+        FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        fileChannel.position(offset);
+        return Channels.newOutputStream(fileChannel);
+    }
+
+    /**
+     * Receives a file from the data connection with {@link FileChannel#transferFrom}. There is no
+     * kernel shortcut from a socket to a file, so the JDK still reads the data into a temporary
+     * buffer and writes it out, but in chunks of {@link ServerConfig#STOR_CHUNK_SIZE} bytes per
+     * call, with no stream layers in between, and the bytes can be hashed on the way. With a
+     * restart offset the existing file is kept and written from that offset on; otherwise it is
+     * truncated first. The offset must not be past the end of the file.
+     *
+     * @param path the path of the file to create or overwrite
+     * @param offset the byte offset to start writing at
+     * @param digest the digest to add the received bytes to, or null to not hash them
+     * @return the number of bytes received
+     * @throws IOException if an I/O error occurs while receiving the file
+    */
+    private long receiveFileZeroCopy(String path, long offset, MessageDigest digest) throws IOException {
+        try (FileChannel fileChannel = offset == 0
+                ? FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            SocketChannel socketChannel = dataSocket.getChannel()) {
+            long position = offset;
+            long transferred;
+            // transferFrom returns 0 once the client has closed the connection, as the blocking socket
+            // read then ends the stream, but also for a position past the end of the file, which is refused earlier
+            ReadableByteChannel source = bandwidth.throttle(socketChannel);
+            if (digest != null) {
+                source = DigestIndex.digesting(source, digest);
+            }
+            while ((transferred = fileChannel.transferFrom(source, position, ServerConfig.STOR_CHUNK_SIZE)) > 0) {
+                position += transferred;
+            }
+            return position - offset;
+        }
+    }
+
+    /**
+     * Formats the size and speed of a finished transfer for the 226 reply.
+     *
+     * @param bytes the number of bytes transferred
+     * @param startTime the {@link System#nanoTime()} value taken when the transfer started
+     * @return the text appended to the 226 reply, e.g. " (1048576 bytes in 0.012 s, 87381333 bytes/sec)"
+    */
+    private String formatThroughput(long bytes, long startTime) {
+        double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+        return String.format(Locale.ROOT, " (%d bytes in %.3f s, %d bytes/sec)", bytes, seconds, (long) (bytes / seconds));
+    }
+
+    /**
+     * Handles the DELE command by attempting to delete a file from the server.
+     * The method checks if the specified file exists and is a regular file. If the file exists,
+     * it attempts to delete the file. If the deletion is successful, a success response is sent
+     * to the client. If the deletion fails due to permission issues or other reasons, appropriate
+     * failure responses are sent to the client. If the file does not exist, a "File not found"
+     * response is sent to the client.
+     *
+     * @param filename the name of the file to delete from the server
+    */
+    private void handleDelCommand(String filename) {
+        File file = new File(serverDIR + filename);
+        if (file.exists() && file.isFile()) {
+            try {
+                // Attempt to delete the file
+                if (file.delete()) {
+                    invalidateCaches(file.toPath());
+                    // Send a success response to the client
+                    reply("250 File deleted successfully\r\n");
+                } else {
+                    // Send a failure response to the client
+                    reply("550 Failed to delete file\r\n");
+                }
+            } catch (SecurityException e) {
+                // Send a failure response to the client
+                reply("550 Permission denied\r\n");
+            }
+        } else {
+            // Send a "File not found" response to the client
+            reply("550 File not found\r\n");
+        }
+    }
+
+
+    /**
+     * Stores a file received through the data socket into the server's directory.
+     * The method reads data from the input stream of the data socket and writes it to
+     * a file in the server's directory with the specified filename. It uses a buffer
+     * to handle the data transfer in chunks. After successfully storing the file, the
+     * data socket is closed.
+     *
+     * @param filename the name of the file to store in the server's directory
+    */
+    private void storeFile(String filename) {
+        ByteBuffer pooledBuffer = BufferPool.HEAP.acquire(8192);
+        try (
+            InputStream inputStream = dataSocket.getInputStream();
+            OutputStream outputStream = new FileOutputStream(new File(serverDIR + currentDIR + filename));
+        ) {
+            byte[] buffer = pooledBuffer.array();
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer, 0, 8192))!= -1) {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            BufferPool.HEAP.release(pooledBuffer);
+            try {
+                dataSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * Handles the DELT command, which uploads a changed file as a delta against the server's copy
+     * (see {@link DeltaSignature}). Both subcommands need a data connection. "DELT SIGS name"
+     * sends the block signatures of the server's copy, or an empty signature if there is none.
+     * "DELT STOR name" then receives literal data and block references, rebuilds the file beside
+     * the old copy and replaces it atomically once the client's hash of the new file matches.
+     *
+     * @param parts the command and its arguments
+    */
+    private void handleDeltCommand(String[] parts) {
+        if (parts.length < 3 || !(parts[1].equalsIgnoreCase("SIGS") || parts[1].equalsIgnoreCase("STOR"))) {
+            reply("501 Syntax error in parameters or arguments\r\n");
+            closeDataConnection();
+            return;
+        }
+        Path target = Paths.get(serverDIR + currentDIR + parts[2]);
+        if (Files.isDirectory(target)) {
+            reply("550 Not a file\r\n");
+            closeDataConnection();
+            return;
+        }
+
+        reply("150 File status [" + parts[2] + "] okay; about to open data connection\r\n");
+        try {
+            acceptDataConnection();
+        } catch (IOException e) {
+            e.printStackTrace();
+            reply("425 Can't open data connection\r\n");
+            closeDataConnection();
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        if (parts[1].equalsIgnoreCase("SIGS")) {
+            try (FileChannel fileChannel = Files.isRegularFile(target) ? FileChannel.open(target, StandardOpenOption.READ) : null;
+                DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(dataSocket.getOutputStream(), 64 * 1024))) {
+                DeltaSignature signature = DeltaSignature.compute(fileChannel, ServerConfig.DELTA_BLOCK_SIZE);
+                signature.write(outputStream);
+                reply("226 Sent " + signature.getBlockCount() + " block signatures of " + signature.getBlockSize() + " bytes\r\n");
+            } catch (IOException e) {
+                e.printStackTrace();
+                reply("451 Requested action aborted; local error in processing\r\n");
+            }
+        } else {
+            try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(bandwidth.throttle(dataSocket.getInputStream()), 64 * 1024))) {
+                DeltaDecoder decoder = new DeltaDecoder(target);
+                decoder.decode(inputStream);
+                // The rebuilt file was checked against the client's SHA-256, so that digest is known for free
+                DigestIndex.getShared().put(target, "SHA-256", decoder.getDigest());
+                reply("226 File rebuilt from " + decoder.getLiteralBytes() + " literal bytes and " + decoder.getCopiedBytes()
+                        + " bytes of the old copy" + formatThroughput(decoder.getLiteralBytes(), startTime) + "\r\n");
+            } catch (IOException e) {
+                e.printStackTrace();
+                reply("451 Requested action aborted; delta upload failed: " + e.getMessage() + "\r\n");
+            }
+            invalidateCaches(target);
+        }
+        closeDataConnection();
+    }
+
+    /**
+     * Handles the UPLD command, which lets a client upload one large file as byte ranges over
+     * several sessions at once. "UPLD OPEN name size" starts an upload in the current directory
+     * and replies with a token. Any logged-in session that knows the token may then send
+     * "UPLD PART token offset" after PASV to store one range at its offset. "UPLD DONE token"
+     * publishes the file under its name once every byte has arrived; until then the file is not
+     * visible. "UPLD ABOR token" abandons the upload.
+     *
+     * @param parts the command and its arguments
+    */
+    private void handleUpldCommand(String[] parts) {
+        if (parts.length < 3) {
+            reply("501 Syntax error in parameters or arguments\r\n");
+            return;
+        }
+
+        try {
+            switch (parts[1].toUpperCase()) {
+                case "OPEN":
+                    if (parts.length < 4) {
+                        reply("501 Syntax error in parameters or arguments\r\n");
+                        return;
+                    }
+                    long size = Long.parseLong(parts[3]);
+                    if (size < 0) {
+                        reply("501 Syntax error in parameters or arguments\r\n");
+                        return;
+                    }
+                    ChunkedUpload upload = ChunkedUpload.open(Paths.get(serverDIR + currentDIR + parts[2]), size, currentUser.getUsername());
+                    if (upload == null) {
+                        reply("450 Too many unfinished uploads; send UPLD DONE or UPLD ABOR first\r\n");
+                        return;
+                    }
+                    reply("250 Upload " + upload.getToken() + " opened for [" + parts[2] + "]\r\n");
+                    break;
+                case "PART":
+                    if (parts.length < 4) {
+                        reply("501 Syntax error in parameters or arguments\r\n");
+                        return;
+                    }
+                    handleUploadPart(ChunkedUpload.get(parts[2]), Long.parseLong(parts[3]));
+                    break;
+                case "DONE":
+                    ChunkedUpload completed = ChunkedUpload.get(parts[2]);
+                    if (completed == null) {
+                        reply("550 No such upload\r\n");
+                    } else if (completed.missingBytes() > 0) {
+                        reply("451 Upload incomplete; " + completed.missingBytes() + " bytes missing\r\n");
+                    } else if (!completed.commit()) {
+                        reply("550 No such upload\r\n"); // Another session committed or abandoned it first
+                    } else {
+                        invalidateCaches(completed.getTarget());
+                        reply("250 Upload complete; file published\r\n");
+                    }
+                    break;
+                case "ABOR":
+                    ChunkedUpload abandoned = ChunkedUpload.get(parts[2]);
+                    if (abandoned == null || !abandoned.abort()) {
+                        reply("550 No such upload\r\n");
+                    } else {
+                        reply("250 Upload abandoned\r\n");
+                    }
+                    break;
+                default:
+                    reply("504 Command not implemented for that parameter\r\n");
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            reply("501 Syntax error in parameters or arguments\r\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+            reply("451 Requested action aborted. Local error in processing\r\n");
+        }
+    }
+
+    /**
+     * Receives one range of a chunked upload from the data connection and writes it at its
+     * offset with positional writes, so ranges from different sessions never interfere.
+     *
+     * @param upload the upload the range belongs to, or null if the token is unknown
+     * @param offset the offset of the first byte of the range
+    */
+    private void handleUploadPart(ChunkedUpload upload, long offset) {
+        if (upload == null) {
+            reply("550 No such upload\r\n");
+            return;
+        }
+        if (!isPASV) {
+            reply("503 Bad sequence of commands\r\n");
+            return;
+        }
+        if (!isBinaryStream()) {
+            reply("504 Command not implemented for that parameter; UPLD requires TYPE I and MODE S\r\n");
+            return;
+        }
+
+        reply("150 Ready to receive range at " + offset + "\r\n");
+        try {
+            acceptDataConnection();
+        } catch (IOException e) {
+            e.printStackTrace();
+            reply("425 Can't open data connection\r\n");
+            closeDataConnection();
+            return;
+        }
+        try {
+            long startTime = System.nanoTime();
+            long bytesReceived;
+            try (SocketChannel socketChannel = dataSocket.getChannel()) {
+                bytesReceived = upload.receive(bandwidth.throttle(socketChannel), offset, ServerConfig.STOR_CHUNK_SIZE);
+            }
+            reply("226 Closing data connection; range stored" + formatThroughput(bytesReceived, startTime) + "\r\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+            reply("426 Connection closed; transfer aborted\r\n");
+        }
+        closeDataConnection();
+    }
+
+    /**
+     * Handles the SITE command. SITE COMPRESS LEVEL sets the deflate level used by MODE C in this
+     * session, from 0 (store) to 9 (smallest); SITE COMPRESS CODEC selects the codec framing MODE C
+     * data, which the client must then use as well. SITE COMPRESS alone shows the current settings.
+     * SITE CACHE shows the size and hit and miss counts of the in-memory file cache.
+     * SITE RATE shows and changes the bandwidth limits (see {@link #handleSiteRateCommand}).
+     *
+     * @param parts the command and its arguments
+    */
+    private void handleSiteCommand(String[] parts) {
+        if (parts.length == 2 && parts[1].equalsIgnoreCase("CACHE")) {
+            reply("200 Content cache: " + FileContentCache.getShared().getStatistics() + "\r\n");
+            return;
+        }
+        if (parts.length >= 2 && parts[1].equalsIgnoreCase("RATE")) {
+            handleSiteRateCommand(parts);
+            return;
+        }
+        if (parts.length < 2 || !parts[1].equalsIgnoreCase("COMPRESS")) {
+            reply("504 Command not implemented for that parameter\r\n");
+            return;
+        }
+
+        if (parts.length == 2) {
+            reply("200 MODE C uses " + compressionCodec.getName() + " level " + compressionLevel + "\r\n");
+        } else if (parts.length == 4 && parts[2].equalsIgnoreCase("LEVEL")) {
+            try {
+                int level = Integer.parseInt(parts[3]);
+                if (level < 0 || level > 9) {
+                    reply("501 Compression level must be between 0 and 9\r\n");
+                    return;
+                }
+                compressionLevel = level;
+                reply("200 Compression level set to " + level + "\r\n");
+            } catch (NumberFormatException e) {
+                reply("501 Syntax error in parameters or arguments\r\n");
+            }
+        } else if (parts.length == 4 && parts[2].equalsIgnoreCase("CODEC")) {
+            CompressionCodec codec = CompressionCodec.forName(parts[3]);
+            if (codec == null) {
+                reply("504 Unknown compression codec; use gzip or zlib\r\n");
+                return;
+            }
+            compressionCodec = codec;
+            reply("200 Compression codec set to " + codec.getName() + "\r\n");
+        } else {
+            reply("501 Syntax error in parameters or arguments\r\n");
+        }
+    }
+
+
+    /**
+     * Handles SITE RATE. Limits are in bytes per second in each direction, 0 for none.
+     * "SITE RATE" shows the limits that apply to the session and how much traffic they have
+     * held back. "SITE RATE SESSION n" limits this session's transfers. The user and global
+     * limits still apply on top, so only the users listed in {@link ServerConfig#RATE_ADMINS}
+     * may change them, with "SITE RATE USER [name] n" and "SITE RATE GLOBAL n". Changes take
+     * effect at once, also for transfers already running.
+     *
+     * @param parts the command and its arguments
+    */
+    private void handleSiteRateCommand(String[] parts) {
+        BandwidthShaper shaper = BandwidthShaper.getShared();
+        if (parts.length == 2) {
+            reply("200 Rate limits in bytes/sec, 0 for none: global " + shaper.getGlobalRate() + ", user " + bandwidth.getUsername()
+                    + " " + shaper.getUserRate(bandwidth.getUsername()) + ", session " + bandwidth.getRate() + "; "
+                    + shaper.getStatistics() + "; " + bandwidth.getStatistics() + "\r\n");
+            return;
+        }
+
+        String level = parts[2].toUpperCase(Locale.ROOT);
+        if (!level.equals("SESSION") && !level.equals("USER") && !level.equals("GLOBAL")) {
+            reply("504 Command not implemented for that parameter\r\n");
+            return;
+        }
+        boolean namedUser = level.equals("USER") && parts.length == 5;
+        if (parts.length != 4 && !namedUser) {
+            reply("501 Syntax error in parameters or arguments\r\n");
+            return;
+        }
+        long rate;
+        try {
+            rate = Long.parseLong(parts[parts.length - 1]);
+        } catch (NumberFormatException e) {
+            rate = -1;
+        }
+        if (rate < 0) {
+            reply("501 The rate must be a number of bytes per second, 0 for no limit\r\n");
+            return;
+        }
+        if (!level.equals("SESSION") && !shaper.isAdmin(bandwidth.getUsername())) {
+            reply("550 Permission denied; only rate administrators may change user and global limits\r\n");
+            return;
+        }
+
+        switch (level) {
+            case "SESSION":
+                bandwidth.setRate(rate);
+                reply("200 Session rate limit set to " + rate + "\r\n");
+                break;
+            case "USER":
+                String user = namedUser ? parts[3] : bandwidth.getUsername();
+                shaper.setUserRate(user, rate);
+                reply("200 Rate limit of user " + user + " set to " + rate + "\r\n");
+                break;
+            default:
+                shaper.setGlobalRate(rate);
+                reply("200 Global rate limit set to " + rate + "\r\n");
+                break;
+        }
+    }
+
+
+    /**
+     * Handles the REST command by remembering a byte offset for the next transfer.
+     * A following RETR sends the file from that offset on, and a following STOR writes
+     * into the existing file from that offset on instead of truncating it, so an
+     * interrupted transfer can be resumed. The offset applies to one transfer only.
+     *
+     * @param offsetInput the restart offset in bytes
+    */
+    private void handleRestCommand(String offsetInput) {
+        try {
+            long offset = Long.parseLong(offsetInput);
+            if (offset < 0) {
+                reply("501 Syntax error in parameters or arguments\r\n");
+                return;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            restartOffset = offset;
+            reply("350 Restarting at " + offset + ". Send STOR or RETR to initiate transfer\r\n");
+        } catch (NumberFormatException e) {
+            reply("501 Syntax error in parameters or arguments\r\n");
         }
     }
 
+
     /**
-     * Handles the PASV command by setting up a passive mode data connection.
-     * A random port is generated for passive mode, and the server's IP address along with
-     * the passive port information is sent to the client. Once the passive mode setup
-     * is complete, the method waits for an incoming data connection.
-     * 
-     * @throws IOException if an I/O error occurs while setting up the passive mode
-     *                     or accepting the incoming data connection
+     * Handles the RANG command by limiting the next RETR to a byte range, so that a client can
+     * download one file as several segments over parallel sessions. Both offsets are inclusive;
+     * "RANG 1 0" clears a range that was set earlier. Ranges are only served in binary stream mode.
+     *
+     * @param startInput the first byte offset of the range
+     * @param endInput the last byte offset of the range
     */
-    private void handlePasvCommand() {
+    private void handleRangCommand(String startInput, String endInput) {
         try {
-            // Generate a random port for passive mode
-            int passivePort = getRandomPort();
-            serverSocket = new ServerSocket(passivePort);
-
-            // Get server's IP address
-            String ipAddress = clientSocket.getLocalAddress().getHostAddress().replace(".", ",");
-
-            // Inform the client about the passive mode setup
-            writer.printf("227 Entering Passive Mode (" + ipAddress + "," + (passivePort / 256) + ","
-                    + (passivePort % 256) + ")\r\n");
-            
-            isPASV = true;
+            long start = Long.parseLong(startInput);
+            long end = Long.parseLong(endInput);
+            if (start == 1 && end == 0) {
+                restartOffset = 0;
+                rangeEnd = -1;
+                reply("350 Restarting at 0. Byte range cleared\r\n");
+                return;
+            }
+            if (start < 0 || end < start) {
+                reply("501 Syntax error in parameters or arguments\r\n");
+                return;
+            }
+            restartOffset = start;
+            rangeEnd = end + 1;
+            reply("350 Restarting at " + start + ". Ending at " + end + "\r\n");
+        } catch (NumberFormatException e) {
+            reply("501 Syntax error in parameters or arguments\r\n");
+        }
+    }
 
-            // Accept incoming data connection
-            dataSocket = serverSocket.accept();
+    /**
+     * Handles the SIZE command by replying with the size of a file in bytes.
+     *
+     * @param filename the name of the file, relative to the current directory
+    */
+    private void handleSizeCommand(String filename) {
+        BasicFileAttributes attributes = readAttributes(filename);
+        if (attributes != null && attributes.isRegularFile()) {
+            reply("213 " + attributes.size() + "\r\n");
+        } else {
+            reply("550 File not found or cannot be accessed\r\n");
+        }
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Handles the MDTM command by replying with the modification time of a file, in UTC as
+     * YYYYMMDDHHMMSS.sss (RFC 3659).
+     *
+     * @param filename the name of the file, relative to the current directory
+    */
+    private void handleMdtmCommand(String filename) {
+        BasicFileAttributes attributes = readAttributes(filename);
+        if (attributes != null && attributes.isRegularFile()) {
+            reply("213 " + FileFacts.formatTime(attributes.lastModifiedTime().toMillis()) + "\r\n");
+        } else {
+            reply("550 File not found or cannot be accessed\r\n");
         }
     }
 
     /**
-     * Handles the STOR command by receiving data from the client and storing it in a file.
-     * The method creates input and output streams to read data from the dataSocket and write
-     * the received data to the specified file. It supports different transfer modes: "S" (Stream),
-     * "B" (Block), and "C" (Compressed). After receiving the data and storing it in the file,
-     * a success response is sent to the client, and the data connection is closed.
-     * 
-     * @param filename the name of the file to store the received data
-     * @throws IOException if an I/O error occurs while handling the STOR command
+     * Handles the MLST command by replying with the facts of one file or directory on the
+     * control connection, in the multi-line form of RFC 3659.
+     *
+     * @param name the name of the file or directory, relative to the current directory;
+     *             empty for the current directory itself
     */
-    private void handleSTORCommand(String filename) {
-        if (type.equals("A") && !filename.split("\\.")[1].equals("txt")) {
-            writer.printf("504 Command not implemented for that parameter; TYPE is set to A (only Text-based files)\r\n");
+    private void handleMlstCommand(String name) {
+        BasicFileAttributes attributes = readAttributes(name);
+        if (attributes == null) {
+            reply("550 File not found or cannot be accessed\r\n");
             return;
         }
+        String shownName = name.isEmpty() ? currentDIR : name;
+        reply("250-Listing " + shownName + "\r\n"
+                + " " + FileFacts.format(shownName, attributes) + "\r\n"
+                + "250 End\r\n");
+    }
 
-        if (stru.equals("R") && !filename.split("\\.")[1].equals("txt")) {
-            writer.printf("504 Command not implemented for that parameter; STRU is set to R (only Text-based files)\r\n");
+    /**
+     * Handles the MLSD command by streaming the facts of every entry of a directory over the
+     * data connection, one line per entry, reading each entry's attributes with one call.
+     *
+     * @param name the directory, relative to the current directory; empty for the current directory
+    */
+    private void handleMlsdCommand(String name) {
+        BasicFileAttributes directoryAttributes = readAttributes(name);
+        if (directoryAttributes == null || !directoryAttributes.isDirectory()) {
+            reply("550 Directory not found\r\n");
+            closeDataConnection();
             return;
         }
 
-        writer.printf("150 Ready to receive file [" + filename + "].\r\n");
-
-        if (stru.equals("R") && type.equals("A")) {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"));
-                DataOutputStream outputStream = new DataOutputStream(dataSocket.getOutputStream())) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    outputStream.write(line.getBytes("UTF-8"));
-                    outputStream.write("\n".getBytes("UTF-8")); // Append newline character
-                }
-
-                reader.close();
-                outputStream.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        reply("150 Here comes the directory listing\r\n");
+        try {
+            acceptDataConnection();
+        } catch (IOException e) {
+            e.printStackTrace();
+            reply("425 Can't open data connection\r\n");
+            closeDataConnection();
+            return;
         }
-        else {
-            try {
-                // Create a BufferedInputStream to read data from the client
-                BufferedInputStream dataInputStream = new BufferedInputStream(dataSocket.getInputStream());
-
-                // Create a FileOutputStream to write the received data to the file
-                FileOutputStream outputStream = new FileOutputStream(serverDIR + currentDIR + filename);
-
-                // Buffer to hold data temporarily
-                int bufferSize = 8192;
-                byte[] buffer = new byte[bufferSize];
-                int bytesRead;
-                switch (mode) {
-                    case "S":
-                        while ((bytesRead = dataInputStream.read(buffer)) != -1) 
-                            outputStream.write(buffer, 0, bytesRead);
-                        break;      
-                    case "B":
-                        buffer = new byte[bufferSize + 3];
-                        while ((bytesRead = dataInputStream.read(buffer)) != -1) {
-                            int dataSize = (buffer[1] << 8) | (buffer[2] & 0xFF); // Retrieving size from the 2-byte header
-
-                            if (dataSize <= 0) {
-                                writer.printf("451: Requested action aborted. Local error in processing.\r\n");
-                                return;
-                            }
-                            outputStream.write(buffer, 3, dataSize); // Skipping the header bytes
-                        }
-                        break;
 
-                    case "C":
-                        try (GZIPInputStream gzipInputStream = new GZIPInputStream(dataInputStream)) {
-                            while ((bytesRead = gzipInputStream.read(buffer)) != -1)
-                                outputStream.write(buffer, 0, bytesRead);
-                            gzipInputStream.close();
-                        }
-                        break;
-                
-                    default:
-                        break;
+        Path directory = Paths.get(serverDIR + currentDIR + name);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+            OutputStream outputStream = new BufferedOutputStream(dataSocket.getOutputStream(), 64 * 1024)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue; // Deleted while the directory was read
                 }
-
-                // Send a success response to the client
-                writer.printf("226 Closing data connection; transfer complete\r\n");
-
-                // Close streams
-                outputStream.close();
-                dataInputStream.close();
-                isPASV = false;
-            } catch (IOException e) {
-                e.printStackTrace();
+                String line = FileFacts.format(entry.getFileName().toString(), attributes) + "\r\n";
+                outputStream.write(line.getBytes(StandardCharsets.UTF_8));
             }
+            outputStream.flush();
+            reply("226 Directory send OK\r\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+            reply("451 Requested action aborted; local error in processing\r\n");
         }
+        closeDataConnection();
     }
 
     /**
-     * Handles the RETR command by retrieving a file from the server and sending it to the client.
-     * The method checks if the specified file exists and is a regular file. If the file exists,
-     * it sends a status message to the client and opens a data connection for data transfer. If the
-     * transfer mode is "C" (Compressed), the file is sent as a compressed stream using GZIP compression.
-     * Otherwise, the file is sent as-is. The method also supports ASCII mode conversion if the transfer
-     * type is set to "A" (ASCII). After transferring the file, a success response is sent to the client,
-     * and the data connection is closed.
+     * Reads the attributes of a file or directory with a single bulk call.
      *
-     * @param filename the name of the file to retrieve from the server
+     * @param name the name, relative to the current directory
+     * @return the attributes, or null if the file does not exist or cannot be read
     */
-    private void handleRetrCommand(String filename) {
-        File file = new File(serverDIR + currentDIR + filename);
-        if (file.exists() && file.isFile()) {
-            if (type.equals("A") && !filename.split("\\.")[1].equals("txt")) {
-                writer.printf("504 Command not implemented for that parameter; TYPE is set to A (only Text-based files)\r\n");
-                return;
-            }
+    private BasicFileAttributes readAttributes(String name) {
+        try {
+            return Files.readAttributes(Paths.get(serverDIR + currentDIR + name), BasicFileAttributes.class);
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
 
-            if (stru.equals("R") && !filename.split("\\.")[1].equals("txt")) {
-                writer.printf("504 Command not implemented for that parameter; STRU is set to R (only Text-based files)\r\n");
+    /**
+     * Handles the OPTS command. OPTS HASH shows the algorithm used by HASH and the digests in
+     * the 226 reply of transfers; OPTS HASH followed by an algorithm selects it for this session.
+     *
+     * @param parts the command and its arguments
+    */
+    private void handleOptsCommand(String[] parts) {
+        if (parts.length < 2 || !parts[1].equalsIgnoreCase("HASH")) {
+            reply("501 Option not understood\r\n");
+            return;
+        }
+        if (parts.length > 2) {
+            String algorithm = DigestIndex.canonicalName(parts[2]);
+            if (algorithm == null) {
+                reply("504 Unknown algorithm; use " + String.join(", ", DigestIndex.ALGORITHMS) + "\r\n");
                 return;
             }
-
-            writer.printf("150 File status [" + filename + "] okay; about to open data connection\r\n");
-
-            if (stru.equals("R") && type.equals("A")) {
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
-                    DataOutputStream outputStream = new DataOutputStream(dataSocket.getOutputStream())) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        outputStream.write(line.getBytes("UTF-8"));
-                        outputStream.write("\n".getBytes("UTF-8")); // Append newline character
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-            else if (mode.equals("C")) {
-                try (FileInputStream fileInputStream = new FileInputStream(file);
-                    GZIPOutputStream gzipOutputStream = new GZIPOutputStream(dataSocket.getOutputStream())) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                        if (type.equals("A")) {
-                            // Convert each byte to ASCII
-                            System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
-                            for (int i = 0; i < bytesRead; i++) {
-                                // Convert byte to ASCII representation
-                                buffer[i] = (byte) (buffer[i] & 0x7F);
-                            }
-                            System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
-                        }
-                            
-                        gzipOutputStream.write(buffer, 0, bytesRead);
-                    }       
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            else {
-                try (FileInputStream fileInputStream = new FileInputStream(file);
-                    BufferedInputStream bufferedInputStream = new BufferedInputStream(fileInputStream);
-                    DataOutputStream outputStream = new DataOutputStream(dataSocket.getOutputStream())) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    
-                    while ((bytesRead = bufferedInputStream.read(buffer)) != -1) {
-                        if (mode.equals("B")) {
-                            // Block header: 1 byte for description + 2 bytes for size
-                            byte[] header = new byte[3];
-                            header[0] = 0x00; // Description byte
-                            header[1] = (byte) ((bytesRead >> 8) & 0xFF); // High byte of size
-                            header[2] = (byte) (bytesRead & 0xFF); // Low byte of size
-                            outputStream.write(header);
-                        }
-
-                        if (type.equals("A")) {
-                            // Convert each byte to ASCII
-                            System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
-                            for (int i = 0; i < bytesRead; i++) {
-                                // Convert byte to ASCII representation
-                                buffer[i] = (byte) (buffer[i] & 0x7F);
-                            }
-                            System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
-                        }
-                        // Write file contents line by line to the data connection output stream
-                        outputStream.write(buffer, 0, bytesRead);
-                    }
-
-                    if (mode.equals("B")) {
-                        byte[] header = new byte[3];
-                        header[0] = 0x40; // Description byte
-                        header[1] = 0x00; // High byte of size
-                        header[2] = 0x00; // Low byte of size
-                        outputStream.write(header);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-
-
-            writer.printf("226 Closing data connection; transfer complete\r\n");
-            isPASV = false;
-
-            // Close the dataSocket and serverSocket
-            // dataSocket.close();
-            // serverSocket.close();
-        } else {
-            writer.printf("550 File not found or cannot be accessed\r\n");
+            hashAlgorithm = algorithm;
         }
+        reply("200 " + hashAlgorithm + "\r\n");
+    }
 
+    /**
+     * Handles the HASH command by replying with the digest of a whole file, computed with the
+     * session's OPTS HASH algorithm, as "213 algorithm 0-last digest name". The digest comes
+     * from the {@link DigestIndex} when the file has not changed since it was last hashed.
+     *
+     * @param filename the name of the file, relative to the current directory
+    */
+    private void handleHashCommand(String filename) {
+        // Read once, so a file deleted meanwhile cannot leave the range without a size
+        BasicFileAttributes attributes = readAttributes(filename);
+        String hex = fileDigest(filename, attributes, hashAlgorithm);
+        if (hex == null) {
+            reply("550 File not found or cannot be accessed\r\n");
+            return;
+        }
+        reply("213 " + hashAlgorithm + " 0-" + Math.max(attributes.size() - 1, 0) + " " + hex + " " + filename + "\r\n");
     }
 
+    /**
+     * Handles XCRC, XMD5, XSHA1 and XSHA256 by replying with the digest of a whole file in the
+     * given algorithm, as "250 digest". CRC32 values are shown in uppercase as other servers do.
+     *
+     * @param algorithm the canonical algorithm name
+     * @param filename the name of the file, relative to the current directory
+    */
+    private void handleXHashCommand(String algorithm, String filename) {
+        String hex = fileDigest(filename, readAttributes(filename), algorithm);
+        if (hex == null) {
+            reply("550 File not found or cannot be accessed\r\n");
+            return;
+        }
+        reply("250 " + (algorithm.equals("CRC32") ? hex.toUpperCase() : hex) + "\r\n");
+    }
 
     /**
-     * Handles the DELE command by attempting to delete a file from the server.
-     * The method checks if the specified file exists and is a regular file. If the file exists,
-     * it attempts to delete the file. If the deletion is successful, a success response is sent
-     * to the client. If the deletion fails due to permission issues or other reasons, appropriate
-     * failure responses are sent to the client. If the file does not exist, a "File not found"
-     * response is sent to the client.
+     * Gets the digest of a file from the {@link DigestIndex}, hashing it only if it changed.
      *
-     * @param filename the name of the file to delete from the server
+     * @param filename the name of the file, relative to the current directory
+     * @param attributes the attributes of the file, or null if it does not exist
+     * @param algorithm the canonical algorithm name
+     * @return the digest as lowercase hex, or null if the file does not exist or cannot be read
     */
-    private void handleDelCommand(String filename) {
-        File file = new File(serverDIR + filename);
-        if (file.exists() && file.isFile()) {
-            try {
-                // Attempt to delete the file
-                if (file.delete()) {
-                    // Send a success response to the client
-                    writer.printf("250 File deleted successfully\r\n");
-                } else {
-                    // Send a failure response to the client
-                    writer.printf("550 Failed to delete file\r\n");
-                }
-            } catch (SecurityException e) {
-                // Send a failure response to the client
-                writer.printf("550 Permission denied\r\n");
-            }
-        } else {
-            // Send a "File not found" response to the client
-            writer.printf("550 File not found\r\n");
+    private String fileDigest(String filename, BasicFileAttributes attributes, String algorithm) {
+        if (attributes == null || !attributes.isRegularFile()) {
+            return null;
+        }
+        try {
+            return DigestIndex.getShared().getDigest(Paths.get(serverDIR + currentDIR + filename), attributes, algorithm);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
     }
 
+    /**
+     * Adds bytes passing through a transfer to its inline digest.
+     *
+     * @param digest the transfer's digest, or null if it is not hashed inline
+     * @param buffer the buffer holding the bytes
+     * @param length the number of bytes at the start of the buffer
+    */
+    private void updateDigest(MessageDigest digest, byte[] buffer, int length) {
+        if (digest != null) {
+            digest.update(buffer, 0, length);
+        }
+    }
 
     /**
-     * Stores a file received through the data socket into the server's directory.
-     * The method reads data from the input stream of the data socket and writes it to
-     * a file in the server's directory with the specified filename. It uses a buffer
-     * to handle the data transfer in chunks. After successfully storing the file, the
-     * data socket is closed.
+     * Finishes the digest computed while a whole file was sent or received, records it in the
+     * {@link DigestIndex} and formats it for the 226 reply. Transfers that could not hash the
+     * bytes on the way, such as zero-copy ones, take the digest from the index instead, which
+     * reads the file only if it changed since it was last hashed.
      *
-     * @param filename the name of the file to store in the server's directory
+     * @param file the file that was transferred
+     * @param digest the digest of every byte of the file, or null if it was not computed inline
+     * @param size the file size when a download started, or -1 for an upload
+     * @param modified the file's modification time when a download started
+     * @return the text appended to the 226 reply, e.g. " SHA-256=9f86...", or "" if there is none
     */
-    private void storeFile(String filename) {
-        try (
-            InputStream inputStream = dataSocket.getInputStream();
-            OutputStream outputStream = new FileOutputStream(new File(serverDIR + currentDIR + filename));
-        ) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer))!= -1) {
-                outputStream.write(buffer, 0, bytesRead);
+    private String formatDigest(Path file, MessageDigest digest, long size, long modified) {
+        try {
+            String hex;
+            if (digest == null) {
+                hex = DigestIndex.getShared().getDigest(file, hashAlgorithm);
+            } else if (size < 0) {
+                hex = HexFormat.of().formatHex(digest.digest());
+                DigestIndex.getShared().put(file, hashAlgorithm, hex);
+            } else {
+                hex = HexFormat.of().formatHex(digest.digest());
+                DigestIndex.getShared().put(file, size, modified, hashAlgorithm, hex);
             }
+            return " " + hashAlgorithm + "=" + hex;
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                dataSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            return "";
         }
     }
 
@@ -602,21 +1857,21 @@ public class ClientHandler implements Runnable {
         switch (modeInput) {
             case "S":
                 // Set transfer mode to Stream (default mode)
-                writer.printf("200 Transfer mode set to Stream\r\n");
+                reply("200 Transfer mode set to Stream\r\n");
                 mode = "S";
                 break;
             case "B":
                 // Set transfer mode to Block
-                writer.printf("200 Transfer mode set to Block\r\n");
+                reply("200 Transfer mode set to Block\r\n");
                 mode = "B";
                 break;
             case "C":
                 // Set transfer mode to Compressed
-                writer.printf("200 Transfer mode set to Compressed\r\n");
+                reply("200 Transfer mode set to Compressed\r\n");
                 mode = "C";
                 break;
             default:
-                writer.printf("504 Command not implemented for that parameter\r\n");
+                reply("504 Command not implemented for that parameter\r\n");
                 break;
         }
     }
@@ -635,16 +1890,16 @@ public class ClientHandler implements Runnable {
     private void handleTypeCommand(String typeInput) {
         if (typeInput.equals("A")) {
             // Set the data transfer type accordingly (ASCII)
-            writer.printf("200 Type set to A\r\n");
+            reply("200 Type set to A\r\n");
             type = "A";
         }
         else if (typeInput.equals("I")) {
             // Set the data transfer type accordingly (BINARY)
-            writer.printf("200 Type set to I\r\n");
+            reply("200 Type set to I\r\n");
             type = "I";
         }
         else {
-            writer.printf("504 Command not implemented for that parameter\r\n");
+            reply("504 Command not implemented for that parameter\r\n");
         }
     }
 
@@ -663,34 +1918,24 @@ public class ClientHandler implements Runnable {
         // Handle different structure types
         switch (structure) {
             case "F": // File structure
-                writer.printf("200 File structure selected\r\n");
+                reply("200 File structure selected\r\n");
                 stru = "F";
                 break;
             case "R": // Record structure
-                writer.printf("200 Record structure selected\r\n");
+                reply("200 Record structure selected\r\n");
                 stru = "R";
                 break;
             case "P": // Page structure
-                writer.printf("200 Page structure selected\r\n");
+                reply("200 Page structure selected\r\n");
                 stru = "P";
                 break;
             default:
                 // Invalid structure code
-                writer.printf("504 Command not implemented for that parameter\r\n");
+                reply("504 Command not implemented for that parameter\r\n");
                 break;
         }
     }
 
-/**
- * Generates a random port number within a specified range.
- * @return A randomly generated port number between {@link #MIN_PASSIVE_PORT} and {@link #MAX_PASSIVE_PORT}.
-*/
-
-    private int getRandomPort() {
-        Random random = new Random();
-        return random.nextInt(MAX_PASSIVE_PORT - MIN_PASSIVE_PORT + 1) + MIN_PASSIVE_PORT;
-    }
-
 /**
  * Checks if a directory exists at the specified path.
  *
@@ -766,35 +2011,48 @@ public class ClientHandler implements Runnable {
         return directory.delete();
     }
 
-/**
- * Generates a list of files and directories in the specified directory.
- *
- * @param currentDirectory The path of the directory to generate the list for.
- * @return A formatted string containing the list of files and directories in the specified directory.
- * @throws NullPointerException If the specified directory path is null.
-*/
-    private String getFileList(String currentDirectory) {
-        StringBuilder fileListBuilder = new StringBuilder();
-        File directory = new File(currentDirectory);
-        File[] files = directory.listFiles();
-
-        fileListBuilder.append("150 Here comes the directory listing\n");
-        fileListBuilder.append("Directory \"" + currentDIR + "\" has: \n\n");
-
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    // Append file name to the string
-                    fileListBuilder.append(file.getName()).append("\n");
-                } else if (file.isDirectory()) {
-                    // Append directory name with trailing slash to the string
-                    fileListBuilder.append(file.getName()).append("/\n");
-                }
+    /**
+     * Handles the LIST command. After PASV the listing of the current directory is streamed over
+     * the data connection, one name per line with a trailing slash on subdirectories, straight
+     * from the {@link DirectoryListingCache} or the directory itself. Without a data connection
+     * the listing is sent on the control connection between the 150 and 226 replies, as older
+     * clients expect.
+    */
+    private void handleListCommand() {
+        Path directory = Paths.get(serverDIR + currentDIR);
+        if (!isPASV) {
+            ByteArrayOutputStream listing = new ByteArrayOutputStream();
+            try {
+                DirectoryListingCache.getShared().list(directory, listing);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            reply("150 Here comes the directory listing\n"
+                    + "Directory \"" + currentDIR + "\" has: \n\n"
+                    + listing.toString(StandardCharsets.UTF_8)
+                    + "\n226 Directory send OK\r\n");
+            return;
+        }
+
+        reply("150 Here comes the directory listing for \"" + currentDIR + "\"\r\n");
+        try {
+            acceptDataConnection();
+        } catch (IOException e) {
+            e.printStackTrace();
+            reply("425 Can't open data connection\r\n");
+            closeDataConnection();
+            return;
         }
-        fileListBuilder.append("\n226 Directory send OK\r\n");
 
-        return fileListBuilder.toString();
+        try (OutputStream outputStream = new BufferedOutputStream(dataSocket.getOutputStream(), 64 * 1024)) {
+            DirectoryListingCache.getShared().list(directory, outputStream);
+            outputStream.flush();
+            reply("226 Directory send OK\r\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+            reply("451 Requested action aborted; local error in processing\r\n");
+        }
+        closeDataConnection();
     }
 
 }
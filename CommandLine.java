@@ -0,0 +1,205 @@
+/**
+ * CommandLine holds one control-connection command line as raw bytes in a buffer that is reused
+ * for every line of a session, so reading and dispatching a command allocates nothing. The verb
+ * is matched against a {@link CommandTable} straight from the bytes; the arguments are only
+ * turned into Strings when a handler asks for them. The buffer starts small, since nearly every
+ * command fits in a few dozen bytes, and only grows toward {@link #MAX_LENGTH} when a longer line
+ * arrives, so an idle session holds little memory.
+ *
+ * Fields are separated by single spaces and numbered as String.split(" ") would number them:
+ * field 0 is the verb, field 1 the first argument, and so on.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class CommandLine {
+    // Longest command line accepted, as on the nio engine
+    public static final int MAX_LENGTH = 8192;
+
+    // Room for a command with a typical path; doubled as needed up to MAX_LENGTH
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+
+    /**
+     * Empties the line before the bytes of the next one are appended.
+    */
+    public void clear() {
+        length = 0;
+    }
+
+    /**
+     * Appends one byte of the line.
+     *
+     * @param b The byte
+     * @return false if the line is already {@link #MAX_LENGTH} bytes long
+    */
+    public boolean append(byte b) {
+        if (length == MAX_LENGTH) {
+            return false;
+        }
+        ensureCapacity(length + 1);
+        bytes[length++] = b;
+        return true;
+    }
+
+    /**
+     * Appends bytes of the line.
+     *
+     * @param b The buffer holding the bytes
+     * @param off The offset of the first byte
+     * @param len The number of bytes
+     * @return false if the line would grow past {@link #MAX_LENGTH} bytes; nothing is appended then
+    */
+    public boolean append(byte[] b, int off, int len) {
+        if (len > MAX_LENGTH - length) {
+            return false;
+        }
+        ensureCapacity(length + len);
+        System.arraycopy(b, off, bytes, length, len);
+        length += len;
+        return true;
+    }
+
+    // Grows the buffer, keeping the line, so that it holds at least the given number of bytes
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.min(MAX_LENGTH, Math.max(capacity, bytes.length * 2)));
+        }
+    }
+
+    /**
+     * Replaces the line with the given text.
+     *
+     * @param line The command line, without the line terminator
+     * @return false if the line is longer than {@link #MAX_LENGTH} bytes
+    */
+    public boolean set(String line) {
+        clear();
+        byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+        return append(encoded, 0, encoded.length);
+    }
+
+    /**
+     * Drops a carriage return at the end of the line, left over from a CRLF terminator.
+    */
+    public void trimCarriageReturn() {
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+    }
+
+    /**
+     * Gets the buffer holding the line. Only the first {@link #length()} bytes belong to it, and
+     * appending to the line may replace the buffer.
+     *
+     * @return The buffer
+    */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets the length of the line in bytes.
+     *
+     * @return The length
+    */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Gets the length of the verb: the bytes before the first space.
+     *
+     * @return The verb length in bytes
+    */
+    public int verbLength() {
+        return fieldEnd(0);
+    }
+
+    /**
+     * Counts the fields of the line as String.split(" ") would, so empty fields at the end
+     * are not counted.
+     *
+     * @return The field count
+    */
+    public int fieldCount() {
+        int end = length;
+        while (end > 0 && bytes[end - 1] == ' ') {
+            end--;
+        }
+        if (end == 0) {
+            return 1; // String.split returns the whole, empty line
+        }
+        int count = 1;
+        for (int i = 0; i < end; i++) {
+            if (bytes[i] == ' ') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets one field of the line.
+     *
+     * @param index The field number, 0 for the verb
+     * @return The field, or an empty String if the line has fewer fields
+    */
+    public String field(int index) {
+        int start = fieldStart(index);
+        if (start < 0) {
+            return "";
+        }
+        return new String(bytes, start, fieldEnd(start) - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Splits the line into fields, for handlers that take all of them at once.
+     *
+     * @return The fields, as String.split(" ") would return them
+    */
+    public String[] fields() {
+        String[] fields = new String[fieldCount()];
+        int start = 0;
+        for (int i = 0; i < fields.length; i++) {
+            int end = fieldEnd(start);
+            fields[i] = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            start = end + 1;
+        }
+        return fields;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Finds where a field starts, or -1 if the line has fewer fields
+    private int fieldStart(int index) {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start = fieldEnd(start) + 1;
+            if (start > length) {
+                return -1;
+            }
+        }
+        return start;
+    }
+
+    // Finds the end of the field starting at the given offset: the next space or the end of the line
+    private int fieldEnd(int start) {
+        int end = start;
+        while (end < length && bytes[end] != ' ') {
+            end++;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * CommandTable maps command verbs to their handlers, built once when the server starts. A verb
+ * of up to eight ASCII bytes is packed into a long with its letters in uppercase, so a lookup
+ * straight from the bytes of a {@link CommandLine} is case-insensitive, compares one number per
+ * probe of an open-addressed array, and allocates nothing.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+ *
+ * @param <T> The type of the handlers
+*/
+
+import java.nio.charset.StandardCharsets;
+
+public class CommandTable<T> {
+    private static final int MAX_VERB_LENGTH = 8;
+
+    private final long[] keys;
+    private final Object[] values;
+    private final int mask;
+    private int size = 0;
+
+    /**
+     * Constructs an empty CommandTable.
+     *
+     * @param capacity The largest number of verbs the table will hold
+    */
+    public CommandTable(int capacity) {
+        // At most a quarter full, so probes stay short
+        int slots = Integer.highestOneBit(Math.max(capacity, 4) * 4 - 1) << 1;
+        keys = new long[slots];
+        values = new Object[slots];
+        mask = slots - 1;
+    }
+
+    /**
+     * Adds a verb to the table.
+     *
+     * @param verb The verb, at most eight ASCII characters
+     * @param value The handler of the verb
+     * @throws IllegalArgumentException if the verb cannot be packed or the table is full
+    */
+    public void put(String verb, T value) {
+        byte[] bytes = verb.getBytes(StandardCharsets.US_ASCII);
+        long key = pack(bytes, 0, bytes.length);
+        if (key == 0 || size * 4 >= keys.length) {
+            throw new IllegalArgumentException("Cannot add command " + verb);
+        }
+        int slot = slot(key);
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == 0) {
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    /**
+     * Finds the handler of a verb given as bytes, ignoring the case of its letters.
+     *
+     * @param bytes The buffer holding the verb
+     * @param off The offset of the verb
+     * @param len The length of the verb
+     * @return The handler, or null if the verb is not in the table
+    */
+    @SuppressWarnings("unchecked")
+    public T get(byte[] bytes, int off, int len) {
+        long key = pack(bytes, off, len);
+        if (key == 0) {
+            return null;
+        }
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return (T) values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the handler of the verb of a command line.
+     *
+     * @param line The command line
+     * @return The handler, or null if the verb is not in the table
+    */
+    public T get(CommandLine line) {
+        return get(line.bytes(), 0, line.verbLength());
+    }
+
+    /**
+     * Packs a verb into a long, one byte per character with letters in uppercase.
+     *
+     * @param bytes The buffer holding the verb
+     * @param off The offset of the verb
+     * @param len The length of the verb
+     * @return The packed verb, or 0 if it is empty, too long or not printable ASCII
+    */
+    static long pack(byte[] bytes, int off, int len) {
+        if (len == 0 || len > MAX_VERB_LENGTH) {
+            return 0;
+        }
+        long key = 0;
+        for (int i = off; i < off + len; i++) {
+            int b = bytes[i];
+            if (b <= ' ' || b > '~') {
+                return 0;
+            }
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            key = (key << 8) | b;
+        }
+        return key;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads the packed letters over the table
+        return (int) (hash >>> 40) & mask;
+    }
+}
@@ -0,0 +1,342 @@
+/**
+ * CompressedFileCache keeps the compressed form of recently downloaded files on disk, so that a
+ * MODE C RETR of a popular file streams stored bytes with zero-copy instead of deflating it again.
+ * Entries are keyed by the file's path, size and modification time together with the codec and
+ * level, so a changed file never matches an old entry. The first download of a file fills the
+ * cache as a side effect of streaming it. The cache is bounded by a byte budget and evicts the
+ * least recently used entries; STOR, DELE, RMD and parallel uploads invalidate the affected paths.
+ * The entry map is guarded by a monitor, but files are only opened and deleted outside it, so a
+ * session on a virtual thread never pins its carrier on the cache's disk I/O.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+public class CompressedFileCache {
+    private static final CompressedFileCache shared = new CompressedFileCache(Paths.get("Server", "cache"),
+            ServerConfig.COMPRESS_CACHE_BYTES, ServerConfig.COMPRESS_CACHE_MIN_SIZE);
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long minFileSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // in LRU order
+    private long totalBytes = 0;
+
+    /**
+     * Constructs a CompressedFileCache. Files left in the directory by an earlier run are removed.
+     *
+     * @param directory The directory holding the compressed files, outside the served tree
+     * @param maxBytes The byte budget for all compressed files, 0 to disable the cache
+     * @param minFileSize The smallest file worth caching
+    */
+    public CompressedFileCache(Path directory, long maxBytes, long minFileSize) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.minFileSize = minFileSize;
+        if (maxBytes > 0) {
+            try {
+                Files.createDirectories(directory);
+                try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory)) {
+                    for (Path leftover : leftovers) {
+                        Files.deleteIfExists(leftover);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Gets the cache shared by all sessions of this server.
+     *
+     * @return The shared cache
+    */
+    public static CompressedFileCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Looks up the compressed form of a file.
+     *
+     * @param source The file being downloaded
+     * @param variant The codec and level, e.g. "gzip level 6"
+     * @return The open cached copy, or null on a miss
+    */
+    public Hit lookup(Path source, String variant) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        try {
+            String key = key(source, variant);
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(key);
+            }
+            if (entry == null) {
+                return null;
+            }
+            // An entry evicted in the meantime is a miss; once open, the file stays readable after its deletion
+            return new Hit(FileChannel.open(entry.file, StandardOpenOption.READ), entry.summary);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts filling the cache with the compressed form of a file while it is being sent.
+     *
+     * @param source The file being downloaded
+     * @param variant The codec and level, e.g. "gzip level 6"
+     * @return The fill, or null if the file is not worth caching
+    */
+    public Fill fill(Path source, String variant) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        try {
+            long size = Files.size(source);
+            if (size < minFileSize || size > maxBytes) {
+                return null;
+            }
+            String key = key(source, variant);
+            String name = UUID.randomUUID().toString();
+            Path temporary = directory.resolve(name + ".tmp");
+            return new Fill(key, normalize(source), temporary, directory.resolve(name + ".z"), Files.newOutputStream(temporary));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Drops the cached copies of a file, or of every file under a directory.
+     *
+     * @param path The file or directory that changed
+    */
+    public void invalidate(Path path) {
+        Path normalized = normalize(path);
+        List<Entry> removed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.source.startsWith(normalized)) {
+                    iterator.remove();
+                    totalBytes -= entry.size;
+                    removed.add(entry);
+                }
+            }
+        }
+        delete(removed);
+    }
+
+    // Adds a filled entry, then evicts the least recently used entries until the budget is met
+    private void add(Entry entry) {
+        List<Entry> removed = new ArrayList<>();
+        synchronized (this) {
+            Entry replaced = entries.put(entry.key, entry);
+            if (replaced != null) {
+                totalBytes -= replaced.size;
+                removed.add(replaced);
+            }
+            totalBytes += entry.size;
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                totalBytes -= evicted.size;
+                removed.add(evicted);
+            }
+        }
+        delete(removed);
+    }
+
+    // Deletes the files of entries already taken out of the map
+    private static void delete(List<Entry> removed) {
+        for (Entry entry : removed) {
+            try {
+                Files.deleteIfExists(entry.file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    // The key changes whenever the file is rewritten, so stale entries are never served
+    private static String key(Path source, String variant) throws IOException {
+        Path normalized = normalize(source);
+        return normalized + "|" + Files.size(normalized) + "|" + Files.getLastModifiedTime(normalized).toMillis() + "|" + variant;
+    }
+
+    // One cached compressed file
+    private static class Entry {
+        final String key;
+        final Path source;
+        final Path file;
+        final long size;
+        final String summary;
+
+        Entry(String key, Path source, Path file, long size, String summary) {
+            this.key = key;
+            this.source = source;
+            this.file = file;
+            this.size = size;
+            this.summary = summary;
+        }
+    }
+
+    /**
+     * An open cached copy. The caller must close it.
+    */
+    public static class Hit implements Closeable {
+        private final FileChannel channel;
+        private final String summary;
+
+        private Hit(FileChannel channel, String summary) {
+            this.channel = channel;
+            this.summary = summary;
+        }
+
+        /**
+         * Gets the channel to read the compressed bytes from.
+         *
+         * @return The channel of the cached copy
+        */
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Gets the description of the compression recorded when the copy was made.
+         *
+         * @return The summary, e.g. "gzip level 6, ratio 0.421, 3 of 46 blocks stored raw"
+        */
+        public String getSummary() {
+            return summary;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A compressed copy being written while the file is sent. The copy only enters the cache
+     * when {@link #commit(String)} is called after a complete transfer.
+    */
+    public class Fill {
+        private final String key;
+        private final Path source;
+        private final Path temporary;
+        private final Path file;
+        private final OutputStream copy;
+        private boolean failed = false;
+
+        private Fill(String key, Path source, Path temporary, Path file, OutputStream copy) {
+            this.key = key;
+            this.source = source;
+            this.temporary = temporary;
+            this.file = file;
+            this.copy = copy;
+        }
+
+        /**
+         * Wraps the data connection so that everything written to it is also written to the copy.
+         * A failure to write the copy abandons the fill but does not affect the transfer.
+         *
+         * @param out The data connection output stream
+         * @return The stream to write compressed data to
+        */
+        public OutputStream tee(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    if (!failed) {
+                        try {
+                            copy.write(b, off, len);
+                        } catch (IOException e) {
+                            failed = true;
+                        }
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        copy.close();
+                    } catch (IOException e) {
+                        failed = true;
+                    }
+                    out.close();
+                }
+            };
+        }
+
+        /**
+         * Adds the copy to the cache after a complete transfer.
+         *
+         * @param summary The description of the compression, reported again on every hit
+        */
+        public void commit(String summary) {
+            try {
+                copy.close();
+                if (failed) {
+                    abort();
+                    return;
+                }
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+                add(new Entry(key, source, file, Files.size(file), summary));
+            } catch (IOException e) {
+                e.printStackTrace();
+                abort();
+            }
+        }
+
+        /**
+         * Discards the copy after a failed transfer.
+        */
+        public void abort() {
+            try {
+                copy.close();
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * CompressionCodec is the framing used by MODE C around a deflate stream. The server and the
+ * client must use the same codec; the session's codec is chosen with SITE COMPRESS CODEC.
+ * Compression itself, including the level and raw storage of incompressible blocks, is done by
+ * {@link CompressionOutputStream} through the codec's {@link Deflater}.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public interface CompressionCodec {
+    /**
+     * Gets the name used to select this codec.
+     *
+     * @return The codec name
+    */
+    String getName();
+
+    /**
+     * Creates a deflater producing the raw or wrapped deflate data this codec's framing expects.
+     *
+     * @param level The initial compression level, 0 to 9
+     * @return A new deflater
+    */
+    Deflater newDeflater(int level);
+
+    /**
+     * Wraps a stream so that data written to it is compressed with the given deflater.
+     * Closing the returned stream ends the deflater.
+     *
+     * @param out The stream receiving compressed data
+     * @param deflater A deflater from {@link #newDeflater(int)}
+     * @return The compressing stream
+     * @throws IOException if the codec header cannot be written
+    */
+    DeflaterOutputStream compress(OutputStream out, Deflater deflater) throws IOException;
+
+    /**
+     * Creates the checksum this codec's trailer carries.
+     *
+     * @return A new checksum
+    */
+    Checksum newChecksum();
+
+    /**
+     * Writes the codec header that precedes raw deflate data. Used when the deflate data is
+     * produced in pieces, as by {@link ParallelCompressionOutputStream}.
+     *
+     * @param out The stream receiving compressed data
+     * @param level The compression level, recorded in the header where the format has room for it
+     * @throws IOException if the header cannot be written
+    */
+    void writeHeader(OutputStream out, int level) throws IOException;
+
+    /**
+     * Writes the codec trailer that follows raw deflate data.
+     *
+     * @param out The stream receiving compressed data
+     * @param checksum The checksum of the uncompressed data
+     * @param length The number of uncompressed bytes
+     * @throws IOException if the trailer cannot be written
+    */
+    void writeTrailer(OutputStream out, Checksum checksum, long length) throws IOException;
+
+    /**
+     * Wraps a stream of compressed data so that reading it returns the original bytes.
+     *
+     * @param in The stream of compressed data
+     * @return The decompressing stream
+     * @throws IOException if the codec header cannot be read
+    */
+    InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * Looks up a codec by name.
+     *
+     * @param name The codec name, case-insensitive
+     * @return The codec, or null if there is no codec with that name
+    */
+    static CompressionCodec forName(String name) {
+        switch (name.toLowerCase()) {
+            case "gzip":
+                return GzipCodec.INSTANCE;
+            case "zlib":
+                return ZlibCodec.INSTANCE;
+            default:
+                return null;
+        }
+    }
+}
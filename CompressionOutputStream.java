@@ -0,0 +1,212 @@
+/**
+ * CompressionOutputStream compresses MODE C data with a {@link CompressionCodec}, adapting to
+ * the data as it goes. Input is taken in blocks of 64 KB and the byte entropy of a sample of each
+ * block is estimated first; blocks that look incompressible (already compressed images, archives
+ * and the like) are deflated at level 0, which stores them raw instead of spending CPU on them.
+ * The result is still an ordinary stream of the codec, so the receiver needs nothing special.
+ * Large files are compressed on several cores by {@link ParallelCompressionOutputStream};
+ * {@link #open} picks the right stream for the size of the file.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class CompressionOutputStream extends OutputStream {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int SAMPLE_SIZE = 4096;
+
+    // Blocks whose sampled entropy is at least this many bits per byte are stored raw
+    private static final double ENTROPY_THRESHOLD = Double.parseDouble(System.getProperty("ftp.compressEntropyThreshold", "7.5"));
+
+    // Files of at least this many bytes are compressed in parallel, 0 to never compress in parallel
+    private static final long PARALLEL_THRESHOLD = Long.getLong("ftp.parallelCompressThreshold", 8L * 1024 * 1024);
+
+    protected final CompressionCodec codec;
+    protected final int level;
+    private final Deflater deflater;
+    private final CountingStream counter;
+    private final DeflaterOutputStream out;
+    private int currentLevel;
+    protected long blocks = 0;
+    protected long rawBlocks = 0;
+    protected long bytesIn = 0;
+    protected boolean closed = false;
+
+    /**
+     * Constructs a CompressionOutputStream.
+     *
+     * @param out The data connection output stream
+     * @param codec The codec framing the compressed data
+     * @param level The compression level for compressible blocks, 0 to 9
+     * @throws IOException if the codec header cannot be written
+    */
+    public CompressionOutputStream(OutputStream out, CompressionCodec codec, int level) throws IOException {
+        this.codec = codec;
+        this.level = level;
+        this.currentLevel = level;
+        this.deflater = codec.newDeflater(level);
+        this.counter = new CountingStream(out);
+        this.out = codec.compress(counter, deflater);
+    }
+
+    /**
+     * Constructor for subclasses that do their own compression.
+     *
+     * @param codec The codec framing the compressed data
+     * @param level The compression level for compressible blocks, 0 to 9
+    */
+    protected CompressionOutputStream(CompressionCodec codec, int level) {
+        this.codec = codec;
+        this.level = level;
+        this.currentLevel = level;
+        this.deflater = null;
+        this.counter = null;
+        this.out = null;
+    }
+
+    /**
+     * Opens a compressing stream suited to the size of the file: files of at least
+     * ftp.parallelCompressThreshold bytes are compressed on several cores.
+     *
+     * @param out The data connection output stream
+     * @param codec The codec framing the compressed data
+     * @param level The compression level for compressible blocks, 0 to 9
+     * @param size The number of bytes that will be written, or -1 if unknown
+     * @return The compressing stream
+     * @throws IOException if the codec header cannot be written
+    */
+    public static CompressionOutputStream open(OutputStream out, CompressionCodec codec, int level, long size) throws IOException {
+        if (PARALLEL_THRESHOLD > 0 && size >= PARALLEL_THRESHOLD && ParallelCompressionOutputStream.THREADS > 1) {
+            return new ParallelCompressionOutputStream(out, codec, level);
+        }
+        return new CompressionOutputStream(out, codec, level);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        bytesIn++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int length = Math.min(len, BLOCK_SIZE);
+            int blockLevel = length < SAMPLE_SIZE ? currentLevel : chooseLevel(b, off, length, level);
+            if (blockLevel != currentLevel) {
+                deflater.setLevel(blockLevel); // Applied from the next deflate call on
+                currentLevel = blockLevel;
+            }
+            if (blockLevel == Deflater.NO_COMPRESSION) {
+                rawBlocks++;
+            }
+            blocks++;
+
+            out.write(b, off, length);
+            bytesIn += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    /**
+     * Chooses the level for one block: level 0 if the block looks incompressible.
+     *
+     * @param b The data
+     * @param off The offset of the block in the data
+     * @param len The length of the block
+     * @param level The level used for compressible blocks
+     * @return The level to deflate the block at
+    */
+    static int chooseLevel(byte[] b, int off, int len, int level) {
+        return entropy(b, off, len) >= ENTROPY_THRESHOLD ? Deflater.NO_COMPRESSION : level;
+    }
+
+    // Estimates the Shannon entropy, in bits per byte, from evenly spaced bytes of the block
+    private static double entropy(byte[] b, int off, int len) {
+        int[] histogram = new int[256];
+        int step = Math.max(1, len / SAMPLE_SIZE);
+        int samples = 0;
+        for (int i = off; i < off + len; i += step) {
+            histogram[b[i] & 0xFF]++;
+            samples++;
+        }
+
+        double entropy = 0;
+        for (int count : histogram) {
+            if (count > 0) {
+                double p = (double) count / samples;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the codec trailer and closes the data connection.
+    */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out.finish();
+        out.close();
+    }
+
+    /**
+     * Describes the codec, level and achieved ratio, for the reply that ends the transfer.
+     *
+     * @return A summary such as "gzip level 6, ratio 0.421, 3 of 46 blocks stored raw"
+    */
+    public String getSummary() {
+        double ratio = bytesIn == 0 ? 1 : (double) getCompressedBytes() / bytesIn;
+        return String.format(Locale.ROOT, "%s level %d, ratio %.3f, %d of %d blocks stored raw",
+                codec.getName(), level, ratio, rawBlocks, blocks);
+    }
+
+    /**
+     * Gets the number of compressed bytes written so far, codec header and trailer included.
+     *
+     * @return The compressed bytes
+    */
+    protected long getCompressedBytes() {
+        return counter.count;
+    }
+
+    // Counts the compressed bytes, codec header and trailer included
+    private static class CountingStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * ControlBenchmark measures how much memory the server allocates, and how long it takes, to
+ * read, dispatch and answer one control command. It runs the same script of cheap commands
+ * (NOOP, PWD, TYPE, MODE, STRU and REST) through two paths in memory, without sockets:
+ *
+ * "legacy" repeats the way commands used to be handled: BufferedReader.readLine, String.split,
+ * toUpperCase, a switch over the verb, and a PrintWriter.printf with autoflush per reply.
+ *
+ * "current" runs a logged-in {@link ClientHandler} as the server does now: a
+ * {@link ControlLineReader} filling a reused {@link CommandLine}, the {@link CommandTable}
+ * lookup, and {@link ReplyWriter}, flushing once per buffer of pipelined commands.
+ *
+ * Usage: java ControlBenchmark [commands] [username] [password]. The current path logs in
+ * through the accounts file in ServerData/users.txt, so run it from the project directory.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+public class ControlBenchmark {
+    private static final String[] SCRIPT = {"NOOP", "PWD", "TYPE I", "MODE S", "STRU F", "REST 0", "type i", "pwd"};
+
+    // Receives the replies; the benchmark only cares about producing them
+    private static final OutputStream SINK = OutputStream.nullOutputStream();
+
+    public static void main(String[] args) throws IOException {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        String username = args.length > 1 ? args[1] : "john";
+        String password = args.length > 2 ? args[2] : "1234";
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("This Java runtime cannot measure allocations per thread");
+            return;
+        }
+        byte[] input = script(commands);
+
+        ClientHandler handler = new ClientHandler(SINK, InetAddress.getLoopbackAddress(), InetAddress.getLoopbackAddress());
+        handler.handleCommand("USER " + username);
+        handler.handleCommand("PASS " + password);
+
+        // Two rounds each, so the second of each is measured with the JIT warmed up
+        for (int round = 1; round <= 2; round++) {
+            report("legacy", round, commands, threads, () -> runLegacy(input));
+            report("current", round, commands, threads, () -> runCurrent(handler, input));
+        }
+    }
+
+    // Runs one path over the script and prints its allocation and time per command
+    private static void report(String name, int round, int commands, com.sun.management.ThreadMXBean threads, Run run) throws IOException {
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        run.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.printf(Locale.ROOT, "%-7s round %d: %8.1f bytes/command, %7.1f ns/command%n",
+                name, round, (double) allocated / commands, (double) elapsed / commands);
+    }
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private static byte[] script(int commands) {
+        ByteArrayOutputStream script = new ByteArrayOutputStream();
+        for (int i = 0; i < commands; i++) {
+            script.writeBytes((SCRIPT[i % SCRIPT.length] + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        return script.toByteArray();
+    }
+
+    private static void runCurrent(ClientHandler handler, byte[] input) throws IOException {
+        ControlLineReader reader = new ControlLineReader(new ByteArrayInputStream(input));
+        CommandLine line = new CommandLine();
+        while (reader.readLine(line)) {
+            handler.handleCommand(line);
+            if (!reader.hasBufferedInput()) {
+                handler.flushReplies();
+            }
+        }
+    }
+
+    // The command loop as it was before CommandLine and CommandTable, for the same commands
+    private static void runLegacy(byte[] input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input)));
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(SINK), true);
+        String currentDIR = "/";
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split(" ");
+            String command = parts[0].toUpperCase();
+            switch (command) {
+                case "NOOP":
+                    writer.printf("200 NOOP ok\r\n");
+                    break;
+                case "PWD":
+                    writer.printf("257 \"" + currentDIR + "\" is the current directory\r\n");
+                    break;
+                case "TYPE":
+                    writer.printf(parts[1].equals("I") ? "200 Type set to I\r\n" : "504 Command not implemented for that parameter\r\n");
+                    break;
+                case "MODE":
+                    writer.printf("200 Transfer mode set to Stream\r\n");
+                    break;
+                case "STRU":
+                    writer.printf("200 File structure selected\r\n");
+                    break;
+                case "REST":
+                    writer.printf("350 Restarting at " + Long.parseLong(parts[1]) + ". Send STOR or RETR to initiate transfer\r\n");
+                    break;
+                default:
+                    writer.printf("550 Requested action not taken\r\n");
+                    break;
+            }
+        }
+    }
+}
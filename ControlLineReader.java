@@ -0,0 +1,96 @@
+/**
+ * ControlLineReader splits the bytes of a control connection into command lines. It reads into
+ * one buffer that is reused for the whole session and copies each line into a reused
+ * {@link CommandLine}, so unlike BufferedReader.readLine no String is created per command.
+ * Lines end with CRLF or a bare LF. A line longer than {@link CommandLine#MAX_LENGTH} bytes
+ * ends the session after a 500 reply, as it does on the nio engine.
+ *
+ * A client may pipeline commands, sending several before reading any reply. Those already read
+ * into the buffer are reported by {@link #hasBufferedInput()}, so the session can hold back its
+ * replies until it has worked through them.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ControlLineReader {
+    private final InputStream in;
+    private final byte[] buffer = new byte[4096];
+    private int position = 0;
+    private int limit = 0;
+    private boolean lineTooLong = false;
+
+    /**
+     * Constructs a ControlLineReader.
+     *
+     * @param in The control connection
+    */
+    public ControlLineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next command line.
+     *
+     * @param line The line to fill, without its terminator
+     * @return false if the connection closed before another complete line
+     * @throws IOException if the connection fails or the line is too long
+    */
+    public boolean readLine(CommandLine line) throws IOException {
+        line.clear();
+        while (true) {
+            // Look for the end of the line in what has been read already
+            int start = position;
+            while (position < limit) {
+                if (buffer[position] == '\n') {
+                    boolean fits = line.append(buffer, start, position - start);
+                    position++;
+                    if (!fits) {
+                        lineTooLong = true;
+                        throw new IOException("Command line too long");
+                    }
+                    line.trimCarriageReturn();
+                    return true;
+                }
+                position++;
+            }
+            if (!line.append(buffer, start, limit - start)) {
+                lineTooLong = true;
+                throw new IOException("Command line too long");
+            }
+
+            // Nothing is buffered now, so this read blocks until the client sends more
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit == -1) {
+                limit = 0;
+                return false; // A line without its terminator is dropped, as the nio engine does
+            }
+        }
+    }
+
+    /**
+     * Tells whether {@link #readLine(CommandLine)} failed because the line was too long, rather
+     * than because the connection failed.
+     *
+     * @return true if the last line exceeded {@link CommandLine#MAX_LENGTH} bytes
+    */
+    public boolean isLineTooLong() {
+        return lineTooLong;
+    }
+
+    /**
+     * Tells whether bytes of another command have already been read, meaning the client sent
+     * it without waiting for the reply to the previous one.
+     *
+     * @return true if the next {@link #readLine(CommandLine)} starts on buffered bytes
+    */
+    public boolean hasBufferedInput() {
+        return position < limit;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * DeltaDecoder rebuilds a file on the server from a delta upload written by {@link DeltaEncoder}.
+ * Literal data is written as it arrives and block references are copied from the server's old
+ * copy with FileChannel.transferTo. The result goes to a staging file with a random name outside
+ * the served directory tree, so concurrent delta uploads of the same file never share one and a
+ * half-built file never shows up in a listing. It only replaces the target, in one rename, once
+ * its length and SHA-256 hash match the ones the client computed, so a failed or corrupted upload
+ * never leaves a damaged file behind.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.UUID;
+
+public class DeltaDecoder {
+    // Shared with ChunkedUpload; outside Server/home, so clients cannot list or fetch it
+    private static final Path STAGING_DIR = Paths.get("Server", "uploads");
+
+    private final Path target;
+    private long literalBytes = 0;
+    private long copiedBytes = 0;
+    private String digest;
+
+    /**
+     * Constructs a DeltaDecoder.
+     *
+     * @param target The file being replaced
+    */
+    public DeltaDecoder(Path target) {
+        this.target = target;
+    }
+
+    /**
+     * Reads a delta, rebuilds the new file and puts it in place of the target.
+     *
+     * @param in The data connection
+     * @throws IOException if the delta is malformed or truncated, the result does not match the
+     *                     client's hash, or the file cannot be written
+    */
+    public void decode(DataInputStream in) throws IOException {
+        Files.createDirectories(STAGING_DIR);
+        Path temporary = STAGING_DIR.resolve(UUID.randomUUID().toString().replace("-", "") + ".delta");
+        MessageDigest sha256 = DeltaEncoder.newWholeFileHash();
+        ByteBuffer pooledBuffer = BufferPool.HEAP.acquire(64 * 1024);
+        boolean done = false;
+        boolean rebuilt = false;
+        try (FileChannel output = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            FileChannel old = Files.exists(target) ? FileChannel.open(target, StandardOpenOption.READ) : null) {
+            byte[] buffer = pooledBuffer.array();
+
+            // The delta only fits the copy its signature was computed from
+            long baseLength = in.readLong();
+            int blockSize = in.readInt();
+            if (blockSize <= 0 || baseLength != (old == null ? 0 : old.size())) {
+                throw new IOException("The server's copy changed since its signature was sent");
+            }
+            long blockCount = (baseLength + blockSize - 1) / blockSize;
+
+            while (!done) {
+                int instruction = in.readUnsignedByte();
+                switch (instruction) {
+                    case DeltaEncoder.LITERAL:
+                        int remaining = in.readInt();
+                        literalBytes += remaining;
+                        while (remaining > 0) {
+                            int length = Math.min(remaining, buffer.length);
+                            in.readFully(buffer, 0, length);
+                            sha256.update(buffer, 0, length);
+                            ByteBuffer literal = ByteBuffer.wrap(buffer, 0, length);
+                            while (literal.hasRemaining()) {
+                                output.write(literal);
+                            }
+                            remaining -= length;
+                        }
+                        break;
+                    case DeltaEncoder.COPY:
+                        int first = in.readInt();
+                        int count = in.readInt();
+                        if (old == null || first < 0 || count <= 0 || (long) first + count > blockCount) {
+                            throw new IOException("Delta refers to a block the server does not have");
+                        }
+                        long start = (long) first * blockSize;
+                        long end = Math.min(start + (long) count * blockSize, baseLength);
+                        copyBlocks(old, start, end, output, sha256, buffer);
+                        copiedBytes += end - start;
+                        break;
+                    case DeltaEncoder.END:
+                        long length = in.readLong();
+                        byte[] expected = new byte[32];
+                        in.readFully(expected);
+                        if (output.size() != length || !Arrays.equals(sha256.digest(), expected)) {
+                            throw new IOException("Rebuilt file does not match the client's copy");
+                        }
+                        digest = HexFormat.of().formatHex(expected);
+                        done = true;
+                        break;
+                    default:
+                        throw new IOException("Malformed delta instruction " + instruction);
+                }
+            }
+            output.force(false);
+            rebuilt = true;
+        } finally {
+            BufferPool.HEAP.release(pooledBuffer);
+            if (!rebuilt) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        try {
+            try {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+    // Copies a byte range of the old file to the end of the new one, hashing it on the way
+    private static void copyBlocks(FileChannel old, long start, long end, FileChannel output, MessageDigest sha256, byte[] buffer) throws IOException {
+        long outputStart = output.size();
+        long position = start;
+        while (position < end) {
+            long transferred = old.transferTo(position, end - position, output);
+            if (transferred <= 0) {
+                throw new IOException("The server's copy changed during the delta upload");
+            }
+            position += transferred;
+        }
+
+        // The copied bytes are read back for the hash; they are still in the page cache
+        ByteBuffer readBack = ByteBuffer.wrap(buffer);
+        long readPosition = outputStart;
+        long readEnd = outputStart + (end - start);
+        while (readPosition < readEnd) {
+            readBack.clear().limit((int) Math.min(readBack.capacity(), readEnd - readPosition));
+            int bytesRead = output.read(readBack, readPosition);
+            if (bytesRead <= 0) {
+                throw new IOException("Rebuilt file could not be read back");
+            }
+            readPosition += bytesRead;
+            sha256.update(buffer, 0, bytesRead);
+        }
+        output.position(readEnd);
+    }
+
+    /**
+     * Gets the number of bytes that arrived as literal data.
+     *
+     * @return The literal byte count
+    */
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    /**
+     * Gets the number of bytes copied from the old file.
+     *
+     * @return The copied byte count
+    */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    /**
+     * Gets the SHA-256 hash of the rebuilt file, which matched the one the client sent.
+     *
+     * @return The hash as lowercase hex, or null before a delta was decoded
+    */
+    public String getDigest() {
+        return digest;
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * DeltaEncoder writes the client side of a delta upload. It slides a block-sized window over the
+ * new version of a file, one byte at a time, and wherever the window matches a block of the
+ * server's copy (see {@link DeltaSignature}) it sends a reference to that block; everything in
+ * between is sent as literal data. Runs of consecutive blocks are sent as one reference, so an
+ * appended log costs little more than its new bytes. The file is read once through a bounded
+ * buffer, whatever its size.
+ *
+ * On the data connection a delta starts with the length and block size from the signature, so
+ * the server can tell whether its copy changed in the meantime, followed by instructions, all big-endian:
+ * 'L' length bytes (literal data), 'C' first-block block-count (copy from the server's copy),
+ * and finally 'E' length SHA-256, the length and hash of the complete new file, which the server
+ * checks before it replaces its copy.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class DeltaEncoder {
+    public static final int LITERAL = 'L';
+    public static final int COPY = 'C';
+    public static final int END = 'E';
+
+    // Literal data is sent in pieces of at most this many bytes
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private final DeltaSignature signature;
+    private final DataOutputStream out;
+    private final MessageDigest md5 = DeltaSignature.newHash();
+    private final MessageDigest sha256;
+    private long literalBytes = 0;
+    private long copiedBytes = 0;
+    private int copyStart = -1;
+    private int copyCount = 0;
+
+    /**
+     * Constructs a DeltaEncoder.
+     *
+     * @param signature The signature of the server's copy
+     * @param out The data connection
+    */
+    public DeltaEncoder(DeltaSignature signature, DataOutputStream out) {
+        this.signature = signature;
+        this.out = out;
+        this.sha256 = newWholeFileHash();
+    }
+
+    /**
+     * Encodes the new version of the file and ends the delta.
+     *
+     * @param in The new version of the file
+     * @throws IOException if the file cannot be read or the delta cannot be written
+    */
+    public void encode(InputStream in) throws IOException {
+        int blockSize = signature.getBlockSize();
+        byte[] buffer = new byte[Math.max(1024 * 1024, 2 * blockSize + MAX_LITERAL)];
+        int fill = 0;      // bytes in the buffer
+        int window = 0;    // start of the window in the buffer
+        int literal = 0;   // start of literal data not sent yet
+        int checksum = 0;
+        boolean rolling = false; // whether checksum holds the sum of the current window
+        boolean eof = false;
+        long total = 0;
+
+        out.writeLong(signature.getLength());
+        out.writeInt(blockSize);
+
+        while (true) {
+            // Keep a whole window in the buffer, moving unsent data to the front when needed
+            if (window + blockSize > fill && !eof) {
+                if (literal > 0) {
+                    System.arraycopy(buffer, literal, buffer, 0, fill - literal);
+                    fill -= literal;
+                    window -= literal;
+                    literal = 0;
+                }
+                int bytesRead = in.read(buffer, fill, buffer.length - fill);
+                if (bytesRead == -1) {
+                    eof = true;
+                } else {
+                    sha256.update(buffer, fill, bytesRead);
+                    fill += bytesRead;
+                    total += bytesRead;
+                }
+                continue;
+            }
+
+            int length = Math.min(blockSize, fill - window);
+            if (length == 0) {
+                break;
+            }
+            if (!rolling) {
+                checksum = DeltaSignature.checksum(buffer, window, length);
+                rolling = true;
+            }
+
+            int block = signature.getBlockCount() > 0 ? signature.find(checksum, buffer, window, length, md5) : -1;
+            if (block >= 0) {
+                writeLiteral(buffer, literal, window - literal);
+                addCopy(block, length);
+                window += length;
+                literal = window;
+                rolling = false;
+            } else if (length < blockSize) {
+                // Too little left to fill a window; the rest is literal
+                window = fill;
+            } else {
+                if (window + blockSize < fill) {
+                    checksum = DeltaSignature.roll(checksum, buffer[window], buffer[window + blockSize], blockSize);
+                } else {
+                    rolling = false; // The next byte is not read yet
+                }
+                window++;
+                if (window - literal >= MAX_LITERAL) {
+                    writeLiteral(buffer, literal, window - literal);
+                    literal = window;
+                }
+            }
+        }
+        writeLiteral(buffer, literal, fill - literal);
+        flushCopy();
+
+        out.writeByte(END);
+        out.writeLong(total);
+        out.write(sha256.digest());
+        out.flush();
+    }
+
+    private void writeLiteral(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        flushCopy();
+        out.writeByte(LITERAL);
+        out.writeInt(len);
+        out.write(b, off, len);
+        literalBytes += len;
+    }
+
+    // Extends the pending run of blocks, or sends it and starts a new one
+    private void addCopy(int block, int length) throws IOException {
+        if (copyCount > 0 && block == copyStart + copyCount) {
+            copyCount++;
+        } else {
+            flushCopy();
+            copyStart = block;
+            copyCount = 1;
+        }
+        copiedBytes += length;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyCount > 0) {
+            out.writeByte(COPY);
+            out.writeInt(copyStart);
+            out.writeInt(copyCount);
+            copyCount = 0;
+        }
+    }
+
+    /**
+     * Creates the digest of the whole new file that ends a delta.
+     *
+     * @return A new SHA-256 digest
+    */
+    public static MessageDigest newWholeFileHash() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform has SHA-256
+        }
+    }
+
+    /**
+     * Gets the number of bytes sent as literal data.
+     *
+     * @return The literal byte count
+    */
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    /**
+     * Gets the number of bytes the server copies from its own copy instead.
+     *
+     * @return The copied byte count
+    */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * DeltaSignature describes the server's copy of a file for a delta upload, in the manner of
+ * rsync. The file is cut into fixed-size blocks, and every block is summarized by a cheap rolling
+ * checksum and a strong MD5 hash. A client holding a newer version of the file slides a window
+ * over it, uses the rolling checksum to find candidate blocks at any offset, confirms them with
+ * the strong hash, and sends references to those blocks instead of their bytes.
+ *
+ * On the data connection a signature is the file length and block size followed by the rolling
+ * checksum and hash of every block, all big-endian.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class DeltaSignature {
+    public static final int HASH_LENGTH = 16;
+
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    private final long length;
+    private final int blockSize;
+    private final int[] checksums;
+    private final byte[] hashes; // HASH_LENGTH bytes per block
+    private Map<Integer, int[]> blocksByChecksum;
+
+    private DeltaSignature(long length, int blockSize, int[] checksums, byte[] hashes) {
+        this.length = length;
+        this.blockSize = blockSize;
+        this.checksums = checksums;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Chooses a block size for a file: about the square root of its length, as rsync does, so
+     * the signature and the expected literal data stay small together.
+     *
+     * @param length The file length
+     * @return The block size, between 2 KB and 128 KB
+    */
+    public static int chooseBlockSize(long length) {
+        long size = (long) Math.sqrt((double) length) & ~1023L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Computes the signature of a file, reading it once from the start.
+     *
+     * @param file The file, or null for a file that does not exist yet
+     * @param blockSize The block size, or 0 to choose it from the file length
+     * @return The signature
+     * @throws IOException if the file cannot be read
+    */
+    public static DeltaSignature compute(FileChannel file, int blockSize) throws IOException {
+        long length = file == null ? 0 : file.size();
+        int size = blockSize > 0 ? blockSize : chooseBlockSize(length);
+        int blocks = (int) ((length + size - 1) / size);
+        int[] checksums = new int[blocks];
+        byte[] hashes = new byte[blocks * HASH_LENGTH];
+
+        if (blocks > 0) {
+            MessageDigest md5 = newHash();
+            InputStream in = Channels.newInputStream(file.position(0));
+            byte[] block = new byte[size];
+            for (int i = 0; i < blocks; i++) {
+                int blockLength = (int) Math.min(size, length - (long) i * size);
+                readFully(in, block, blockLength);
+                checksums[i] = checksum(block, 0, blockLength);
+                md5.update(block, 0, blockLength);
+                System.arraycopy(md5.digest(), 0, hashes, i * HASH_LENGTH, HASH_LENGTH);
+            }
+        }
+        return new DeltaSignature(length, size, checksums, hashes);
+    }
+
+    /**
+     * Writes the signature to the data connection.
+     *
+     * @param out The stream to write to
+     * @throws IOException if the signature cannot be written
+    */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(length);
+        out.writeInt(blockSize);
+        for (int i = 0; i < checksums.length; i++) {
+            out.writeInt(checksums[i]);
+            out.write(hashes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a signature sent by the server.
+     *
+     * @param in The stream to read from
+     * @return The signature
+     * @throws IOException if the signature is truncated or malformed
+    */
+    public static DeltaSignature read(DataInputStream in) throws IOException {
+        long length = in.readLong();
+        int blockSize = in.readInt();
+        if (length < 0 || blockSize <= 0) {
+            throw new IOException("Malformed delta signature");
+        }
+        int blocks = (int) ((length + blockSize - 1) / blockSize);
+        int[] checksums = new int[blocks];
+        byte[] hashes = new byte[blocks * HASH_LENGTH];
+        for (int i = 0; i < blocks; i++) {
+            checksums[i] = in.readInt();
+            in.readFully(hashes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+        return new DeltaSignature(length, blockSize, checksums, hashes);
+    }
+
+    /**
+     * Finds a block with the given contents.
+     *
+     * @param checksum The rolling checksum of the candidate bytes
+     * @param data The buffer holding the candidate bytes
+     * @param off The offset of the candidate in the buffer
+     * @param len The number of candidate bytes
+     * @param md5 A digest to compute the strong hash with, used only when the checksum matches
+     * @return The index of a matching block, or -1 if there is none
+    */
+    public int find(int checksum, byte[] data, int off, int len, MessageDigest md5) {
+        if (blocksByChecksum == null) {
+            index();
+        }
+        int[] candidates = blocksByChecksum.get(checksum);
+        if (candidates == null) {
+            return -1;
+        }
+        byte[] hash = null;
+        for (int block : candidates) {
+            if (getBlockLength(block) != len) {
+                continue;
+            }
+            if (hash == null) {
+                md5.update(data, off, len);
+                hash = md5.digest();
+            }
+            if (Arrays.equals(hash, 0, HASH_LENGTH, hashes, block * HASH_LENGTH, (block + 1) * HASH_LENGTH)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    // Groups the blocks by rolling checksum for lookups while the client scans its file
+    private void index() {
+        Map<Integer, int[]> index = new HashMap<>();
+        for (int i = 0; i < checksums.length; i++) {
+            int[] blocks = index.get(checksums[i]);
+            if (blocks == null) {
+                blocks = new int[] {i};
+            } else {
+                blocks = Arrays.copyOf(blocks, blocks.length + 1);
+                blocks[blocks.length - 1] = i;
+            }
+            index.put(checksums[i], blocks);
+        }
+        blocksByChecksum = index;
+    }
+
+    /**
+     * Computes the rolling checksum of a run of bytes: two 16-bit sums, one of the bytes and
+     * one weighted by position, as in rsync.
+     *
+     * @param data The buffer
+     * @param off The offset of the first byte
+     * @param len The number of bytes
+     * @return The checksum
+    */
+    public static int checksum(byte[] data, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            int value = data[off + i] & 0xff;
+            a += value;
+            b += (len - i) * value;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Moves a rolling checksum one byte forward without summing the window again.
+     *
+     * @param checksum The checksum of the window before the move
+     * @param out The byte leaving the window
+     * @param in The byte entering the window
+     * @param len The window length
+     * @return The checksum of the window after the move
+    */
+    public static int roll(int checksum, byte out, byte in, int len) {
+        int a = checksum & 0xffff;
+        int b = checksum >>> 16;
+        a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+        b = (b - len * (out & 0xff) + a) & 0xffff;
+        return a | (b << 16);
+    }
+
+    /**
+     * Creates the digest used for the strong block hashes.
+     *
+     * @return A new MD5 digest
+    */
+    public static MessageDigest newHash() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform has MD5
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int bytesRead = in.read(b, off, len - off);
+            if (bytesRead == -1) {
+                throw new IOException("File shrank while its signature was computed");
+            }
+            off += bytesRead;
+        }
+    }
+
+    /**
+     * Gets the length of the file the signature describes.
+     *
+     * @return The length in bytes
+    */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the block size.
+     *
+     * @return The block size in bytes
+    */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Gets the number of blocks.
+     *
+     * @return The block count
+    */
+    public int getBlockCount() {
+        return checksums.length;
+    }
+
+    /**
+     * Gets the length of a block, which is the block size for every block but a short last one.
+     *
+     * @param block The block index
+     * @return The length in bytes
+    */
+    public int getBlockLength(int block) {
+        return (int) Math.min(blockSize, length - (long) block * blockSize);
+    }
+}
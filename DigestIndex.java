@@ -0,0 +1,376 @@
+/**
+ * DigestIndex remembers the digests of files on the server, so that HASH, XCRC and XSHA256 on a
+ * large unchanged file answer at once instead of reading it again. Digests computed inline while
+ * a file is sent or received are recorded as well. Each entry is keyed by the file's path and
+ * algorithm and is only valid for the size and modification time the file had when it was
+ * hashed, so a changed file is always hashed again.
+ *
+ * The index survives restarts in a small text file: every new digest is appended as one line,
+ * and the file is rewritten without stale entries when the server starts. Appends are guarded by
+ * a ReentrantLock rather than a monitor, so a session on a virtual thread that records a digest
+ * does not pin its carrier while the line is written.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+public class DigestIndex {
+    // Algorithms understood by HASH and OPTS HASH, in their canonical spelling
+    public static final List<String> ALGORITHMS = List.of("SHA-256", "SHA-1", "MD5", "CRC32");
+
+    // Digest at the end of the final reply of a transfer, e.g. " SHA-256=9f86d081..."
+    private static final Pattern TRANSFER_DIGEST = Pattern.compile(" (SHA-256|SHA-1|MD5|CRC32)=([0-9a-f]+)$");
+
+    private final Path indexFile;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private BufferedWriter journal;
+
+    /**
+     * Constructs a DigestIndex, loading the entries saved by earlier runs that still match
+     * their files and rewriting the index file with only those.
+     *
+     * @param indexFile The file the index is saved in
+    */
+    public DigestIndex(Path indexFile) {
+        this.indexFile = indexFile;
+        try {
+            if (Files.exists(indexFile)) {
+                for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                    load(line);
+                }
+            }
+            Files.createDirectories(indexFile.toAbsolutePath().getParent());
+            journal = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8);
+            for (Entry entry : entries.values()) {
+                journal.write(entry.toLine());
+            }
+            journal.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            journal = null; // Digests are still remembered until the server stops
+        }
+    }
+
+    /**
+     * Gets the index shared by all sessions of this server.
+     *
+     * @return The shared index
+    */
+    public static DigestIndex getShared() {
+        return SharedIndex.INSTANCE;
+    }
+
+    // Opens the server's index on first use only, so clients can use the static helpers without one.
+    // Its lines are trusted, so it is kept beside the accounts file, out of reach of clients.
+    private static class SharedIndex {
+        static final DigestIndex INSTANCE = new DigestIndex(Paths.get("ServerData", "digests.idx"));
+    }
+
+    /**
+     * Gets the digest of a file, from the index if the file has not changed since it was
+     * hashed, or else by reading the file and recording the result.
+     *
+     * @param file The file
+     * @param algorithm One of {@link #ALGORITHMS}
+     * @return The digest as lowercase hex
+     * @throws IOException if the file cannot be read
+    */
+    public String getDigest(Path file, String algorithm) throws IOException {
+        return getDigest(file, Files.readAttributes(normalize(file), BasicFileAttributes.class), algorithm);
+    }
+
+    /**
+     * Gets the digest of a file whose attributes the caller has already read, so that the
+     * digest and whatever else the caller reports describe the same state of the file.
+     *
+     * @param file The file
+     * @param attributes The attributes of the file
+     * @param algorithm One of {@link #ALGORITHMS}
+     * @return The digest as lowercase hex
+     * @throws IOException if the file cannot be read
+    */
+    public String getDigest(Path file, BasicFileAttributes attributes, String algorithm) throws IOException {
+        Path normalized = normalize(file);
+        Entry entry = entries.get(key(normalized, algorithm));
+        if (entry != null && entry.matches(attributes)) {
+            return entry.digest;
+        }
+
+        String hex = digestFile(normalized, algorithm);
+        record(normalized, attributes, algorithm, hex);
+        return hex;
+    }
+
+    /**
+     * Computes the digest of a file by reading all of it, without the index.
+     *
+     * @param file The file
+     * @param algorithm One of {@link #ALGORITHMS}
+     * @return The digest as lowercase hex
+     * @throws IOException if the file cannot be read
+    */
+    public static String digestFile(Path file, String algorithm) throws IOException {
+        MessageDigest digest = newDigest(algorithm);
+        ByteBuffer pooledBuffer = BufferPool.HEAP.acquire(256 * 1024);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = pooledBuffer.clear();
+            while (fileChannel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.HEAP.release(pooledBuffer);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Wraps a channel so that every byte read through it is added to a digest, for transfers
+     * that move data with {@link FileChannel#transferFrom} rather than through their own arrays.
+     *
+     * @param channel The channel to read from
+     * @param digest The digest to update
+     * @return A channel reading from the given one
+    */
+    public static ReadableByteChannel digesting(ReadableByteChannel channel, MessageDigest digest) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int start = dst.position();
+                int bytesRead = channel.read(dst);
+                if (bytesRead > 0) {
+                    ByteBuffer received = dst.duplicate();
+                    received.position(start).limit(start + bytesRead);
+                    digest.update(received);
+                }
+                return bytesRead;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Finds the digest a server reported at the end of the final reply of a whole binary transfer:
+     * 226, or 250 when a block-mode data connection was kept open.
+     *
+     * @param reply The 226 or 250 reply
+     * @return The algorithm and the digest as lowercase hex, or null if the reply has none
+    */
+    public static String[] parseTransferDigest(String reply) {
+        Matcher matcher = TRANSFER_DIGEST.matcher(reply);
+        if (!(reply.startsWith("226") || reply.startsWith("250")) || !matcher.find()) {
+            return null;
+        }
+        return new String[] {matcher.group(1), matcher.group(2)};
+    }
+
+    /**
+     * Records a digest computed while the file was received, for the size and modification
+     * time the file has now that the transfer has ended.
+     *
+     * @param file The file
+     * @param algorithm One of {@link #ALGORITHMS}
+     * @param hex The digest as lowercase hex
+    */
+    public void put(Path file, String algorithm, String hex) {
+        try {
+            Path normalized = normalize(file);
+            record(normalized, Files.readAttributes(normalized, BasicFileAttributes.class), algorithm, hex);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Records a digest computed while the file was sent, for the size and modification time the
+     * file had when the transfer started. If the file changed in the meantime the entry simply
+     * never matches.
+     *
+     * @param file The file
+     * @param size The file size when the transfer started
+     * @param modified The modification time in milliseconds when the transfer started
+     * @param algorithm One of {@link #ALGORITHMS}
+     * @param hex The digest as lowercase hex
+    */
+    public void put(Path file, long size, long modified, String algorithm, String hex) {
+        record(new Entry(normalize(file), algorithm, size, modified, hex));
+    }
+
+    private void record(Path normalized, BasicFileAttributes attributes, String algorithm, String hex) {
+        record(new Entry(normalized, algorithm, attributes.size(), attributes.lastModifiedTime().toMillis(), hex));
+    }
+
+    private void record(Entry entry) {
+        Entry previous = entries.put(key(entry.path, entry.algorithm), entry);
+        if (previous != null && previous.toLine().equals(entry.toLine())) {
+            return; // Already saved; repeated downloads do not grow the index file
+        }
+        journalLock.lock();
+        try {
+            if (journal != null) {
+                journal.write(entry.toLine());
+                journal.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    // Loads one saved line, "algorithm size mtime digest path", if the file is unchanged
+    private void load(String line) {
+        String[] fields = line.split(" ", 5);
+        if (fields.length < 5 || !ALGORITHMS.contains(fields[0])) {
+            return;
+        }
+        try {
+            Path path = Paths.get(fields[4]);
+            Entry entry = new Entry(path, fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]);
+            if (entry.matches(Files.readAttributes(path, BasicFileAttributes.class))) {
+                entries.put(key(path, fields[0]), entry);
+            } else {
+                entries.remove(key(path, fields[0]));
+            }
+        } catch (NumberFormatException | IOException e) {
+            // The file is gone or the line is damaged; drop it
+        }
+    }
+
+    /**
+     * Creates a digest for one of the {@link #ALGORITHMS}. CRC32 is wrapped as a MessageDigest
+     * so every algorithm can be used the same way.
+     *
+     * @param algorithm The canonical algorithm name
+     * @return A new digest
+    */
+    public static MessageDigest newDigest(String algorithm) {
+        if (algorithm.equals("CRC32")) {
+            return new Crc32Digest();
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, e);
+        }
+    }
+
+    /**
+     * Finds the canonical name of an algorithm, accepting spellings such as "sha256".
+     *
+     * @param name The name given by the client
+     * @return The canonical name, or null if the algorithm is not supported
+    */
+    public static String canonicalName(String name) {
+        String compact = name.replace("-", "").toUpperCase();
+        for (String algorithm : ALGORITHMS) {
+            if (algorithm.replace("-", "").equals(compact)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    private static String key(Path normalized, String algorithm) {
+        return algorithm + " " + normalized;
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    // One remembered digest and the file state it belongs to
+    private static class Entry {
+        final Path path;
+        final String algorithm;
+        final long size;
+        final long modified;
+        final String digest;
+
+        Entry(Path path, String algorithm, long size, long modified, String digest) {
+            this.path = path;
+            this.algorithm = algorithm;
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.isRegularFile() && attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified;
+        }
+
+        String toLine() {
+            return algorithm + " " + size + " " + modified + " " + digest + " " + path + "\n";
+        }
+    }
+
+    // CRC32 as a MessageDigest, with the checksum as four big-endian bytes
+    private static class Crc32Digest extends MessageDigest {
+        private final CRC32 crc = new CRC32();
+
+        Crc32Digest() {
+            super("CRC32");
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            crc.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            crc.update(input, offset, len);
+        }
+
+        @Override
+        protected void engineUpdate(ByteBuffer input) {
+            crc.update(input);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            long value = crc.getValue();
+            crc.reset();
+            return new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+        }
+
+        @Override
+        protected void engineReset() {
+            crc.reset();
+        }
+    }
+}
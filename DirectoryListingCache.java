@@ -0,0 +1,223 @@
+/**
+ * DirectoryListingCache keeps the LIST output of recently listed directories, shared by all
+ * sessions. A listing that is not cached is streamed entry by entry from a DirectoryStream to the
+ * data connection, and copied into the cache on the way unless it outgrows the byte budget, so
+ * even a directory with a hundred thousand entries is never held in memory just to send it.
+ * Cached directories are watched with a WatchService, which drops a listing as soon as anything
+ * is created in or deleted from the directory, including by other programs; this server's own
+ * MKD, RMD, STOR, DELE and uploads drop the affected listings right away.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class DirectoryListingCache {
+    private static final DirectoryListingCache shared = new DirectoryListingCache(ServerConfig.LISTING_CACHE_BYTES);
+
+    private final long maxBytes;
+    private final LinkedHashMap<Path, byte[]> listings = new LinkedHashMap<>(16, 0.75f, true); // in LRU order
+    private final Map<Path, WatchKey> watches = new HashMap<>();
+    private final Map<Path, Integer> readers = new HashMap<>(); // sessions reading each directory
+    private WatchService watchService;
+    private long totalBytes = 0;
+    private long generation = 0; // advanced by every invalidation, so a listing read across one is not cached
+
+    /**
+     * Constructs a DirectoryListingCache and starts the thread that watches cached directories.
+     * Without a WatchService listings are still streamed, but never cached.
+     *
+     * @param maxBytes The byte budget for all cached listings, 0 to disable the cache
+    */
+    public DirectoryListingCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (maxBytes > 0) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread watcher = new Thread(this::watch, "listing-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                watchService = null;
+            }
+        }
+    }
+
+    /**
+     * Gets the cache shared by all sessions of this server.
+     *
+     * @return The shared cache
+    */
+    public static DirectoryListingCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Writes the listing of a directory, one name per line with a trailing slash on
+     * subdirectories, from the cache or else straight from the directory.
+     *
+     * @param directory The directory to list
+     * @param out The stream receiving the listing
+     * @throws IOException if the directory cannot be read or the listing cannot be written
+    */
+    public void list(Path directory, OutputStream out) throws IOException {
+        Path normalized = normalize(directory);
+        byte[] cached;
+        long startGeneration;
+        synchronized (this) {
+            cached = listings.get(normalized);
+            startGeneration = generation;
+        }
+        if (cached != null) {
+            out.write(cached);
+            return;
+        }
+
+        // Watched before reading, so a change made while the directory is read is noticed
+        ByteArrayOutputStream copy = watch(normalized) ? new ByteArrayOutputStream() : null;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(normalized)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue; // Deleted while the directory was read
+                }
+                if (!attributes.isRegularFile() && !attributes.isDirectory()) {
+                    continue;
+                }
+
+                byte[] line = (entry.getFileName() + (attributes.isDirectory() ? "/\n" : "\n")).getBytes(StandardCharsets.UTF_8);
+                out.write(line);
+                if (copy != null && copy.size() + line.length > maxBytes) {
+                    copy = null; // Too large to cache; keep streaming
+                } else if (copy != null) {
+                    copy.write(line);
+                }
+            }
+        } finally {
+            add(normalized, copy != null ? copy.toByteArray() : null, startGeneration);
+        }
+    }
+
+    /**
+     * Drops the listings a change to a path affects: that of the directory holding it and, for
+     * a directory, those of the directory itself and everything under it.
+     *
+     * @param path The file or directory that was created, written or deleted
+    */
+    public synchronized void invalidate(Path path) {
+        Path normalized = normalize(path);
+        generation++;
+        if (normalized.getParent() != null) {
+            remove(normalized.getParent());
+        }
+        Iterator<Map.Entry<Path, byte[]>> iterator = listings.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, byte[]> cached = iterator.next();
+            if (cached.getKey().startsWith(normalized)) {
+                totalBytes -= cached.getValue().length;
+                iterator.remove();
+            }
+        }
+        unwatchUnused();
+    }
+
+    // Caches a listing read since the given generation, then evicts least recently used listings
+    private synchronized void add(Path directory, byte[] listing, long startGeneration) {
+        readers.computeIfPresent(directory, (key, count) -> count > 1 ? count - 1 : null);
+        if (listing != null && startGeneration == generation && listing.length <= maxBytes) {
+            byte[] replaced = listings.put(directory, listing);
+            totalBytes += listing.length - (replaced != null ? replaced.length : 0);
+
+            Iterator<Map.Entry<Path, byte[]>> eldest = listings.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                totalBytes -= eldest.next().getValue().length;
+                eldest.remove();
+            }
+        }
+        unwatchUnused();
+    }
+
+    private void remove(Path directory) {
+        byte[] listing = listings.remove(directory);
+        if (listing != null) {
+            totalBytes -= listing.length;
+        }
+    }
+
+    // Starts watching a directory about to be listed; false if listings cannot be cached
+    private synchronized boolean watch(Path directory) {
+        if (watchService == null) {
+            return false;
+        }
+        if (!watches.containsKey(directory)) {
+            try {
+                watches.put(directory, directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE));
+            } catch (IOException | ClosedWatchServiceException e) {
+                return false;
+            }
+        }
+        readers.merge(directory, 1, Integer::sum);
+        return true;
+    }
+
+    // Stops watching directories that are neither cached nor being read, freeing their inotify watches
+    private void unwatchUnused() {
+        Iterator<Map.Entry<Path, WatchKey>> iterator = watches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, WatchKey> watched = iterator.next();
+            if (!listings.containsKey(watched.getKey()) && !readers.containsKey(watched.getKey())) {
+                watched.getValue().cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    // Runs on the watcher thread: drops the listing of every directory that reports a change
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            key.pollEvents(); // Any event, including an overflow, makes the whole listing stale
+            Path directory = (Path) key.watchable();
+            synchronized (this) {
+                generation++;
+                remove(directory);
+                if (!key.reset()) {
+                    watches.remove(directory); // The directory itself is gone
+                }
+                unwatchUnused();
+            }
+        }
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+}
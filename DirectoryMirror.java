@@ -0,0 +1,393 @@
+/**
+ * DirectoryMirror makes a local directory tree an incremental copy of a server directory tree,
+ * or the server tree a copy of the local one. Both trees are compared by size and modification
+ * time, read on the server with MLSD, and only new or changed files are transferred; files that
+ * exist only on the receiving side can optionally be deleted. Transfers run concurrently over a
+ * pool of logged-in sessions, each taking one file at a time.
+ *
+ * Downloaded files get the server's modification time, so an unchanged file compares equal on
+ * the next run. The server stamps uploaded files with the time they arrive, so an upload is
+ * only repeated when the local file changes size or becomes newer than the server's copy.
+ * Changed files can be uploaded as deltas, sending only the parts the server's copy lacks.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DirectoryMirror {
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final int sessions;
+    private final boolean deleteExtraneous;
+    private final boolean deltaUploads;
+
+    private final LinkedBlockingQueue<FTPSession> idleSessions = new LinkedBlockingQueue<>();
+    private final AtomicInteger transferred = new AtomicInteger();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger deleted = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * Constructs a DirectoryMirror for the specified server and account.
+     *
+     * @param host The server host
+     * @param port The server control port
+     * @param username The username used for every session
+     * @param password The password used for every session
+     * @param sessions The number of sessions transferring files at the same time
+     * @param deleteExtraneous Whether files and directories missing from the source are deleted
+     * @param deltaUploads Whether files that changed locally are uploaded as deltas against the server's copy
+    */
+    public DirectoryMirror(String host, int port, String username, String password, int sessions, boolean deleteExtraneous,
+                           boolean deltaUploads) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.sessions = Math.max(1, sessions);
+        this.deleteExtraneous = deleteExtraneous;
+        this.deltaUploads = deltaUploads;
+    }
+
+    /**
+     * Brings a local directory up to date with a server directory.
+     *
+     * @param remoteDirectory The server directory, relative to the server root; empty for the root
+     * @param localDirectory The local directory, created if missing
+     * @throws IOException if the trees cannot be listed
+    */
+    public void download(String remoteDirectory, Path localDirectory) throws IOException {
+        List<Transfer> transfers = new ArrayList<>();
+        FTPSession lister = borrow();
+        try {
+            planDownload(lister, remoteDirectory, localDirectory, transfers);
+        } finally {
+            giveBack(lister);
+        }
+        run(transfers);
+    }
+
+    /**
+     * Brings a server directory up to date with a local directory.
+     *
+     * @param localDirectory The local directory
+     * @param remoteDirectory The server directory, relative to the server root; empty for the root
+     * @throws IOException if the trees cannot be listed
+    */
+    public void upload(Path localDirectory, String remoteDirectory) throws IOException {
+        List<Transfer> transfers = new ArrayList<>();
+        FTPSession lister = borrow();
+        try {
+            planUpload(lister, localDirectory, remoteDirectory, transfers);
+        } finally {
+            giveBack(lister);
+        }
+        run(transfers);
+    }
+
+    // Compares one directory level, queueing downloads and recursing into subdirectories
+    private void planDownload(FTPSession lister, String remoteDirectory, Path localDirectory, List<Transfer> transfers) throws IOException {
+        Files.createDirectories(localDirectory);
+        Map<String, FileFacts> remote = new HashMap<>();
+        for (FileFacts facts : lister.list(remoteDirectory)) {
+            remote.put(facts.getName(), facts);
+        }
+        Map<String, BasicFileAttributes> local = readLocal(localDirectory);
+
+        for (FileFacts facts : remote.values()) {
+            String remotePath = child(remoteDirectory, facts.getName());
+            Path localPath = localDirectory.resolve(facts.getName());
+            BasicFileAttributes localAttributes = local.get(facts.getName());
+
+            if (facts.isDirectory()) {
+                if (localAttributes != null && !localAttributes.isDirectory()) {
+                    deleteLocal(localPath); // A file where the server has a directory
+                }
+                planDownload(lister, remotePath, localPath, transfers);
+            } else if (localAttributes != null && localAttributes.isRegularFile() && localAttributes.size() == facts.getSize()
+                    && localAttributes.lastModifiedTime().toMillis() == facts.getModified()) {
+                skipped.incrementAndGet();
+            } else {
+                if (localAttributes != null && localAttributes.isDirectory()) {
+                    deleteLocal(localPath); // A directory where the server has a file
+                }
+                transfers.add(session -> downloadFile(session, remotePath, facts, localPath));
+            }
+        }
+
+        if (deleteExtraneous) {
+            for (String name : local.keySet()) {
+                if (!remote.containsKey(name)) {
+                    deleteLocal(localDirectory.resolve(name));
+                }
+            }
+        }
+    }
+
+    // Compares one directory level, queueing uploads and recursing into subdirectories
+    private void planUpload(FTPSession lister, Path localDirectory, String remoteDirectory, List<Transfer> transfers) throws IOException {
+        Map<String, FileFacts> remote = new HashMap<>();
+        for (FileFacts facts : lister.list(remoteDirectory)) {
+            remote.put(facts.getName(), facts);
+        }
+        Map<String, BasicFileAttributes> local = readLocal(localDirectory);
+
+        for (Map.Entry<String, BasicFileAttributes> entry : local.entrySet()) {
+            String remotePath = child(remoteDirectory, entry.getKey());
+            Path localPath = localDirectory.resolve(entry.getKey());
+            BasicFileAttributes attributes = entry.getValue();
+            FileFacts facts = remote.get(entry.getKey());
+
+            if (attributes.isDirectory()) {
+                if (facts != null && !facts.isDirectory()) {
+                    deleteRemote(lister, remotePath, false);
+                    facts = null;
+                }
+                if (facts == null) {
+                    lister.expect("MKD " + remotePath, "257");
+                }
+                planUpload(lister, localPath, remotePath, transfers);
+            } else if (facts != null && !facts.isDirectory() && facts.getSize() == attributes.size()
+                    && facts.getModified() >= attributes.lastModifiedTime().toMillis()) {
+                skipped.incrementAndGet();
+            } else {
+                if (facts != null && facts.isDirectory()) {
+                    deleteRemote(lister, remotePath, true);
+                    facts = null;
+                }
+                if (deltaUploads && facts != null) {
+                    transfers.add(session -> uploadDelta(session, localPath, remotePath));
+                } else {
+                    transfers.add(session -> uploadFile(session, localPath, remotePath));
+                }
+            }
+        }
+
+        if (deleteExtraneous) {
+            for (FileFacts facts : remote.values()) {
+                if (!local.containsKey(facts.getName())) {
+                    deleteRemote(lister, child(remoteDirectory, facts.getName()), facts.isDirectory());
+                }
+            }
+        }
+    }
+
+    // Runs the queued transfers on the session pool and closes the sessions afterwards
+    private void run(List<Transfer> transfers) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(sessions);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (Transfer transfer : transfers) {
+                results.add(pool.submit(() -> {
+                    FTPSession session = borrow();
+                    try {
+                        transfer.call(session);
+                        transferred.incrementAndGet();
+                        giveBack(session);
+                    } catch (IOException e) {
+                        // The session may be mid-transfer, so it is dropped rather than reused
+                        failed.incrementAndGet();
+                        System.out.println("Mirror transfer failed: " + e.getMessage());
+                        session.close();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Mirror interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Mirror failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+            FTPSession session;
+            while ((session = idleSessions.poll()) != null) {
+                session.close();
+            }
+        }
+    }
+
+    // Downloads to a temporary file beside the target, which replaces the target only when complete
+    private void downloadFile(FTPSession session, String remotePath, FileFacts facts, Path localPath) throws IOException {
+        Path partial = localPath.resolveSibling(localPath.getFileName() + ".part");
+        ByteBuffer buffer = BufferPool.DIRECT.acquire(64 * 1024);
+        long received = 0;
+        try (SocketChannel dataChannel = session.openPassive();
+            FileChannel fileChannel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            session.expect("RETR " + remotePath, "150");
+            while (dataChannel.read(buffer.clear()) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    received += fileChannel.write(buffer);
+                }
+            }
+            bytesTransferred.addAndGet(received);
+        } finally {
+            BufferPool.DIRECT.release(buffer);
+        }
+
+        String reply = session.readReply();
+        if (!reply.startsWith("226")) {
+            Files.deleteIfExists(partial);
+            throw new IOException("RETR " + remotePath + " failed: " + reply);
+        }
+        try {
+            verify(reply, partial, "RETR " + remotePath);
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, localPath, StandardCopyOption.REPLACE_EXISTING);
+        // A file that changed after it was listed keeps the local time, so the next run fetches it again
+        if (received == facts.getSize()) {
+            Files.setLastModifiedTime(localPath, FileTime.fromMillis(facts.getModified()));
+        }
+    }
+
+    private void uploadFile(FTPSession session, Path localPath, String remotePath) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(localPath, StandardOpenOption.READ)) {
+            try (SocketChannel dataChannel = session.openPassive()) {
+                session.expect("STOR " + remotePath, "150");
+                long size = fileChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += fileChannel.transferTo(position, size - position, dataChannel);
+                }
+                bytesTransferred.addAndGet(size);
+            }
+        }
+        String reply = session.readReply();
+        if (!reply.startsWith("226")) {
+            throw new IOException("STOR " + remotePath + " failed: " + reply);
+        }
+        verify(reply, localPath, "STOR " + remotePath);
+    }
+
+    // Checks the local file against the digest the server reported for the transfer, if any
+    private static void verify(String reply, Path localPath, String transfer) throws IOException {
+        String[] reported = DigestIndex.parseTransferDigest(reply);
+        if (reported != null && !DigestIndex.digestFile(localPath, reported[0]).equals(reported[1])) {
+            throw new IOException(transfer + " failed: " + reported[0] + " does not match the server's");
+        }
+    }
+
+    private void uploadDelta(FTPSession session, Path localPath, String remotePath) throws IOException {
+        long[] sizes = new long[2];
+        session.storeDelta(localPath, remotePath, sizes);
+        bytesTransferred.addAndGet(sizes[0]);
+    }
+
+    private void deleteLocal(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+                for (Path child : children) {
+                    deleteLocal(child);
+                }
+            }
+        }
+        Files.deleteIfExists(path);
+        deleted.incrementAndGet();
+    }
+
+    private void deleteRemote(FTPSession lister, String remotePath, boolean directory) throws IOException {
+        // RMD removes a directory with everything in it
+        lister.expect((directory ? "RMD " : "DELE ") + remotePath, "250");
+        deleted.incrementAndGet();
+    }
+
+    // Reads the attributes of every entry of a local directory, skipping temporary download files
+    private static Map<String, BasicFileAttributes> readLocal(Path directory) throws IOException {
+        Map<String, BasicFileAttributes> entries = new HashMap<>();
+        if (!Files.isDirectory(directory)) {
+            return entries;
+        }
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            for (Path child : children) {
+                BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                if ((attributes.isRegularFile() || attributes.isDirectory()) && !child.getFileName().toString().endsWith(".part")) {
+                    entries.put(child.getFileName().toString(), attributes);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static String child(String directory, String name) {
+        return directory.isEmpty() ? name : directory + "/" + name;
+    }
+
+    // Takes an idle session, or logs in a new one while the pool is not full
+    private FTPSession borrow() throws IOException {
+        FTPSession session = idleSessions.poll();
+        if (session != null) {
+            return session;
+        }
+        session = new FTPSession(host, port);
+        try {
+            session.login(username, password);
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+        return session;
+    }
+
+    private void giveBack(FTPSession session) {
+        idleSessions.add(session);
+    }
+
+    /**
+     * Describes the outcome of the last download or upload.
+     *
+     * @return The counts of transferred, skipped, deleted and failed files and the bytes sent
+    */
+    public String getSummary() {
+        return transferred.get() + " files transferred (" + bytesTransferred.get() + " bytes), " + skipped.get() + " unchanged, "
+                + deleted.get() + " deleted, " + failed.get() + " failed";
+    }
+
+    /**
+     * Gets the number of files that could not be transferred.
+     *
+     * @return The failure count
+    */
+    public int getFailures() {
+        return failed.get();
+    }
+
+    // One queued file transfer, run on a borrowed session
+    private interface Transfer {
+        void call(FTPSession session) throws IOException;
+    }
+}
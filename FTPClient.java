@@ -13,22 +13,94 @@
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Set;
 
 
 public class FTPClient {
+    // Default number of parallel segments for PGET
+    private static final int SEGMENTS = Integer.getInteger("ftp.segments", 4);
+
+    // Number of times a failed PGET segment is retried
+    private static final int SEGMENT_RETRIES = Integer.getInteger("ftp.segmentRetries", 3);
+
+    // Maximum number of data bytes per MODE B block, at most 65535
+    private static final int BLOCK_SIZE = Integer.getInteger("ftp.blockSize", BlockOutputStream.MAX_BLOCK_SIZE);
+
+    // Bytes between the restart markers sent in MODE B uploads, 0 to send none
+    private static final long BLOCK_RESTART_INTERVAL = Long.getLong("ftp.blockRestartInterval", 8L * 1024 * 1024);
+
+    // Number of sessions transferring files at the same time in MIRROR
+    private static final int MIRROR_SESSIONS = Integer.getInteger("ftp.mirrorSessions", 4);
+
+    // Deflate level for MODE C uploads until SITE COMPRESS LEVEL changes it
+    private static final int COMPRESSION_LEVEL = Integer.getInteger("ftp.compressLevel", 6);
+
+    // Whether a digest in the 226 reply of RETR or STOR is checked against the local file
+    private static final boolean VERIFY = Boolean.parseBoolean(System.getProperty("ftp.verify", "true"));
+
+    // Commands a BATCH script may not contain: they open data connections, carry multi-line
+    // replies the batch reader does not expect, or change settings the client keeps track of
+    private static final Set<String> UNBATCHABLE = Set.of("USER", "PASS", "QUIT", "PASV", "LIST", "RETR", "STOR", "MLSD", "UPLD", "DELT",
+            "HELP", "TYPE", "MODE", "STRU", "SITE", "REST", "RANG", "PGET", "PPUT", "DPUT", "MIRROR", "BATCH", "MGET", "MPUT");
+
+    // Shows modification times from MDTM, MLST and MLSD in the local time zone
+    private static final DateTimeFormatter LOCAL_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
     public static void main(String[] args) {
+        // Non-interactive mirror: FTPClient MIRROR host port user password remote-dir local-dir [--reverse] [--delete] [--delta]
+        if (args.length > 0 && args[0].equalsIgnoreCase("MIRROR")) {
+            if (args.length < 7) {
+                System.out.println("Usage: java FTPClient MIRROR host port user password remote-dir local-dir [--reverse] [--delete] [--delta]");
+                System.exit(2);
+            }
+            List<String> options = Arrays.asList(args);
+            boolean ok = mirror(args[1], Integer.parseInt(args[2]), args[3], args[4], args[5], args[6],
+                    options.contains("--reverse"), options.contains("--delete"), options.contains("--delta"));
+            System.exit(ok ? 0 : 1);
+        }
+
+        // Non-interactive batch: FTPClient BATCH host port user password script
+        if (args.length > 0 && args[0].equalsIgnoreCase("BATCH")) {
+            if (args.length < 6) {
+                System.out.println("Usage: java FTPClient BATCH host port user password script");
+                System.exit(2);
+            }
+            boolean ok = false;
+            try (FTPSession session = new FTPSession(args[1], Integer.parseInt(args[2]))) {
+                session.login(args[3], args[4]);
+                List<String> commands = readBatchScript(args[5]);
+                if (commands != null) {
+                    ok = reportBatch(commands, session.pipeline(commands));
+                }
+            } catch (IOException e) {
+                System.out.println("451 Batch failed: " + e.getMessage());
+            }
+            System.exit(ok ? 0 : 1);
+        }
+
         String host = "127.0.0.1"; // Change host if needed
         int port = 2048; // Change port if needed
         String clientDIR = "Clients/";
@@ -49,6 +121,9 @@ public class FTPClient {
             String input;
             String command;
             String mode = null, type = null, stru = null;
+            String username = null, password = null;
+            CompressionCodec codec = GzipCodec.INSTANCE; // MODE C codec, kept in step with the server's
+            int compressionLevel = COMPRESSION_LEVEL;
 
             Socket dataSocket = null;
             // InputStream dataInputStream = null;
@@ -58,23 +133,167 @@ public class FTPClient {
                 input = consoleReader.readLine();
                 command = input.split(" ")[0].toUpperCase();
 
+                // HANDLE PGET (client-side command: parallel segmented download)
+                if (command.equals("PGET")) {
+                    String[] pgetParts = input.split(" ");
+                    if (pgetParts.length < 2 || username == null) {
+                        System.out.println("Usage: PGET [file name] [segments] (after logging in)");
+                        continue;
+                    }
+                    int segments = pgetParts.length > 2 ? Integer.parseInt(pgetParts[2]) : SEGMENTS;
+                    downloadSegmented(reader, writer, host, port, username, password, pgetParts[1], clientDIR + pgetParts[1], segments);
+                    continue;
+                }
+
+                // HANDLE PPUT (client-side command: parallel segmented upload)
+                if (command.equals("PPUT")) {
+                    String[] pputParts = input.split(" ");
+                    if (pputParts.length < 2 || username == null) {
+                        System.out.println("Usage: PPUT [file name] [segments] (after logging in)");
+                        continue;
+                    }
+                    int segments = pputParts.length > 2 ? Integer.parseInt(pputParts[2]) : SEGMENTS;
+                    uploadSegmented(reader, writer, host, port, username, password, pputParts[1], clientDIR + pputParts[1], segments);
+                    continue;
+                }
+
+                // HANDLE DPUT (client-side command: upload only the changed parts of a file)
+                if (command.equals("DPUT")) {
+                    String[] dputParts = input.split(" ");
+                    if (dputParts.length < 2 || username == null) {
+                        System.out.println("Usage: DPUT [file name] (after logging in)");
+                        continue;
+                    }
+                    uploadDelta(reader, writer, host, port, username, password, dputParts[1], clientDIR + dputParts[1]);
+                    continue;
+                }
+
+                // HANDLE MIRROR (client-side command: incremental sync of a directory tree)
+                if (command.equals("MIRROR")) {
+                    String[] mirrorParts = input.split(" ");
+                    if (mirrorParts.length < 3 || username == null) {
+                        System.out.println("Usage: MIRROR [remote dir] [local dir] [--reverse] [--delete] [--delta] (after logging in)");
+                        continue;
+                    }
+                    List<String> options = Arrays.asList(mirrorParts);
+                    mirror(host, port, username, password, mirrorParts[1].equals(".") ? "" : mirrorParts[1], clientDIR + mirrorParts[2],
+                            options.contains("--reverse"), options.contains("--delete"), options.contains("--delta"));
+                    continue;
+                }
+
+                // HANDLE MGET / MPUT (client-side commands: many files over one block-mode data connection)
+                if (command.equals("MGET") || command.equals("MPUT")) {
+                    String[] multiParts = input.split(" ");
+                    if (multiParts.length < 2 || username == null) {
+                        System.out.println("Usage: " + command + " [file name] [file name] ... (after logging in)");
+                        continue;
+                    }
+                    List<String> filenames = Arrays.asList(multiParts).subList(1, multiParts.length);
+                    dataSocket = transferMany(reader, writer, dataSocket, clientDIR, filenames, command.equals("MGET"), mode, type, stru, codec);
+                    continue;
+                }
+
+                // HANDLE BATCH (client-side command: pipeline a script of commands in one round trip)
+                if (command.equals("BATCH")) {
+                    String[] batchParts = input.split(" ");
+                    if (batchParts.length < 2 || username == null) {
+                        System.out.println("Usage: BATCH [script file] (after logging in)");
+                        continue;
+                    }
+                    List<String> commands = readBatchScript(clientDIR + batchParts[1]);
+                    if (commands != null) {
+                        reportBatch(commands, FTPSession.pipeline(reader, writer, commands));
+                    }
+                    continue;
+                }
+
+                // Resume a partially downloaded file from where the local copy ends; any other local file is overwritten
+                long resumeOffset = 0;
+                long remoteModified = -1;
+                if (command.equals("RETR") && dataSocket != null && ("S".equals(mode) || "B".equals(mode)) && "I".equals(type)
+                        && input.split(" ").length > 1) {
+                    File partialFile = new File(clientDIR + input.split(" ")[1]);
+                    remoteModified = remoteModificationTime(reader, writer, input.split(" ")[1]);
+                    if (partialFile.isFile() && partialFile.length() > 0
+                            && isResumable(reader, writer, input.split(" ")[1], partialFile, remoteModified)) {
+                        writer.println("REST " + partialFile.length());
+                        response = reader.readLine();
+                        System.out.println(response);
+                        if (response.startsWith("350")) {
+                            resumeOffset = partialFile.length();
+                        }
+                    }
+                }
+
                 writer.println(input);
                 
                 response = reader.readLine();
                 System.out.println(response);
 
-                // HANDLE RETR
-                if (command.equals("RETR") && response.startsWith("150")) {
-                    receiveFileData(dataSocket, clientDIR + input.split(" ")[1], mode, type, stru);
-                    System.out.println(reader.readLine());
-                    dataSocket.close();
+                // HANDLE RETR (125 instead of 150 when a block-mode data connection was kept open)
+                if (command.equals("RETR") && (response.startsWith("150") || response.startsWith("125"))) {
+                    try {
+                        receiveFileData(dataSocket, clientDIR + input.split(" ")[1], mode, type, stru, resumeOffset, codec);
+                    } finally {
+                        // A partial copy stamped with the remote time can be told apart from an unrelated file later
+                        if (remoteModified >= 0 && Files.isRegularFile(Paths.get(clientDIR + input.split(" ")[1]))) {
+                            Files.setLastModifiedTime(Paths.get(clientDIR + input.split(" ")[1]), FileTime.fromMillis(remoteModified));
+                        }
+                    }
+                    String reply = reader.readLine();
+                    System.out.println(reply);
+                    dataSocket = keepDataConnection(dataSocket, reply);
+                    verifyTransfer(reply, clientDIR + input.split(" ")[1]);
                 }
                 // HANDLE STOR
-                else if (command.equals("STOR") && response.startsWith("150")) {
-                    uploadFileData(dataSocket, clientDIR + input.split(" ")[1], mode, type, stru);
+                else if (command.equals("STOR") && (response.startsWith("150") || response.startsWith("125"))) {
+                    uploadFileData(dataSocket, clientDIR + input.split(" ")[1], mode, type, stru, codec, compressionLevel);
+                    String reply = reader.readLine();
+                    System.out.println(reply);
+                    dataSocket = keepDataConnection(dataSocket, reply);
+                    verifyTransfer(reply, clientDIR + input.split(" ")[1]);
+                } 
+                // HANDLE LIST after PASV: the listing arrives on the data connection
+                else if (command.equals("LIST") && response.startsWith("150") && dataSocket != null && !dataSocket.isClosed()) {
+                    System.out.println();
+                    BufferedReader listingReader = new BufferedReader(new InputStreamReader(dataSocket.getInputStream(), "UTF-8"));
+                    String line;
+                    while ((line = listingReader.readLine()) != null) {
+                        System.out.println(line);
+                    }
+                    dataSocket.close();
                     System.out.println(reader.readLine());
+                }
+                // HANDLE MLSD after PASV: one fact line per entry on the data connection
+                else if (command.equals("MLSD") && response.startsWith("150") && dataSocket != null && !dataSocket.isClosed()) {
+                    System.out.println();
+                    BufferedReader listingReader = new BufferedReader(new InputStreamReader(dataSocket.getInputStream(), "UTF-8"));
+                    String line;
+                    while ((line = listingReader.readLine()) != null) {
+                        FileFacts facts = FileFacts.parse(line);
+                        System.out.println(facts != null ? describeFacts(facts) : line);
+                    }
                     dataSocket.close();
-                } 
+                    System.out.println(reader.readLine());
+                }
+                // HANDLE MLST: the facts arrive between the "250-" and "250 " lines
+                else if (response.startsWith("250-")) {
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.startsWith("250 ")) {
+                        FileFacts facts = FileFacts.parse(line);
+                        System.out.println(facts != null ? describeFacts(facts) : line);
+                    }
+                    System.out.println(line);
+                }
+                // HANDLE MDTM: also show the modification time in local time
+                else if (command.equals("MDTM") && response.startsWith("213")) {
+                    try {
+                        long modified = FileFacts.parseTime(response.substring(4).trim());
+                        System.out.println("Modified " + LOCAL_TIME.format(Instant.ofEpochMilli(modified)));
+                    } catch (RuntimeException e) {
+                        System.out.println("Unrecognized modification time");
+                    }
+                }
                 // HADNLE multi-line response (LIST & HELP)
                 else if (response.startsWith("150") || response.startsWith("214")) {
                     // Read all lines of the multi-line response until the final response code (226)
@@ -87,35 +306,30 @@ public class FTPClient {
                 }
                 // HANDLE PASV
                 else if (command.equals("PASV")) {
-                    // Find the index of the opening parenthesis '(' and closing parenthesis ')'
-                    int startIndex = response.indexOf('(');
-                    int endIndex = response.indexOf(')');
-
-                    // Extract the substring between the parentheses
-                    String ipAddressAndPort = response.substring(startIndex + 1, endIndex);
-
-                    // Extract IP address and port from PASV response (you need to parse it properly)
-                    String[] pasvParts = ipAddressAndPort.split(",");
-                    String ipAddress = pasvParts[0] + "." + pasvParts[1] + "." + pasvParts[2] + "." + pasvParts[3];
-                    int portH = Integer.parseInt(pasvParts[4]);
-                    int portL = Integer.parseInt(pasvParts[5]);
-                    
-                    // Calculate the data port
-                    int dataPort = (portH << 8) + portL;
-
-                    // Establish data connection
-                    dataSocket = new Socket(ipAddress, dataPort);
+                    // The server has closed any data connection it kept open
+                    if (dataSocket != null) {
+                        dataSocket.close();
+                    }
+                    dataSocket = connectPassive(response);
                     // dataInputStream = dataSocket.getInputStream();
                 }
+                else if (response.startsWith("331") && command.equals("USER")) {
+                    username = input.split(" ")[1];
+                }
                 else if (response.startsWith("230")) {
-                    writer.println("TYPE I");
-                    System.out.println("\n" + reader.readLine());
-
-                    writer.println("MODE S");
-                    System.out.println("\n" + reader.readLine());
+                    password = input.split(" ")[1];
 
-                    writer.println("STRU F");
-                    System.out.println("\n" + reader.readLine());
+                    // Set up the session in one round trip, and ask which MODE C codec the
+                    // server uses: "200 MODE C uses [codec] level [n]"
+                    List<String> setupReplies = FTPSession.pipeline(reader, writer, List.of("TYPE I", "MODE S", "STRU F", "SITE COMPRESS"));
+                    for (String setupReply : setupReplies) {
+                        System.out.println("\n" + setupReply);
+                    }
+                    String siteReply = setupReplies.get(3);
+                    String[] siteWords = siteReply.split(" ");
+                    if (siteReply.startsWith("200") && siteWords.length > 4 && CompressionCodec.forName(siteWords[4]) != null) {
+                        codec = CompressionCodec.forName(siteWords[4]);
+                    }
 
                     mode = "S";
                     type = "I";
@@ -130,6 +344,15 @@ public class FTPClient {
                 else if (response.startsWith("200") && command.equals("STRU")) {
                     stru = input.split(" ")[1].toUpperCase();
                 }
+                // HANDLE SITE COMPRESS: keep the client's MODE C settings in step with the server's
+                else if (response.startsWith("200") && command.equals("SITE") && input.split(" ").length == 4) {
+                    String[] siteParts = input.split(" ");
+                    if (siteParts[2].equalsIgnoreCase("CODEC")) {
+                        codec = CompressionCodec.forName(siteParts[3]);
+                    } else if (siteParts[2].equalsIgnoreCase("LEVEL")) {
+                        compressionLevel = Integer.parseInt(siteParts[3]);
+                    }
+                }
 
 
             } while (!response.contains("221"));
@@ -141,6 +364,470 @@ public class FTPClient {
         }
     }
 
+    /**
+     * Checks the local copy of a file against the digest the server reported in the final reply of
+     * a whole binary RETR or STOR, and warns if they differ. Replies without a digest, such as
+     * those of ASCII transfers, are not checked.
+     *
+     * @param reply The 226 or 250 reply
+     * @param localPath The path of the local file
+    */
+    private static void verifyTransfer(String reply, String localPath) {
+        String[] reported = DigestIndex.parseTransferDigest(reply);
+        if (!VERIFY || reported == null) {
+            return;
+        }
+        try {
+            String local = DigestIndex.digestFile(Paths.get(localPath), reported[0]);
+            if (local.equals(reported[1])) {
+                System.out.println("Verified: the local copy matches the server's " + reported[0]);
+            } else {
+                System.out.println("Warning: " + reported[0] + " of the local copy is " + local + " but the server's is "
+                        + reported[1] + "; transfer the file again");
+            }
+        } catch (IOException e) {
+            System.out.println("Could not verify " + localPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Mirrors a server directory tree into a local directory, or the reverse, transferring only
+     * new or changed files over a pool of {@link #MIRROR_SESSIONS} sessions.
+     * 
+     * @param host The server host
+     * @param port The server control port
+     * @param username The username for every session
+     * @param password The password for every session
+     * @param remoteDirectory The server directory, relative to the server root; empty for the root
+     * @param localDirectory The local directory
+     * @param reverse Whether the server tree is updated from the local one instead
+     * @param delete Whether files missing from the source are deleted from the copy
+     * @param delta Whether changed files are uploaded as deltas against the server's copy
+     * @return {@code true} if every file was brought up to date
+     */
+    private static boolean mirror(String host, int port, String username, String password, String remoteDirectory, String localDirectory,
+                                  boolean reverse, boolean delete, boolean delta) {
+        DirectoryMirror mirror = new DirectoryMirror(host, port, username, password, MIRROR_SESSIONS, delete, delta);
+        long startTime = System.nanoTime();
+        try {
+            if (reverse) {
+                mirror.upload(Paths.get(localDirectory), remoteDirectory);
+            } else {
+                mirror.download(remoteDirectory, Paths.get(localDirectory));
+            }
+        } catch (IOException e) {
+            System.out.println("451 Mirror failed: " + e.getMessage());
+            return false;
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("226 Mirror complete: %s (%.3f s)%n", mirror.getSummary(), seconds);
+        return mirror.getFailures() == 0;
+    }
+
+    /**
+     * Opens the data connection announced by a PASV reply.
+     * 
+     * @param response The 227 reply, "227 Entering Passive Mode (h1,h2,h3,h4,p1,p2)"
+     * @return The connected data socket
+     * @throws IOException If the data connection cannot be opened
+     */
+
+    private static Socket connectPassive(String response) throws IOException {
+        // Find the index of the opening parenthesis '(' and closing parenthesis ')'
+        int startIndex = response.indexOf('(');
+        int endIndex = response.indexOf(')');
+
+        // Extract the substring between the parentheses
+        String ipAddressAndPort = response.substring(startIndex + 1, endIndex);
+
+        // Extract IP address and port from PASV response
+        String[] pasvParts = ipAddressAndPort.split(",");
+        String ipAddress = pasvParts[0] + "." + pasvParts[1] + "." + pasvParts[2] + "." + pasvParts[3];
+        int portH = Integer.parseInt(pasvParts[4]);
+        int portL = Integer.parseInt(pasvParts[5]);
+
+        // Calculate the data port and establish the data connection
+        int dataPort = (portH << 8) + portL;
+        Socket dataSocket = new Socket(ipAddress, dataPort);
+        // On a connection kept open in block mode, the short EOF block ending a file must not wait for an ACK
+        dataSocket.setTcpNoDelay(true);
+        return dataSocket;
+    }
+
+    /**
+     * Keeps the data connection after a transfer if the server kept its end open, which it
+     * does in block mode with a 250 reply, and closes it otherwise.
+     * 
+     * @param dataSocket The data connection of the transfer
+     * @param reply The final reply of the transfer
+     * @return The data connection for the next transfer, or null if it was closed
+     * @throws IOException If the data connection cannot be closed
+     */
+
+    private static Socket keepDataConnection(Socket dataSocket, String reply) throws IOException {
+        if (reply != null && reply.startsWith("250")) {
+            return dataSocket;
+        }
+        dataSocket.close();
+        return null;
+    }
+
+    /**
+     * Downloads (MGET) or uploads (MPUT) several files over one block-mode data connection.
+     * The session is switched to MODE B for the duration, so the server keeps the connection
+     * open between files: each file then costs one command and reply instead of a PASV, a
+     * TCP handshake and a command. If the server closes the connection after a file, the next
+     * file opens a new one. Files are named relative to the current directories on both sides.
+     * 
+     * @param reader The reader of the interactive control connection
+     * @param writer The writer of the interactive control connection
+     * @param dataSocket The data connection kept open by an earlier transfer, or null
+     * @param clientDIR The local directory
+     * @param filenames The files to transfer
+     * @param download Whether the files are downloaded (MGET) rather than uploaded (MPUT)
+     * @param mode The session's transfer mode, restored afterwards
+     * @param type The transfer type
+     * @param stru The file structure
+     * @param codec The codec used in compressed mode
+     * @return The data connection left open for the next transfer, or null if there is none
+     * @throws IOException If the control connection fails
+     */
+
+    private static Socket transferMany(BufferedReader reader, PrintWriter writer, Socket dataSocket, String clientDIR, List<String> filenames,
+                                       boolean download, String mode, String type, String stru, CompressionCodec codec) throws IOException {
+        if (!"B".equals(mode)) {
+            // A data connection kept open in another mode is not reused
+            if (dataSocket != null) {
+                dataSocket.close();
+                dataSocket = null;
+            }
+            writer.println("MODE B");
+            String modeReply = reader.readLine();
+            System.out.println(modeReply);
+            if (!modeReply.startsWith("200")) {
+                return null;
+            }
+        }
+
+        String verb = download ? "RETR" : "STOR";
+        int failures = 0;
+        int connections = 0;
+        long bytes = 0;
+        long startTime = System.nanoTime();
+        for (String filename : filenames) {
+            String localPath = clientDIR + filename;
+            if (!download && !new File(localPath).isFile()) {
+                System.out.println("550 " + localPath + " not found");
+                failures++;
+                continue;
+            }
+            if (dataSocket == null) {
+                writer.println("PASV");
+                String pasvReply = reader.readLine();
+                if (!pasvReply.startsWith("227")) {
+                    System.out.println(pasvReply);
+                    failures++;
+                    continue;
+                }
+                dataSocket = connectPassive(pasvReply);
+                connections++;
+            }
+
+            writer.println(verb + " " + filename);
+            String response = reader.readLine();
+            System.out.println(response);
+            if (!response.startsWith("150") && !response.startsWith("125")) {
+                failures++;
+                if (response.startsWith("425") || response.startsWith("503")) {
+                    // The server no longer has the data connection; open a new one for the next file
+                    dataSocket.close();
+                    dataSocket = null;
+                }
+                continue;
+            }
+            if (download) {
+                receiveFileData(dataSocket, localPath, "B", type, stru, 0, codec);
+            } else {
+                uploadFileData(dataSocket, localPath, "B", type, stru, codec, COMPRESSION_LEVEL);
+            }
+            String reply = reader.readLine();
+            System.out.println(reply);
+            dataSocket = keepDataConnection(dataSocket, reply);
+            if (reply.startsWith("226") || reply.startsWith("250")) {
+                bytes += new File(localPath).length();
+                verifyTransfer(reply, localPath);
+            } else {
+                failures++;
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("226 %s complete: %d files, %d failed, %d bytes over %d data connection(s) (%.3f s)%n",
+                download ? "MGET" : "MPUT", filenames.size() - failures, failures, bytes, connections, seconds);
+
+        if (!"B".equals(mode)) {
+            // The server closes the kept connection at the next PASV; this side is closed now
+            if (dataSocket != null) {
+                dataSocket.close();
+                dataSocket = null;
+            }
+            writer.println("MODE " + mode);
+            System.out.println(reader.readLine());
+        }
+        return dataSocket;
+    }
+
+    /**
+     * Reads the commands of a BATCH script: one command per line, skipping blank lines and
+     * lines starting with '#'. A script containing a command that cannot be pipelined is
+     * rejected as a whole, before anything is sent.
+     * 
+     * @param path The path of the script
+     * @return The commands, or null if the script cannot be read or is rejected
+     */
+
+    private static List<String> readBatchScript(String path) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Cannot read batch script " + path + ": " + e.getMessage());
+            return null;
+        }
+        List<String> commands = new ArrayList<>();
+        for (String line : lines) {
+            String trimmed = line.strip();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String verb = trimmed.split(" ")[0].toUpperCase();
+            if (UNBATCHABLE.contains(verb)) {
+                System.out.println(verb + " cannot be used in a batch; run it interactively");
+                return null;
+            }
+            commands.add(trimmed);
+        }
+        return commands;
+    }
+
+    /**
+     * Shows each command of a batch with its reply, followed by a summary.
+     * 
+     * @param commands The commands that were sent
+     * @param replies The reply to each command
+     * @return {@code true} if no reply was an error (4xx or 5xx)
+     */
+
+    private static boolean reportBatch(List<String> commands, List<String> replies) {
+        int failures = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            String reply = replies.get(i);
+            System.out.println("> " + commands.get(i));
+            System.out.println(reply);
+            if (reply.startsWith("4") || reply.startsWith("5")) {
+                failures++;
+            }
+        }
+        int roundTrips = (commands.size() + FTPSession.PIPELINE_DEPTH - 1) / FTPSession.PIPELINE_DEPTH;
+        System.out.printf("Batch: %d commands, %d failed, %d round trips%n", commands.size(), failures, roundTrips);
+        return failures == 0;
+    }
+
+    /**
+     * Asks the server for the modification time of a file with MDTM.
+     * 
+     * @param reader The reader of the control connection
+     * @param writer The writer of the control connection
+     * @param filename The name of the remote file
+     * @return Milliseconds since the epoch, or -1 if the server cannot tell
+     * @throws IOException If the control connection fails
+     */
+    private static long remoteModificationTime(BufferedReader reader, PrintWriter writer, String filename) throws IOException {
+        writer.println("MDTM " + filename);
+        String response = reader.readLine();
+        if (response.startsWith("213")) {
+            try {
+                return FileFacts.parseTime(response.substring(4).trim());
+            } catch (RuntimeException e) {
+                // Treated like a server without MDTM
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decides whether a local file is an unfinished download of a remote file, so that RETR
+     * can resume after its last byte. It must be shorter than the remote file and, when the
+     * remote time is known, not newer than it: an interrupted download is stamped with the
+     * remote time, while an unrelated local file with the same name usually is not.
+     * 
+     * @param reader The reader of the control connection
+     * @param writer The writer of the control connection
+     * @param filename The name of the remote file
+     * @param localFile The local file
+     * @param remoteModified The remote modification time, or -1 if unknown
+     * @return true if the download can resume; otherwise it starts again from byte 0
+     * @throws IOException If the control connection fails
+     */
+    private static boolean isResumable(BufferedReader reader, PrintWriter writer, String filename, File localFile, long remoteModified)
+            throws IOException {
+        writer.println("SIZE " + filename);
+        String response = reader.readLine();
+        if (!response.startsWith("213")) {
+            return false;
+        }
+        long remoteSize;
+        try {
+            remoteSize = Long.parseLong(response.substring(4).trim());
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return localFile.length() < remoteSize && (remoteModified < 0 || localFile.lastModified() <= remoteModified);
+    }
+
+    /**
+     * Formats parsed MLSD or MLST facts as one line: type, size, local modification time and name.
+     * 
+     * @param facts The parsed facts
+     * @return The line to show
+     */
+
+    private static String describeFacts(FileFacts facts) {
+        return String.format("%-4s %12d  %s  %s", facts.isDirectory() ? "dir" : "file", facts.getSize(),
+                LOCAL_TIME.format(Instant.ofEpochMilli(facts.getModified())), facts.getName());
+    }
+
+    /**
+     * Downloads a file as several byte ranges over parallel sessions. The remote size and the
+     * current directory are looked up on the interactive session first; each segment then logs
+     * in on its own session with the same account.
+     * 
+     * @param reader The reader of the interactive control connection
+     * @param writer The writer of the interactive control connection
+     * @param host The server host
+     * @param port The server control port
+     * @param username The username of the interactive session
+     * @param password The password of the interactive session
+     * @param filename The name of the remote file in the current directory
+     * @param localPath The path of the local file to write
+     * @param segments The number of parallel segments
+     * @throws IOException If the control connection fails
+     */
+
+    private static void downloadSegmented(BufferedReader reader, PrintWriter writer, String host, int port, String username, String password,
+                                          String filename, String localPath, int segments) throws IOException {
+        writer.println("SIZE " + filename);
+        String response = reader.readLine();
+        if (!response.startsWith("213")) {
+            System.out.println(response);
+            return;
+        }
+        long size = Long.parseLong(response.substring(4).trim());
+
+        writer.println("PWD");
+        response = reader.readLine();
+        String currentDirectory = response.substring(response.indexOf('"') + 1, response.lastIndexOf('"'));
+        String remotePath = currentDirectory.substring(1) + filename;
+
+        long startTime = System.nanoTime();
+        try {
+            new SegmentedDownload(host, port, username, password, segments, SEGMENT_RETRIES).download(remotePath, size, localPath);
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.out.printf("226 Downloaded %d bytes in %d segments (%.3f s)%n", size, segments, seconds);
+        } catch (IOException e) {
+            System.out.println("451 Segmented download failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Uploads a file as several byte ranges over parallel sessions. The upload is opened and
+     * published on the interactive session; each range is sent on its own session with the
+     * same account. The file only appears on the server once every range has arrived.
+     * 
+     * @param reader The reader of the interactive control connection
+     * @param writer The writer of the interactive control connection
+     * @param host The server host
+     * @param port The server control port
+     * @param username The username of the interactive session
+     * @param password The password of the interactive session
+     * @param filename The name of the file in the server's current directory
+     * @param localPath The path of the local file to send
+     * @param segments The number of parallel segments
+     * @throws IOException If the control connection fails
+     */
+
+    private static void uploadSegmented(BufferedReader reader, PrintWriter writer, String host, int port, String username, String password,
+                                        String filename, String localPath, int segments) throws IOException {
+        File file = new File(localPath);
+        if (!file.isFile()) {
+            System.out.println("550 File not found or cannot be accessed");
+            return;
+        }
+
+        writer.println("UPLD OPEN " + filename + " " + file.length());
+        String response = reader.readLine();
+        System.out.println(response);
+        if (!response.startsWith("250")) {
+            return;
+        }
+        String token = response.split(" ")[2];
+
+        long startTime = System.nanoTime();
+        try {
+            new SegmentedUpload(host, port, username, password, segments, SEGMENT_RETRIES).upload(localPath, token);
+        } catch (IOException e) {
+            System.out.println("451 Segmented upload failed: " + e.getMessage());
+            writer.println("UPLD ABOR " + token);
+            System.out.println(reader.readLine());
+            return;
+        }
+
+        writer.println("UPLD DONE " + token);
+        System.out.println(reader.readLine());
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("Uploaded %d bytes in %d segments (%.3f s)%n", file.length(), segments, seconds);
+    }
+
+    /**
+     * Uploads a changed file as a delta against the server's copy, on a session of its own in
+     * the interactive session's current directory. Only the parts of the file that the server's
+     * copy lacks are sent; the rest is referenced by block.
+     * 
+     * @param reader The reader of the interactive control connection
+     * @param writer The writer of the interactive control connection
+     * @param host The server host
+     * @param port The server control port
+     * @param username The username of the interactive session
+     * @param password The password of the interactive session
+     * @param filename The name of the file in the server's current directory
+     * @param localPath The path of the local file to send
+     * @throws IOException If the control connection fails
+     */
+
+    private static void uploadDelta(BufferedReader reader, PrintWriter writer, String host, int port, String username, String password,
+                                    String filename, String localPath) throws IOException {
+        File file = new File(localPath);
+        if (!file.isFile()) {
+            System.out.println("550 File not found or cannot be accessed");
+            return;
+        }
+
+        writer.println("PWD");
+        String response = reader.readLine();
+        String currentDirectory = response.substring(response.indexOf('"') + 1, response.lastIndexOf('"'));
+        String remotePath = currentDirectory.substring(1) + filename;
+
+        long startTime = System.nanoTime();
+        long[] sizes = new long[2];
+        try (FTPSession session = new FTPSession(host, port)) {
+            session.login(username, password);
+            System.out.println(session.storeDelta(file.toPath(), remotePath, sizes));
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.out.printf("Sent %d literal bytes, reused %d bytes of the server's copy (%.3f s)%n", sizes[0], sizes[1], seconds);
+        } catch (IOException e) {
+            System.out.println("451 Delta upload failed: " + e.getMessage());
+        }
+    }
+
     /**
      * Uploads file data to the FTP server using the specified mode and type.
      * 
@@ -149,10 +836,13 @@ public class FTPClient {
      * @param mode The transfer mode (C for compressed, B for binary, S for stream)
      * @param type The transfer type (A for ASCII, I for binary)
      * @param stru The data stucture (F for File Structure, R for Record Structure, P for Page Structure)
+     * @param codec The codec used in compressed mode
+     * @param compressionLevel The deflate level used in compressed mode
      * @throws IOException If an I/O error occurs during file upload
      */
 
-    private static void uploadFileData(Socket dataSocket, String filename, String mode, String type, String stru) throws IOException {
+    private static void uploadFileData(Socket dataSocket, String filename, String mode, String type, String stru,
+                                       CompressionCodec codec, int compressionLevel) throws IOException {
         File file = new File(filename);
         if (file.exists() && file.isFile()) {
             if (stru.equals("R") && type.equals("A")) {
@@ -170,11 +860,13 @@ public class FTPClient {
                 }
             }
             else if (mode.equals("C")) {
+                int bufferSize = 64 * 1024;
+                ByteBuffer pooledBuffer = BufferPool.HEAP.acquire(bufferSize);
                 try (FileInputStream fileInputStream = new FileInputStream(file);
-                    GZIPOutputStream gzipOutputStream = new GZIPOutputStream(dataSocket.getOutputStream())) {
-                    byte[] buffer = new byte[8192];
+                    CompressionOutputStream compressionOutputStream = CompressionOutputStream.open(dataSocket.getOutputStream(), codec, compressionLevel, file.length())) {
+                    byte[] buffer = pooledBuffer.array();
                     int bytesRead;
-                    while ((bytesRead = fileInputStream.read(buffer)) != -1) {
+                    while ((bytesRead = fileInputStream.read(buffer, 0, bufferSize)) != -1) {
                         if (type.equals("A")) {
                             // Convert each byte to ASCII
                             System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
@@ -185,33 +877,29 @@ public class FTPClient {
                             System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
                         }
                             
-                        gzipOutputStream.write(buffer, 0, bytesRead);
+                        compressionOutputStream.write(buffer, 0, bytesRead);
                     }  
-                    gzipOutputStream.close();
+                    compressionOutputStream.close();
                     fileInputStream.close();     
-                } 
+                    System.out.println("Compressed with " + compressionOutputStream.getSummary());
+                } finally {
+                    BufferPool.HEAP.release(pooledBuffer);
+                }
             }
             else {
+                int bufferSize = mode.equals("B") ? BLOCK_SIZE : 8192;
+                ByteBuffer pooledBuffer = BufferPool.HEAP.acquire(bufferSize);
                 try (FileInputStream fileInputStream = new FileInputStream(file);
                     BufferedInputStream bufferedInputStream = new BufferedInputStream(fileInputStream);
-                    DataOutputStream outputStream = new DataOutputStream(dataSocket.getOutputStream())) {
-                    byte[] buffer = new byte[8192];
+                    // Block mode frames the data in blocks of up to 64 KB with restart markers
+                    // The EOF block ends the file, so the server may keep the data connection open for the next one
+                    OutputStream outputStream = mode.equals("B")
+                        ? new BlockOutputStream(dataSocket.getOutputStream(), BLOCK_SIZE, BLOCK_RESTART_INTERVAL, 0, false)
+                        : new DataOutputStream(dataSocket.getOutputStream())) {
+                    byte[] buffer = pooledBuffer.array();
                     int bytesRead;
                     
-                    while ((bytesRead = bufferedInputStream.read(buffer)) != -1) {
-                        if (mode.equals("B")) {
-                            // Block header: 1 byte for description + 2 bytes for size
-                            byte[] header = new byte[3];
-                            header[0] = 1; // Description byte
-                            header[1] = (byte) ((bytesRead >> 8) & 0xFF); // High byte of size
-                            header[2] = (byte) (bytesRead & 0xFF); // Low byte of size
-                            outputStream.write(header);
-
-                            // Send block header (description byte + size)
-                            // outputStream.writeByte(1); // Description byte
-                            // outputStream.writeShort(bytesRead); // Size
-                        }
-
+                    while ((bytesRead = bufferedInputStream.read(buffer, 0, bufferSize)) != -1) {
                         if (type.equals("A")) {
                             // Convert each byte to ASCII
                             System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + bytesRead);
@@ -227,6 +915,8 @@ public class FTPClient {
                     // Close the outputStream & InputStream after data transfer completes
                     bufferedInputStream.close();
                     outputStream.close();
+                } finally {
+                    BufferPool.HEAP.release(pooledBuffer);
                 }
             }
         } else {
@@ -242,10 +932,13 @@ public class FTPClient {
      * @param mode The transfer mode (S for stream, B for block, C for compressed)
      * @param type The transfer type (A for ASCII, I for binary)
      * @param stru The data stucture (F for File Structure, R for Record Structure, P for Page Structure)
+     * @param resumeOffset The number of bytes already downloaded; received data is appended after them
+     * @param codec The codec used in compressed mode
      * @throws IOException If an I/O error occurs during file download
      */
 
-    private static void receiveFileData(Socket dataSocket, String filename, String mode, String type, String stru) throws IOException {
+    private static void receiveFileData(Socket dataSocket, String filename, String mode, String type, String stru, long resumeOffset,
+                                        CompressionCodec codec) throws IOException {
         // handle STRU R & TYPE A
         if (stru.equals("R") && type.equals("A")) {
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"));
@@ -261,36 +954,36 @@ public class FTPClient {
             }
         }
         else {
-            try (InputStream dataInputStream = new BufferedInputStream(dataSocket.getInputStream());
-                FileOutputStream outputStream = new FileOutputStream(filename)) {
-                int bufferSize = 8192;
-                byte[] buffer = new byte[bufferSize];
+            int bufferSize = 64 * 1024;
+            ByteBuffer pooledBuffer = BufferPool.HEAP.acquire(bufferSize);
+            // In block mode the EOF block ends the file, and the connection is left for the caller to keep or close
+            InputStream dataInputStream = new BufferedInputStream(dataSocket.getInputStream());
+            try (FileOutputStream outputStream = new FileOutputStream(filename, resumeOffset > 0)) {
+                byte[] buffer = pooledBuffer.array();
                 int bytesRead;
                 switch (mode) {
                     case "S":
-                        while ((bytesRead = dataInputStream.read(buffer)) != -1) {
+                        while ((bytesRead = dataInputStream.read(buffer, 0, bufferSize)) != -1) {
                             outputStream.write(buffer, 0, bytesRead);
                             outputStream.flush();
                         }
                         break;      
                     case "B":
-                        buffer = new byte[bufferSize + 3];
-                        while ((bytesRead = dataInputStream.read(buffer)) != -1) {
-                            int dataSize = (buffer[1] << 8) | (buffer[2] & 0xFF); // Retrieving size from the 2-byte header
-
-                            if (dataSize <= 0) {
-                                System.out.println("451: Requested action aborted. Local error in processing.");
-                                break;
+                        BlockInputStream blockInputStream = new BlockInputStream(dataInputStream);
+                        try {
+                            while ((bytesRead = blockInputStream.read(buffer, 0, bufferSize)) != -1) {
+                                outputStream.write(buffer, 0, bytesRead);
                             }
-
-                            System.out.println(buffer[0] + " " + buffer[1] + " " + buffer[2] + " " + dataSize);
-                            outputStream.write(buffer, 3, dataSize); // Skipping the header bytes
+                        } catch (EOFException e) {
+                            // Keep what arrived: RETR of the same file resumes from the end of the local copy
+                            System.out.println("451 Transfer incomplete (last restart marker "
+                                    + blockInputStream.getLastRestartMarker() + "); RETR again to resume");
                         }
                         break;
 
                     case "C":
-                        try (GZIPInputStream gzipInputStream = new GZIPInputStream(dataInputStream)) {
-                            while ((bytesRead = gzipInputStream.read(buffer)) != -1) {
+                        try (InputStream decompressedInputStream = codec.decompress(dataInputStream)) {
+                            while ((bytesRead = decompressedInputStream.read(buffer, 0, bufferSize)) != -1) {
                                 outputStream.write(buffer, 0, bytesRead);
                             }
                         }
@@ -300,8 +993,12 @@ public class FTPClient {
                         break;
                 }
                 // Close the outputStream & InputStream after data transfer completes 
-                dataInputStream.close();
+                if (!mode.equals("B")) {
+                    dataInputStream.close();
+                }
                 outputStream.close();
+            } finally {
+                BufferPool.HEAP.release(pooledBuffer);
             }
         }
     }
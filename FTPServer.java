@@ -1,7 +1,10 @@
 /**
  * FTPServer is a simple FTP server implementation in Java.
  * It listens for client connections on a specified port and handles client requests.
- * It provides user authentication functionality and spawns a new thread for each client connection.
+ * It authenticates users against the accounts in {@link UserStore} and spawns a new thread for each client connection,
+ * runs each client on a virtual thread with {@code -Dftp.engine=virtual}, or serves all clients
+ * from a few selector event loops with {@code -Dftp.engine=nio}. Concurrent sessions can be capped
+ * globally and per client IP address.
  * 
  * @author Ching, Nicolas Miguel T.
  * @author Santos, Kyle Adrian L.
@@ -10,20 +13,17 @@
 */
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Scanner;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class FTPServer {
-    //Array of user information for authentication.
-    private static final User[] users = {
-        new User("john", "1234"),
-        new User("jane", "5678"),
-        new User("joe", "qwerty")
-    };
-
 /**
- * Authenticates a user based on the provided username and password.
+ * Authenticates a user based on the provided username and password, against the accounts
+ * loaded by the shared {@link UserStore}.
  * 
  * @param username The username to authenticate
  * @param password The password corresponding to the username
@@ -31,13 +31,9 @@ public class FTPServer {
 */
 
     public static User authenticateUser(String username, String password) {
-        for (User user : users) {
-            if (user.getUsername().equals(username) && user.getPassword().equals(password)) {
-                return user;
-            }
-        }
-        return null; // Authentication failed
+        return UserStore.getShared().authenticate(username, password);
     }
+
     public static void main(String[] args) {
         int port = 2048; // Change port if needed
 
@@ -45,16 +41,80 @@ public class FTPServer {
         System.out.print("Enter a port number: ");
         port = scan.nextInt();
 
+        // Load the accounts now, so a broken accounts file shows before the first login
+        UserStore.getShared();
+
+        SessionLimiter limiter = new SessionLimiter(ServerConfig.MAX_SESSIONS, ServerConfig.MAX_SESSIONS_PER_IP);
+
+        if (ServerConfig.ENGINE.equals("nio")) {
+            try {
+                new ReactorServer(port, ServerConfig.EVENT_LOOPS, ServerConfig.TRANSFER_WORKERS, limiter).serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        Executor sessionExecutor = createSessionExecutor(ServerConfig.ENGINE);
+
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("FTP Server started on port " + port);
+            System.out.println("FTP Server started on port " + port + " (" + ServerConfig.ENGINE + " engine)");
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress().getHostAddress());
+                String ip = clientSocket.getInetAddress().getHostAddress();
+
+                if (!limiter.tryAcquire(ip)) {
+                    // Refuse immediately instead of queueing the client behind an overloaded server
+                    refuseConnection(clientSocket);
+                    continue;
+                }
+                System.out.println("New client connected: " + ip);
 
                 ClientHandler clientHandler = new ClientHandler(clientSocket);
-                new Thread(clientHandler).start();
+                sessionExecutor.execute(() -> {
+                    try {
+                        clientHandler.run();
+                    } finally {
+                        limiter.release(ip);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+/**
+ * Creates the executor that runs client sessions for the given engine. The "virtual" engine
+ * runs each session on its own virtual thread, so idle sessions cost almost nothing. Virtual
+ * threads need Java 21; on older runtimes the server falls back to one platform thread per session.
+ *
+ * @param engine The server engine ("thread" or "virtual")
+ * @return The executor that starts one session per task
+*/
+
+    private static Executor createSessionExecutor(String engine) {
+        if (engine.equals("virtual")) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not available on this Java runtime; using platform threads");
             }
+        }
+        return task -> new Thread(task).start();
+    }
+
+/**
+ * Refuses a client connection with a 421 reply because a session cap has been reached.
+ *
+ * @param clientSocket The client socket to refuse
+*/
+
+    static void refuseConnection(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            socket.getOutputStream().write("421 Too many connections, try again later\r\n".getBytes("US-ASCII"));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,329 @@
+/**
+ * FTPSession is a small, non-interactive FTP control connection used by the client when it
+ * needs extra sessions of its own, for example to download or upload segments of one file in
+ * parallel. It sends one command at a time and reads the single-line reply. The metadata
+ * commands SIZE, MDTM, MLST and MLSD are available as methods returning parsed values, and
+ * a changed file can be uploaded as a delta against the server's copy.
+ *
+ * Commands that do not move data can also be pipelined: sent together and answered together,
+ * so a batch costs one round trip instead of one per command. Logging in is pipelined this way.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FTPSession implements AutoCloseable {
+    // Most commands sent before their replies are read, which keeps both sides' socket buffers from filling
+    static final int PIPELINE_DEPTH = Math.max(1, Integer.getInteger("ftp.pipelineDepth", 64));
+
+    private final String host;
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final PrintWriter writer;
+
+    /**
+     * Connects to an FTP server and reads its welcome message.
+     *
+     * @param host The server host
+     * @param port The server control port
+     * @throws IOException if the connection fails or the server does not greet with 220
+    */
+    public FTPSession(String host, int port) throws IOException {
+        this.host = host;
+        this.socket = new Socket(host, port);
+        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+
+        String welcome = reader.readLine();
+        if (welcome == null || !welcome.startsWith("220")) {
+            socket.close();
+            throw new IOException("Unexpected welcome message: " + welcome);
+        }
+    }
+
+    /**
+     * Logs in and switches the session to binary stream mode with file structure.
+     *
+     * @param username The username
+     * @param password The password
+     * @throws IOException if the login is refused
+    */
+    public void login(String username, String password) throws IOException {
+        List<String> commands = List.of("USER " + username, "PASS " + password, "TYPE I", "MODE S", "STRU F");
+        String[] codes = {"331", "230", "200", "200", "200"};
+        List<String> replies = pipeline(commands);
+        for (int i = 0; i < codes.length; i++) {
+            if (!replies.get(i).startsWith(codes[i])) {
+                throw new IOException(commands.get(i).split(" ")[0] + " failed: " + replies.get(i));
+            }
+        }
+    }
+
+    /**
+     * Sends a command and reads its single-line reply.
+     *
+     * @param command The command line to send
+     * @return The reply line
+     * @throws IOException if the connection is closed before a reply arrives
+    */
+    public String sendCommand(String command) throws IOException {
+        writer.println(command);
+        return readReply();
+    }
+
+    /**
+     * Reads the next reply line from the server.
+     *
+     * @return The reply line
+     * @throws IOException if the connection is closed
+    */
+    public String readReply() throws IOException {
+        String reply = reader.readLine();
+        if (reply == null) {
+            throw new IOException("Control connection closed by server");
+        }
+        return reply;
+    }
+
+    /**
+     * Sends commands without waiting for each reply and then reads all the replies, in order.
+     * The server keeps executing commands after one fails, so every command gets a reply.
+     * Commands that open data connections cannot be pipelined.
+     *
+     * @param commands The command lines to send
+     * @return The reply to each command; the lines of a multi-line reply are joined with newlines
+     * @throws IOException if the connection is closed before every reply arrives
+    */
+    public List<String> pipeline(List<String> commands) throws IOException {
+        return pipeline(reader, writer, commands);
+    }
+
+    /**
+     * Pipelines commands over any control connection, such as the interactive client's. At most
+     * {@link #PIPELINE_DEPTH} commands are outstanding at a time; each group is written with
+     * one flush and its replies read before the next group is sent.
+     *
+     * @param reader The reader of the control connection
+     * @param writer The writer of the control connection
+     * @param commands The command lines to send
+     * @return The reply to each command; the lines of a multi-line reply are joined with newlines
+     * @throws IOException if the connection is closed before every reply arrives
+    */
+    static List<String> pipeline(BufferedReader reader, PrintWriter writer, List<String> commands) throws IOException {
+        List<String> replies = new ArrayList<>(commands.size());
+        for (int start = 0; start < commands.size(); start += PIPELINE_DEPTH) {
+            int end = Math.min(commands.size(), start + PIPELINE_DEPTH);
+            for (int i = start; i < end; i++) {
+                writer.print(commands.get(i) + "\r\n"); // print, unlike println, does not flush
+            }
+            writer.flush();
+            for (int i = start; i < end; i++) {
+                replies.add(readCompleteReply(reader));
+            }
+        }
+        return replies;
+    }
+
+    // Reads a reply, following a multi-line "xyz-" reply to its closing "xyz " line
+    private static String readCompleteReply(BufferedReader reader) throws IOException {
+        String reply = reader.readLine();
+        if (reply == null) {
+            throw new IOException("Control connection closed by server");
+        }
+        if (reply.length() < 4 || reply.charAt(3) != '-') {
+            return reply;
+        }
+        String end = reply.substring(0, 3) + " ";
+        StringBuilder lines = new StringBuilder(reply);
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Control connection closed by server");
+            }
+            lines.append('\n').append(line);
+        } while (!line.startsWith(end));
+        return lines.toString();
+    }
+
+    /**
+     * Sends a command and checks that the reply starts with the expected code.
+     *
+     * @param command The command line to send
+     * @param code The expected reply code
+     * @return The reply line
+     * @throws IOException if the reply has a different code
+    */
+    public String expect(String command, String code) throws IOException {
+        String reply = sendCommand(command);
+        if (!reply.startsWith(code)) {
+            throw new IOException(command.split(" ")[0] + " failed: " + reply);
+        }
+        return reply;
+    }
+
+    /**
+     * Enters passive mode and opens the data connection announced by the server.
+     *
+     * @return The connected data channel, in blocking mode
+     * @throws IOException if PASV is refused or the data connection cannot be opened
+    */
+    public SocketChannel openPassive() throws IOException {
+        String reply = expect("PASV", "227");
+        String[] pasvParts = reply.substring(reply.indexOf('(') + 1, reply.indexOf(')')).split(",");
+        int dataPort = (Integer.parseInt(pasvParts[4]) << 8) + Integer.parseInt(pasvParts[5]);
+        return SocketChannel.open(new InetSocketAddress(host, dataPort));
+    }
+
+    /**
+     * Gets the size of a remote file with SIZE.
+     *
+     * @param name The file name or path
+     * @return The size in bytes
+     * @throws IOException if the file does not exist
+    */
+    public long size(String name) throws IOException {
+        String reply = expect("SIZE " + name, "213");
+        return Long.parseLong(reply.substring(4).trim());
+    }
+
+    /**
+     * Gets the modification time of a remote file with MDTM.
+     *
+     * @param name The file name or path
+     * @return Milliseconds since the epoch
+     * @throws IOException if the file does not exist or the reply is malformed
+    */
+    public long modificationTime(String name) throws IOException {
+        String reply = expect("MDTM " + name, "213");
+        try {
+            return FileFacts.parseTime(reply.substring(4).trim());
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed MDTM reply: " + reply);
+        }
+    }
+
+    /**
+     * Gets the facts of one remote file or directory with MLST.
+     *
+     * @param name The file or directory name or path
+     * @return The parsed facts
+     * @throws IOException if the file does not exist or the reply is malformed
+    */
+    public FileFacts stat(String name) throws IOException {
+        expect("MLST " + name, "250-");
+        FileFacts facts = FileFacts.parse(readReply());
+        String end;
+        do {
+            end = readReply();
+        } while (!end.startsWith("250 "));
+        if (facts == null) {
+            throw new IOException("Malformed MLST reply");
+        }
+        return facts;
+    }
+
+    /**
+     * Lists a remote directory with MLSD over a new passive data connection.
+     *
+     * @param directory The directory name or path, empty for the current directory
+     * @return The facts of every entry
+     * @throws IOException if the directory does not exist or the transfer fails
+    */
+    public List<FileFacts> list(String directory) throws IOException {
+        List<FileFacts> entries = new ArrayList<>();
+        try (SocketChannel dataChannel = openPassive()) {
+            expect(directory.isEmpty() ? "MLSD" : "MLSD " + directory, "150");
+            BufferedReader listingReader = new BufferedReader(new InputStreamReader(Channels.newInputStream(dataChannel), StandardCharsets.UTF_8));
+            String line;
+            while ((line = listingReader.readLine()) != null) {
+                FileFacts facts = FileFacts.parse(line);
+                if (facts != null) {
+                    entries.add(facts);
+                }
+            }
+        }
+        String reply = readReply();
+        if (!reply.startsWith("226")) {
+            throw new IOException("MLSD failed: " + reply);
+        }
+        return entries;
+    }
+
+    /**
+     * Uploads a file as a delta against the server's copy with DELT: the server's block
+     * signatures are fetched over one data connection and the delta is sent over a second.
+     *
+     * @param localFile The new version of the file
+     * @param remotePath The file name or path on the server
+     * @param sizes A two-element array that receives the literal and copied byte counts, or null
+     * @return The server's final reply
+     * @throws IOException if either transfer fails or the server rejects the delta
+    */
+    public String storeDelta(Path localFile, String remotePath, long[] sizes) throws IOException {
+        DeltaSignature signature;
+        try (SocketChannel dataChannel = openPassive()) {
+            expect("DELT SIGS " + remotePath, "150");
+            signature = DeltaSignature.read(new DataInputStream(new BufferedInputStream(Channels.newInputStream(dataChannel), 64 * 1024)));
+        }
+        expectReply("226");
+
+        DeltaEncoder encoder;
+        try (SocketChannel dataChannel = openPassive();
+            InputStream fileInputStream = Files.newInputStream(localFile)) {
+            expect("DELT STOR " + remotePath, "150");
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(dataChannel), 64 * 1024));
+            encoder = new DeltaEncoder(signature, outputStream);
+            encoder.encode(fileInputStream);
+        }
+        if (sizes != null) {
+            sizes[0] = encoder.getLiteralBytes();
+            sizes[1] = encoder.getCopiedBytes();
+        }
+        return expectReply("226");
+    }
+
+    // Reads the reply that ends a transfer and checks its code
+    private String expectReply(String code) throws IOException {
+        String reply = readReply();
+        if (!reply.startsWith(code)) {
+            throw new IOException("Transfer failed: " + reply);
+        }
+        return reply;
+    }
+
+    /**
+     * Sends QUIT and closes the control connection.
+    */
+    @Override
+    public void close() {
+        try {
+            writer.println("QUIT");
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * FileContentCache keeps the contents and metadata of small, frequently downloaded files in
+ * off-heap memory. A RETR of a cached file needs no file lookups or opens: the server writes the
+ * direct buffer straight to the data connection. Only files up to a size threshold are admitted,
+ * the cache is bounded by a byte budget with least recently used entries evicted first, and every
+ * write to a file through the server invalidates it for all sessions. Entries are also checked
+ * against the file on disk once their time to live has passed, to notice changes made outside
+ * the server.
+ *
+ * Each invalidation advances a generation counter, and a load that started before the latest
+ * invalidation drops what it read, so a file read just before another session rewrote it is
+ * never cached after the invalidation has passed.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FileContentCache {
+    private static final FileContentCache shared = new FileContentCache(ServerConfig.CONTENT_CACHE_BYTES,
+            ServerConfig.CONTENT_CACHE_MAX_FILE_SIZE, ServerConfig.CONTENT_CACHE_TTL);
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong(); // orders accesses for LRU eviction
+    private final AtomicLong generation = new AtomicLong(); // advanced by every invalidation
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructs a FileContentCache.
+     *
+     * @param maxBytes The byte budget for all cached contents, 0 to disable the cache
+     * @param maxFileSize The largest file admitted to the cache
+     * @param ttlMillis How long an entry is trusted before it is checked against the file on disk
+    */
+    public FileContentCache(long maxBytes, long maxFileSize, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Gets the cache shared by all sessions of this server.
+     *
+     * @return The shared cache
+    */
+    public static FileContentCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Looks up a file. Counts a hit or a miss.
+     *
+     * @param path The file
+     * @return The cached file, or null on a miss
+    */
+    public Entry get(Path path) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        Path normalized = normalize(path);
+        Entry entry = entries.get(normalized);
+        if (entry != null && !isFresh(entry)) {
+            remove(normalized, entry);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.lastUsed = clock.incrementAndGet();
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Reads a file into the cache if it is small enough to be admitted.
+     *
+     * @param path The file
+     * @return The cached file, or null if the file is too large or cannot be read
+    */
+    public Entry load(Path path) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        Path normalized = normalize(path);
+        long startGeneration = generation.get();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(normalized, BasicFileAttributes.class);
+            if (!attributes.isRegularFile() || attributes.size() > maxFileSize || attributes.size() > maxBytes) {
+                return null;
+            }
+
+            ByteBuffer content = ByteBuffer.allocateDirect((int) attributes.size());
+            try (FileChannel fileChannel = FileChannel.open(normalized, StandardOpenOption.READ)) {
+                while (content.hasRemaining() && fileChannel.read(content) != -1) {
+                }
+            }
+            if (content.hasRemaining()) {
+                return null; // The file shrank while it was read
+            }
+            content.flip();
+
+            Entry entry = new Entry(normalized, content.asReadOnlyBuffer(), attributes.lastModifiedTime().toMillis());
+            entry.lastUsed = clock.incrementAndGet();
+            Entry existing = entries.putIfAbsent(normalized, entry);
+            if (existing != null) {
+                return existing; // Another session loaded it first
+            }
+            totalBytes.addAndGet(entry.getSize());
+            // Checked after the entry is visible, so an invalidation either removes it or is seen here
+            if (generation.get() != startGeneration) {
+                remove(normalized, entry);
+                return null;
+            }
+            evict();
+            return entry;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drops a file, or every file under a directory, for all sessions.
+     *
+     * @param path The file or directory that changed
+    */
+    public void invalidate(Path path) {
+        Path normalized = normalize(path);
+        generation.incrementAndGet(); // Before the entries are removed, so loads still running drop theirs
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Entry> cached = iterator.next();
+            if (cached.getKey().startsWith(normalized)) {
+                remove(cached.getKey(), cached.getValue());
+            }
+        }
+    }
+
+    // Checks the entry against the file on disk once its time to live has passed
+    private boolean isFresh(Entry entry) {
+        long now = System.currentTimeMillis();
+        if (now - entry.checkedAt < ttlMillis) {
+            return true;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(entry.path, BasicFileAttributes.class);
+            if (attributes.size() != entry.getSize() || attributes.lastModifiedTime().toMillis() != entry.lastModified) {
+                return false;
+            }
+            entry.checkedAt = now;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Evicts least recently used entries until the budget is met
+    private synchronized void evict() {
+        while (totalBytes.get() > maxBytes) {
+            Map.Entry<Path, Entry> eldest = null;
+            for (Map.Entry<Path, Entry> cached : entries.entrySet()) {
+                if (eldest == null || cached.getValue().lastUsed < eldest.getValue().lastUsed) {
+                    eldest = cached;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void remove(Path path, Entry entry) {
+        if (entries.remove(path, entry)) {
+            totalBytes.addAndGet(-entry.getSize());
+        }
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Describes the cache for SITE CACHE.
+     *
+     * @return The number of files and bytes cached and the hit and miss counts
+    */
+    public String getStatistics() {
+        return entries.size() + " files, " + totalBytes.get() + " bytes, " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+
+    /**
+     * Gets the number of lookups that found the file cached.
+     *
+     * @return The hit count
+    */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups that did not find the file cached.
+     *
+     * @return The miss count
+    */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The contents and metadata of one cached file.
+    */
+    public static class Entry {
+        private final Path path;
+        private final ByteBuffer content;
+        private final long lastModified;
+        private volatile long lastUsed;
+        private volatile long checkedAt = System.currentTimeMillis();
+
+        private Entry(Path path, ByteBuffer content, long lastModified) {
+            this.path = path;
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Gets the size of the file.
+         *
+         * @return The size in bytes
+        */
+        public long getSize() {
+            return content.capacity();
+        }
+
+        /**
+         * Gets the modification time the file had when it was read into the cache.
+         *
+         * @return The modification time in milliseconds since the epoch
+        */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Gets a view of the contents with its own position and limit, safe to use while other
+         * sessions send the same file.
+         *
+         * @return A read-only direct buffer over the whole file
+        */
+        public ByteBuffer getContent() {
+            return content.duplicate();
+        }
+    }
+}
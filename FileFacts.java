@@ -0,0 +1,165 @@
+/**
+ * FileFacts is the machine-readable description of one file or directory exchanged by MLSD and
+ * MLST (RFC 3659): its name, type, size and modification time. The server formats the facts
+ * from a single bulk attribute read per entry; the client parses them back, so a mirroring
+ * client can compare sizes and times and skip unchanged files without transferring them.
+ * Times are UTC in the RFC 3659 form YYYYMMDDHHMMSS.sss, also used by MDTM.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+public class FileFacts {
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss.SSS").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter WHOLE_SECONDS = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long modified;
+
+    /**
+     * Constructs FileFacts.
+     *
+     * @param name The file name
+     * @param directory Whether the entry is a directory
+     * @param size The size in bytes, 0 for a directory
+     * @param modified The modification time in milliseconds since the epoch
+    */
+    public FileFacts(String name, boolean directory, long size, long modified) {
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    /**
+     * Formats the fact line for an entry, e.g. "type=file;size=1024;modify=20240403101500.000; a.txt".
+     *
+     * @param name The file name
+     * @param attributes The attributes read with one Files.readAttributes call
+     * @return The fact line, without the leading space MLST puts before it
+    */
+    public static String format(String name, BasicFileAttributes attributes) {
+        return "type=" + (attributes.isDirectory() ? "dir" : "file")
+                + ";size=" + (attributes.isDirectory() ? 0 : attributes.size())
+                + ";modify=" + formatTime(attributes.lastModifiedTime().toMillis())
+                + "; " + name;
+    }
+
+    /**
+     * Parses a fact line sent by MLSD or MLST. Unknown facts are ignored.
+     *
+     * @param line The fact line, with or without a leading space
+     * @return The parsed facts, or null if the line is not a fact line
+    */
+    public static FileFacts parse(String line) {
+        String trimmed = line.startsWith(" ") ? line.substring(1) : line;
+        int separator = trimmed.indexOf("; ");
+        if (separator < 0) {
+            return null;
+        }
+
+        boolean directory = false;
+        long size = 0;
+        long modified = 0;
+        for (String fact : trimmed.substring(0, separator).split(";")) {
+            int equals = fact.indexOf('=');
+            if (equals < 0) {
+                continue;
+            }
+            String value = fact.substring(equals + 1);
+            try {
+                switch (fact.substring(0, equals).toLowerCase()) {
+                    case "type":
+                        directory = value.equalsIgnoreCase("dir") || value.equalsIgnoreCase("cdir") || value.equalsIgnoreCase("pdir");
+                        break;
+                    case "size":
+                        size = Long.parseLong(value);
+                        break;
+                    case "modify":
+                        modified = parseTime(value);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                return null;
+            }
+        }
+        return new FileFacts(trimmed.substring(separator + 2), directory, size, modified);
+    }
+
+    /**
+     * Formats a time as RFC 3659 requires, e.g. for the MDTM reply.
+     *
+     * @param millis Milliseconds since the epoch
+     * @return The UTC time as YYYYMMDDHHMMSS.sss
+    */
+    public static String formatTime(long millis) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Parses an RFC 3659 time, with or without fractions of a second.
+     *
+     * @param value The UTC time as YYYYMMDDHHMMSS[.sss]
+     * @return Milliseconds since the epoch
+     * @throws DateTimeParseException if the time is malformed
+    */
+    public static long parseTime(String value) {
+        int dot = value.indexOf('.');
+        String seconds = dot < 0 ? value : value.substring(0, dot);
+        long millis = LocalDateTime.parse(seconds, WHOLE_SECONDS).toInstant(ZoneOffset.UTC).toEpochMilli();
+        if (dot >= 0) {
+            String fraction = (value.substring(dot + 1) + "000").substring(0, 3);
+            millis += Integer.parseInt(fraction);
+        }
+        return millis;
+    }
+
+    /**
+     * Gets the file name.
+     *
+     * @return The name, without any directory
+    */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Checks whether the entry is a directory.
+     *
+     * @return {@code true} for a directory
+    */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the size.
+     *
+     * @return The size in bytes, 0 for a directory
+    */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the modification time.
+     *
+     * @return Milliseconds since the epoch
+    */
+    public long getModified() {
+        return modified;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * GzipCodec frames MODE C data as a gzip stream (RFC 1952). It is the default codec, and the
+ * only one understood by clients that predate selectable codecs.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class GzipCodec implements CompressionCodec {
+    public static final GzipCodec INSTANCE = new GzipCodec();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private GzipCodec() {
+    }
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public Deflater newDeflater(int level) {
+        return new Deflater(level, true); // gzip carries raw deflate data
+    }
+
+    @Override
+    public DeflaterOutputStream compress(OutputStream out, Deflater deflater) throws IOException {
+        return new GzipStream(out, deflater);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+    @Override
+    public Checksum newChecksum() {
+        return new CRC32();
+    }
+
+    @Override
+    public void writeHeader(OutputStream out, int level) throws IOException {
+        // Magic number, deflate method, no flags, no modification time, no extra flags, unknown OS
+        out.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+    }
+
+    @Override
+    public void writeTrailer(OutputStream out, Checksum checksum, long length) throws IOException {
+        byte[] trailer = new byte[8];
+        writeIntLE(trailer, 0, checksum.getValue());
+        writeIntLE(trailer, 4, length); // Size modulo 2^32
+        out.write(trailer);
+    }
+
+    private static void writeIntLE(byte[] b, int off, long value) {
+        for (int i = 0; i < 4; i++) {
+            b[off + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    // GZIPOutputStream has no constructor taking a deflater, so the default one is swapped out
+    private static class GzipStream extends GZIPOutputStream {
+        GzipStream(OutputStream out, Deflater deflater) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.end();
+            def = deflater;
+        }
+    }
+}
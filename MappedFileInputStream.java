@@ -0,0 +1,148 @@
+/**
+ * MappedFileInputStream reads a file through a sliding memory-mapped window.
+ * Only one window of the file is mapped at a time; when it has been read, it is unmapped
+ * right away and the next window is mapped. Hot files are then served straight from the page
+ * cache without a read() system call per buffer, while many concurrent downloads of large
+ * files never hold more than one window of address space each.
+ *
+ * If another session truncates the file while it is read, touching a mapped page past the new
+ * end raises an InternalError (SIGBUS) instead of an IOException. Each read first checks that
+ * the file still covers the bytes it copies and fails with an IOException if not; an
+ * InternalError raised by a truncation racing that check is turned into an IOException too,
+ * although the JVM may deliver it a little after the copy, so callers should be ready for it.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class MappedFileInputStream extends InputStream {
+    // Unsafe.invokeCleaner unmaps a buffer immediately; null if this runtime does not offer it
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Windows are then released by the garbage collector
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private long windowStart;
+    private MappedByteBuffer window;
+
+    /**
+     * Opens a file for reading through mapped windows of the specified size.
+     *
+     * @param file The file to read
+     * @param windowSize The number of bytes mapped at a time
+     * @param offset The byte offset to start reading from
+     * @throws IOException if the file cannot be opened
+    */
+    public MappedFileInputStream(File file, long windowSize, long offset) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = Math.min(Integer.MAX_VALUE, Math.max(1, windowSize)); // a mapping holds at most 2 GB
+        this.windowStart = Math.min(Math.max(0, offset), size);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureWindow()) {
+            return -1;
+        }
+        try {
+            return window.get() & 0xFF;
+        } catch (InternalError e) {
+            throw truncated(e);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureWindow()) {
+            return -1;
+        }
+        int count = Math.min(length, window.remaining());
+        if (channel.size() < windowStart + window.position() + count) {
+            throw new IOException("File was truncated while it was read");
+        }
+        try {
+            window.get(buffer, offset, count);
+        } catch (InternalError e) {
+            throw truncated(e);
+        }
+        return count;
+    }
+
+    // The error raised when a mapped page is no longer backed by the file
+    private IOException truncated(InternalError e) {
+        return new IOException("File was truncated while it was read", e);
+    }
+
+    /**
+     * Makes sure the current window has unread bytes, mapping the next window if needed.
+     *
+     * @return {@code false} if the end of the file has been reached
+    */
+    private boolean ensureWindow() throws IOException {
+        if (window != null && window.hasRemaining()) {
+            return true;
+        }
+        if (window != null) {
+            windowStart += window.capacity();
+            unmap();
+        }
+        if (windowStart >= size) {
+            return false;
+        }
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+        return true;
+    }
+
+    private void unmap() {
+        MappedByteBuffer mapped = window;
+        window = null;
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, mapped);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (window != null) {
+            unmap();
+        }
+        channel.close();
+    }
+}
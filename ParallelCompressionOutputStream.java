@@ -0,0 +1,223 @@
+/**
+ * ParallelCompressionOutputStream compresses MODE C data on several cores, in the manner of pigz.
+ * The input is cut into chunks that are deflated independently on a shared fork-join pool, each
+ * primed with the last 32 KB of the chunk before it so the ratio stays close to serial deflate.
+ * Every chunk but the last ends on a byte boundary (a sync flush), so the compressed chunks can
+ * be written one after another, in order, as a single ordinary gzip or zlib stream. The checksum
+ * for the trailer is computed on the writing thread while the chunks are being deflated.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+public class ParallelCompressionOutputStream extends CompressionOutputStream {
+    // Number of threads compressing chunks, shared by all transfers
+    static final int THREADS = Integer.getInteger("ftp.compressThreads", Runtime.getRuntime().availableProcessors());
+
+    private static final int CHUNK_SIZE = Integer.getInteger("ftp.compressChunkSize", 256 * 1024);
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(Math.max(1, THREADS));
+
+    private final OutputStream out;
+    private final Checksum checksum;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Chunk> pending = new ArrayDeque<>(); // chunks being deflated, in stream order
+    private final int maxPending = 2 * Math.max(1, THREADS);
+    private ByteBuffer chunk;
+    private byte[] dictionary = null;
+    private long compressedBytes = 0;
+
+    /**
+     * Constructs a ParallelCompressionOutputStream and writes the codec header.
+     *
+     * @param out The data connection output stream
+     * @param codec The codec framing the compressed data
+     * @param level The compression level for compressible chunks, 0 to 9
+     * @throws IOException if the codec header cannot be written
+    */
+    public ParallelCompressionOutputStream(OutputStream out, CompressionCodec codec, int level) throws IOException {
+        super(codec, level);
+        this.out = out;
+        this.checksum = codec.newChecksum();
+        this.chunk = BufferPool.HEAP.acquire(CHUNK_SIZE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        codec.writeHeader(header, level);
+        writeCompressed(header.toByteArray());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checksum.update(b, off, len);
+        bytesIn += len;
+        while (len > 0) {
+            int length = Math.min(len, CHUNK_SIZE - chunk.position());
+            chunk.put(b, off, length);
+            off += length;
+            len -= length;
+            if (chunk.position() == CHUNK_SIZE) {
+                submit(false);
+            }
+        }
+    }
+
+    // Hands the filled chunk to the pool, first writing out finished chunks if too many are pending
+    private void submit(boolean last) throws IOException {
+        while (pending.size() >= maxPending) {
+            writeNext();
+        }
+
+        byte[] data = chunk.array();
+        int length = chunk.position();
+        byte[] chunkDictionary = dictionary;
+        if (length >= DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(data, length - DICTIONARY_SIZE, length);
+        } else if (length > 0) {
+            // A short chunk only happens last, so no later chunk needs the dictionary
+            dictionary = null;
+        }
+
+        int chunkLevel = length == 0 ? level : chooseLevel(data, 0, length, level);
+        blocks++;
+        if (chunkLevel == Deflater.NO_COMPRESSION) {
+            rawBlocks++;
+        }
+
+        ForkJoinTask<byte[]> task = pool.submit(() -> deflate(data, length, chunkDictionary, chunkLevel, last));
+        pending.add(new Chunk(chunk, task));
+        chunk = last ? null : BufferPool.HEAP.acquire(CHUNK_SIZE);
+    }
+
+    // Runs on the pool: deflates one chunk to raw deflate data that ends on a byte boundary
+    private byte[] deflate(byte[] data, int length, byte[] chunkDictionary, int chunkLevel, boolean last) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            deflater.reset();
+            deflater.setLevel(chunkLevel);
+            if (chunkDictionary != null) {
+                deflater.setDictionary(chunkDictionary);
+            }
+            deflater.setInput(data, 0, length);
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[Math.max(4096, length / 4)];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int size = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, size);
+                }
+            } else {
+                // Keep going while input is left: applying a level change can stop short of it
+                int size;
+                do {
+                    size = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, size);
+                } while (size == buffer.length || !deflater.needsInput());
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflaters.add(deflater);
+        }
+    }
+
+    // Waits for the oldest pending chunk and writes its compressed data
+    private void writeNext() throws IOException {
+        Chunk next = pending.poll();
+        try {
+            writeCompressed(next.task.join());
+        } catch (RuntimeException e) {
+            throw new IOException("Parallel compression failed", e);
+        } finally {
+            BufferPool.HEAP.release(next.buffer);
+        }
+    }
+
+    private void writeCompressed(byte[] data) throws IOException {
+        out.write(data);
+        compressedBytes += data.length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Deflates the last chunk, writes every pending chunk and the codec trailer, and closes the
+     * data connection.
+    */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submit(true);
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+
+            ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+            codec.writeTrailer(trailer, checksum, bytesIn);
+            writeCompressed(trailer.toByteArray());
+            out.flush();
+        } finally {
+            // On failure, let running chunks finish before their buffers go back to the pool
+            for (Chunk abandoned : pending) {
+                abandoned.task.quietlyJoin();
+                BufferPool.HEAP.release(abandoned.buffer);
+            }
+            pending.clear();
+            BufferPool.HEAP.release(chunk);
+            chunk = null;
+
+            Deflater deflater;
+            while ((deflater = deflaters.poll()) != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+
+    @Override
+    protected long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    // A chunk's input buffer and the task deflating it
+    private static class Chunk {
+        final ByteBuffer buffer;
+        final ForkJoinTask<byte[]> task;
+
+        Chunk(ByteBuffer buffer, ForkJoinTask<byte[]> task) {
+            this.buffer = buffer;
+            this.task = task;
+        }
+    }
+}
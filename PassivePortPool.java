@@ -0,0 +1,256 @@
+/**
+ * PassivePortPool keeps a pool of pre-bound passive-mode listeners shared by all sessions.
+ * PASV leases a listener that is already bound, so the reply goes out without binding a new
+ * socket or guessing a free port. The data connection is accepted asynchronously by a single
+ * acceptor thread; the session only waits for it, with a timeout, when the transfer starts.
+ * When the transfer ends the listener goes back to the pool instead of being leaked.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class PassivePortPool implements Runnable {
+    private static final PassivePortPool shared = new PassivePortPool(ServerConfig.PASSIVE_PORT_MIN,
+            ServerConfig.PASSIVE_PORT_MAX, ServerConfig.PASSIVE_POOL_SIZE);
+
+    private final int minPort;
+    private final int maxPort;
+    private final Selector selector;
+    private final Queue<ServerSocketChannel> idle = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private int nextPort;
+
+    /**
+     * Constructs a PassivePortPool and binds the initial listeners.
+     *
+     * @param minPort The lowest passive port
+     * @param maxPort The highest passive port
+     * @param initialListeners The number of listeners bound up front
+    */
+    public PassivePortPool(int minPort, int maxPort, int initialListeners) {
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.nextPort = minPort;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open passive-port selector", e);
+        }
+
+        for (int i = 0; i < initialListeners; i++) {
+            ServerSocketChannel listener = bindNext();
+            if (listener == null) {
+                break;
+            }
+            idle.add(listener);
+        }
+
+        Thread acceptor = new Thread(this, "ftp-passive-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Gets the pool shared by all sessions of this server.
+     *
+     * @return The shared pool
+    */
+    public static PassivePortPool getShared() {
+        return shared;
+    }
+
+    /**
+     * Leases a listener for one data connection and starts accepting on it.
+     *
+     * @param clientAddress The address of the client; connections from other hosts are refused
+     * @return The lease, or null if every port in the range is in use
+    */
+    public Lease lease(InetAddress clientAddress) {
+        ServerSocketChannel pooled = idle.poll();
+        ServerSocketChannel listener = pooled != null ? pooled : bindNext();
+        if (listener == null) {
+            return null;
+        }
+
+        Lease lease = new Lease(listener, clientAddress);
+        execute(() -> {
+            try {
+                listener.register(selector, SelectionKey.OP_ACCEPT, lease);
+            } catch (IOException e) {
+                lease.connection.completeExceptionally(e);
+            }
+        });
+        return lease;
+    }
+
+    // Binds a listener on the next free port of the range, or returns null if none is free
+    private synchronized ServerSocketChannel bindNext() {
+        int ports = maxPort - minPort + 1;
+        for (int tried = 0; tried < ports; tried++) {
+            int port = nextPort;
+            nextPort = nextPort == maxPort ? minPort : nextPort + 1;
+            try {
+                ServerSocketChannel listener = ServerSocketChannel.open();
+                try {
+                    listener.bind(new InetSocketAddress(port));
+                    listener.configureBlocking(false);
+                    return listener;
+                } catch (IOException e) {
+                    listener.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                selector.select();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        ((Lease) key.attachment()).onAcceptable(key);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One session's claim on a pooled listener, from PASV until the transfer ends.
+    */
+    public class Lease {
+        private final ServerSocketChannel listener;
+        private final InetAddress clientAddress;
+        private final CompletableFuture<SocketChannel> connection = new CompletableFuture<>();
+        private boolean released = false;
+
+        private Lease(ServerSocketChannel listener, InetAddress clientAddress) {
+            this.listener = listener;
+            this.clientAddress = clientAddress;
+        }
+
+        /**
+         * Gets the port the client should connect to.
+         *
+         * @return The passive port
+        */
+        public int getPort() {
+            return listener.socket().getLocalPort();
+        }
+
+        // Runs on the acceptor thread when a connection is waiting
+        private void onAcceptable(SelectionKey key) {
+            try {
+                SocketChannel channel;
+                while ((channel = listener.accept()) != null) {
+                    if (clientAddress != null && !clientAddress.equals(channel.socket().getInetAddress())) {
+                        // Only the client that sent PASV may use this data port
+                        channel.close();
+                        continue;
+                    }
+                    key.interestOps(0);
+                    channel.configureBlocking(true);
+                    if (!connection.complete(channel)) {
+                        channel.close();
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                key.interestOps(0);
+                connection.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Waits for the client's data connection.
+         *
+         * @param timeoutMillis How long to wait for the client to connect
+         * @return The data connection, in blocking mode
+         * @throws IOException if the client does not connect in time or the accept fails
+        */
+        public SocketChannel accept(long timeoutMillis) throws IOException {
+            try {
+                return connection.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new IOException("Timed out waiting for data connection", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Data connection failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for data connection", e);
+            }
+        }
+
+        /**
+         * Returns the listener to the pool. Connections that arrived but were never used are
+         * closed first, so the next session cannot receive a stale connection.
+        */
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (!connection.cancel(false) && !connection.isCompletedExceptionally()) {
+                try {
+                    connection.getNow(null).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            execute(() -> {
+                SelectionKey key = listener.keyFor(selector);
+                if (key != null) {
+                    key.interestOps(0);
+                }
+                try {
+                    SocketChannel stale;
+                    while ((stale = listener.accept()) != null) {
+                        stale.close();
+                    }
+                    idle.add(listener);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/**
+ * ReactorServer is an alternative FTP server engine built on non-blocking channels.
+ * Instead of a thread per client, a small number of event loops (one per core by default)
+ * each multiplex many control connections with a {@link Selector}. Command lines are parsed
+ * on the event loop and passed to a {@link ClientHandler}, so the command semantics are the
+ * same as in the thread-per-connection engine. Only commands that move data or are otherwise
+ * slow, as marked in ClientHandler's command table, are handed off to a worker pool, so a slow
+ * transfer never stalls other sessions.
+ *
+ * A client that sends commands without reading the replies is not read from while more than
+ * {@link #MAX_OUTBOUND_BYTES} of replies wait for it, so it cannot make the server queue replies
+ * without bound.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReactorServer {
+    // Reading from a client stops while this many bytes of replies wait to be written to it
+    private static final long MAX_OUTBOUND_BYTES = 64 * 1024;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final SessionLimiter limiter;
+
+    /**
+     * Constructs a ReactorServer listening on the specified port.
+     *
+     * @param port The port to listen on for control connections
+     * @param eventLoops The number of selector event loops
+     * @param transferWorkers The number of worker threads used for transfers
+     * @param limiter The session caps applied to new connections
+    */
+    public ReactorServer(int port, int eventLoops, int transferWorkers, SessionLimiter limiter) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        this.workers = Executors.newFixedThreadPool(Math.max(1, transferWorkers), BufferPool.cachingThreads("ftp-transfer-worker-"));
+        this.limiter = limiter;
+    }
+
+    /**
+     * Starts the event loops and accepts control connections forever, assigning each new
+     * connection to an event loop in round-robin order.
+     *
+     * @throws IOException if the server socket cannot be opened
+    */
+    public void serve() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("FTP Server started on port " + port + " (" + loops.length + " event loops)");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                String ip = channel.socket().getInetAddress().getHostAddress();
+
+                if (!limiter.tryAcquire(ip)) {
+                    FTPServer.refuseConnection(channel.socket());
+                    continue;
+                }
+                System.out.println("New client connected: " + ip);
+
+                // Replies are already batched, so Nagle's algorithm would only delay them
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /**
+     * A single selector thread that owns a set of control connections.
+    */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "ftp-event-loop-" + index);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * Runs a task on this event loop's thread.
+         *
+         * @param task The task to run
+        */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Hands a freshly accepted connection over to this event loop.
+         *
+         * @param channel The accepted control connection
+        */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    Session session = new Session(this, channel);
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                    session.handler.sendWelcome();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    limiter.release(channel.socket().getInetAddress().getHostAddress());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Session session = (Session) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                session.onWritable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                session.onReadable();
+                            }
+                        } catch (IOException e) {
+                            session.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of one control connection: the bytes of the line being assembled, the complete
+     * lines waiting to be executed, and the replies waiting to be written.
+    */
+    private class Session {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final String ip;
+        private final ClientHandler handler;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        private final CommandLine line = new CommandLine(); // the line being assembled, reused for every line
+        private final CommandLine queuedLine = new CommandLine(); // a line taken from pendingLines
+        private final Queue<String> pendingLines = new ArrayDeque<>();
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong outboundBytes = new AtomicLong(); // bytes in outbound, queued by workers too
+        private SelectionKey key;
+        private boolean busy = false;
+        private boolean closing = false; // the session ends once the replies in outbound are written
+        private boolean closed = false;
+
+        Session(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.ip = channel.socket().getInetAddress().getHostAddress();
+            this.handler = new ClientHandler(new ReplyStream(), channel.socket().getLocalAddress(), channel.socket().getInetAddress());
+        }
+
+        /**
+         * Reads whatever is available, splits it into command lines and executes them. The
+         * replies to all of them are flushed together once the lines read so far are done, so a
+         * client that pipelines commands gets its replies in one write.
+        */
+        void onReadable() throws IOException {
+            int bytesRead = channel.read(readBuffer);
+            if (bytesRead == -1) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    line.trimCarriageReturn();
+                    if (!busy && pendingLines.isEmpty()) {
+                        // Nothing is waiting, so the line runs straight from the buffer
+                        dispatch(line);
+                    } else {
+                        pendingLines.add(line.toString());
+                    }
+                    line.clear();
+                } else if (!line.append(b)) {
+                    closeAfterReply("500 Command line too long\r\n");
+                    return;
+                }
+            }
+            readBuffer.clear();
+
+            processPendingLines();
+            if (!busy) {
+                handler.flushReplies();
+            }
+            updateReadInterest();
+        }
+
+        /**
+         * Watches for commands only while no transfer runs and the client keeps up with its
+         * replies. Called whenever either changes.
+        */
+        private void updateReadInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            boolean reading = !busy && !closing && outboundBytes.get() < MAX_OUTBOUND_BYTES;
+            int ops = key.interestOps();
+            key.interestOps(reading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        }
+
+        /**
+         * Sends a last reply after the ones already queued, then ends the session.
+         *
+         * @param text The reply, including its CRLF terminator
+        */
+        private void closeAfterReply(String text) {
+            handler.flushReplies();
+            closing = true;
+            queue(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+            updateReadInterest();
+            enableWrite();
+        }
+
+        private void queue(ByteBuffer buffer) {
+            outboundBytes.addAndGet(buffer.remaining());
+            outbound.add(buffer);
+        }
+
+        /**
+         * Executes buffered command lines in order until a transfer is handed off to a worker.
+         * While a transfer runs, reading is suspended so that later commands wait for it.
+        */
+        void processPendingLines() {
+            while (!busy && !closed && !pendingLines.isEmpty()) {
+                queuedLine.set(pendingLines.poll());
+                dispatch(queuedLine);
+            }
+        }
+
+        /**
+         * Executes a command line on the event loop, or hands it to a worker if it transfers
+         * data or is otherwise slow. A worker gets a copy, since the line's buffer is reused.
+         *
+         * @param commandLine The command line
+        */
+        private void dispatch(CommandLine commandLine) {
+            if (closed) {
+                return;
+            }
+            if (ClientHandler.runsOnWorker(commandLine)) {
+                String text = commandLine.toString();
+                busy = true;
+                updateReadInterest();
+                workers.execute(() -> {
+                    try {
+                        handler.handleCommand(text);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    } finally {
+                        loop.execute(this::transferFinished);
+                    }
+                });
+            } else {
+                try {
+                    handler.handleCommand(commandLine);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void transferFinished() {
+            busy = false;
+            if (closed) {
+                handler.close();
+                return;
+            }
+            processPendingLines();
+            if (!busy) {
+                handler.flushReplies();
+            }
+            updateReadInterest();
+        }
+
+        /**
+         * Writes queued replies and stops watching for writability once they are all sent.
+         * Reading resumes once the client has taken enough of them.
+        */
+        void onWritable() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = outbound.peek()) != null) {
+                outboundBytes.addAndGet(-channel.write(buffer));
+                if (buffer.hasRemaining()) {
+                    updateReadInterest();
+                    return;
+                }
+                outbound.poll();
+            }
+            if (closing) {
+                close();
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            updateReadInterest();
+        }
+
+        private void enableWrite() {
+            if (!closed && key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            limiter.release(ip);
+            if (!busy) {
+                // Otherwise the handler is closed once its transfer has finished
+                handler.close();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+
+        /**
+         * Collects the bytes of a reply and queues them for the event loop when flushed.
+         * The handler's writer flushes once per batch of lines on the event loop, and after every
+         * reply of a command running on a worker.
+        */
+        private class ReplyStream extends OutputStream {
+            private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+            @Override
+            public synchronized void write(int b) {
+                pending.write(b);
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                pending.write(b, off, len);
+            }
+
+            @Override
+            public synchronized void flush() {
+                if (pending.size() == 0) {
+                    return;
+                }
+                queue(ByteBuffer.wrap(pending.toByteArray()));
+                pending.reset();
+                loop.execute(Session.this::enableWrite);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * ReplyWriter sends replies on a control connection. Replies are plain text, so unlike
+ * PrintWriter.printf there is no format string to parse, no Formatter to create, and a '%' in a
+ * file name cannot break a reply. ASCII replies, which are nearly all of them, are encoded into a
+ * buffer reused for the whole session. As with PrintWriter, a failed write does not throw; the
+ * session notices the closed connection when it next reads a command.
+ *
+ * Each reply is flushed at once unless flushing is deferred. A session defers it while it works
+ * through commands a client sent together, so their replies leave in one write and, usually, one
+ * TCP segment instead of one per command.
+ *
+ * The nio engine may write replies from a worker and flush them from its event loop, so writes
+ * are guarded by a ReentrantLock rather than a monitor, which would pin a virtual thread's
+ * carrier while it blocks on the socket.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ReplyWriter {
+    // Replies held back beyond this many bytes are written out, though not flushed, to bound the buffer
+    private static final int MAX_PENDING = 16384;
+
+    private final OutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    private byte[] buffer = new byte[1024];
+    private int count = 0;
+    private boolean deferred = false;
+    private boolean failed = false;
+
+    /**
+     * Constructs a ReplyWriter that flushes every reply.
+     *
+     * @param out The control connection
+    */
+    public ReplyWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Sends a reply, or several. The connection is flushed unless flushing is deferred.
+     *
+     * @param text The reply text including its CRLF terminator
+    */
+    public void reply(String text) {
+        lock.lock();
+        try {
+            if (failed) {
+                return;
+            }
+            int length = text.length();
+            ensureCapacity(length);
+            int start = count;
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    // A file name outside ASCII; encode the whole reply the slow way
+                    byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+                    count = start;
+                    ensureCapacity(encoded.length);
+                    System.arraycopy(encoded, 0, buffer, count, encoded.length);
+                    count += encoded.length;
+                    break;
+                }
+                buffer[count++] = (byte) c;
+            }
+            if (!deferred) {
+                flushBuffer();
+            } else if (count >= MAX_PENDING) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        } catch (IOException e) {
+            failed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the replies held back while flushing was deferred.
+    */
+    public void flush() {
+        lock.lock();
+        try {
+            if (!failed) {
+                flushBuffer();
+            }
+        } catch (IOException e) {
+            failed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Turns deferred flushing on or off. Turning it off sends the replies held back so far.
+     *
+     * @param defer true to hold replies back until {@link #flush()}
+     * @return Whether flushing was deferred before
+    */
+    public boolean setDeferred(boolean defer) {
+        lock.lock();
+        try {
+            boolean previous = deferred;
+            deferred = defer;
+            if (!defer) {
+                flush();
+            }
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (count + length > buffer.length) {
+            byte[] larger = new byte[Math.max(count + length, buffer.length * 2)];
+            System.arraycopy(buffer, 0, larger, 0, count);
+            buffer = larger;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        out.flush();
+    }
+}
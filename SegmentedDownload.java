@@ -0,0 +1,162 @@
+/**
+ * SegmentedDownload downloads one file as several byte ranges in parallel.
+ * Every segment runs on its own control session and PASV data connection and asks the server
+ * for its range with RANG. Segments are written in place into a preallocated local file with
+ * positional writes, so they can arrive in any order. A segment that fails is retried on its
+ * own, resuming from the last byte it wrote, without disturbing the other segments.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SegmentedDownload {
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final int segments;
+    private final int retries;
+
+    /**
+     * Constructs a SegmentedDownload for the specified server and account.
+     *
+     * @param host The server host
+     * @param port The server control port
+     * @param username The username used for every segment session
+     * @param password The password used for every segment session
+     * @param segments The number of parallel segments
+     * @param retries The number of times a failed segment is retried
+    */
+    public SegmentedDownload(String host, int port, String username, String password, int segments, int retries) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.segments = Math.max(1, segments);
+        this.retries = Math.max(0, retries);
+    }
+
+    /**
+     * Downloads a remote file into a local file.
+     *
+     * @param remotePath The path of the file on the server, relative to the server root
+     * @param size The size of the remote file in bytes
+     * @param localPath The path of the local file to write
+     * @throws IOException if a segment still fails after all retries
+    */
+    public void download(String remotePath, long size, String localPath) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(localPath, "rw")) {
+            // Preallocate so every segment can write at its own offset
+            file.setLength(size);
+            FileChannel fileChannel = file.getChannel();
+
+            int segmentCount = (int) Math.max(1, Math.min(segments, size));
+            long segmentSize = (size + segmentCount - 1) / segmentCount;
+
+            ExecutorService pool = Executors.newFixedThreadPool(segmentCount);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (long start = 0; start < size; start += segmentSize) {
+                    long end = Math.min(start + segmentSize, size);
+                    long segmentStart = start;
+                    results.add(pool.submit(() -> {
+                        downloadSegment(remotePath, segmentStart, end, fileChannel);
+                        return null;
+                    }));
+                }
+
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Download interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Segment failed: " + e.getCause().getMessage(), e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Downloads one byte range, retrying from the last written byte when it fails. A segment
+     * whose bytes have all been written is done even if its final reply was lost.
+     *
+     * @param remotePath The path of the file on the server
+     * @param start The first byte of the range
+     * @param end The end of the range (exclusive)
+     * @param fileChannel The channel of the preallocated local file
+     * @throws IOException if the segment still fails after all retries
+    */
+    private void downloadSegment(String remotePath, long start, long end, FileChannel fileChannel) throws IOException {
+        long[] position = {start};
+        for (int attempt = 0; ; attempt++) {
+            if (position[0] >= end) {
+                return; // Every byte was written before the last attempt lost its reply
+            }
+            try {
+                fetchRange(remotePath, position, end, fileChannel);
+                return;
+            } catch (IOException e) {
+                if (attempt >= retries) {
+                    throw e;
+                }
+                System.out.println("Retrying segment at byte " + position[0] + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens a session, requests the rest of the byte range and writes what arrives into the
+     * local file. The position is advanced as data is written, so a retry resumes from there.
+     *
+     * @param remotePath The path of the file on the server
+     * @param position A one-element array holding the next byte to fetch
+     * @param end The end of the range (exclusive)
+     * @param fileChannel The channel of the preallocated local file
+     * @throws IOException if the range could not be fetched completely
+    */
+    private void fetchRange(String remotePath, long[] position, long end, FileChannel fileChannel) throws IOException {
+        try (FTPSession session = new FTPSession(host, port)) {
+            session.login(username, password);
+
+            ByteBuffer buffer = BufferPool.DIRECT.acquire(64 * 1024);
+            try (SocketChannel dataChannel = session.openPassive()) {
+                session.expect("RANG " + position[0] + " " + (end - 1), "350");
+                session.expect("RETR " + remotePath, "150");
+
+                while (position[0] < end && dataChannel.read(buffer.clear()) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position[0] += fileChannel.write(buffer, position[0]);
+                    }
+                }
+            } finally {
+                BufferPool.DIRECT.release(buffer);
+            }
+
+            String reply = session.readReply();
+            if (!reply.startsWith("226")) {
+                throw new IOException("RETR failed: " + reply);
+            }
+            if (position[0] < end) {
+                throw new IOException("Data connection closed at byte " + position[0] + " of segment ending at " + end);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * SegmentedUpload uploads one file as several byte ranges in parallel.
+ * The upload must first be opened on the server with UPLD OPEN, which returns a token. Every
+ * range then runs on its own control session and PASV data connection and is sent with
+ * UPLD PART. The server writes each range at its offset and only publishes the file after
+ * UPLD DONE, once every range has arrived. A range that fails is retried on its own.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SegmentedUpload {
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final int segments;
+    private final int retries;
+
+    /**
+     * Constructs a SegmentedUpload for the specified server and account.
+     *
+     * @param host The server host
+     * @param port The server control port
+     * @param username The username used for every segment session
+     * @param password The password used for every segment session
+     * @param segments The number of parallel segments
+     * @param retries The number of times a failed segment is retried
+    */
+    public SegmentedUpload(String host, int port, String username, String password, int segments, int retries) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.segments = Math.max(1, segments);
+        this.retries = Math.max(0, retries);
+    }
+
+    /**
+     * Uploads every range of a local file to an upload opened with UPLD OPEN.
+     *
+     * @param localPath The path of the local file to send
+     * @param token The token returned by UPLD OPEN
+     * @throws IOException if a segment still fails after all retries
+    */
+    public void upload(String localPath, String token) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(localPath), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            int segmentCount = (int) Math.max(1, Math.min(segments, size));
+            long segmentSize = (size + segmentCount - 1) / segmentCount;
+
+            ExecutorService pool = Executors.newFixedThreadPool(segmentCount);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (long start = 0; start < size; start += segmentSize) {
+                    long end = Math.min(start + segmentSize, size);
+                    long segmentStart = start;
+                    results.add(pool.submit(() -> {
+                        uploadSegment(token, segmentStart, end, fileChannel);
+                        return null;
+                    }));
+                }
+
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Upload interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Segment failed: " + e.getCause().getMessage(), e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Uploads one byte range, sending it again from the start of the range when it fails.
+     *
+     * @param token The upload token
+     * @param start The first byte of the range
+     * @param end The end of the range (exclusive)
+     * @param fileChannel The channel of the local file
+     * @throws IOException if the segment still fails after all retries
+    */
+    private void uploadSegment(String token, long start, long end, FileChannel fileChannel) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                sendRange(token, start, end, fileChannel);
+                return;
+            } catch (IOException e) {
+                if (attempt >= retries) {
+                    throw e;
+                }
+                System.out.println("Retrying segment at byte " + start + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens a session and sends one byte range of the local file with positional reads.
+     *
+     * @param token The upload token
+     * @param start The first byte of the range
+     * @param end The end of the range (exclusive)
+     * @param fileChannel The channel of the local file
+     * @throws IOException if the range could not be sent completely
+    */
+    private void sendRange(String token, long start, long end, FileChannel fileChannel) throws IOException {
+        try (FTPSession session = new FTPSession(host, port)) {
+            session.login(username, password);
+
+            ByteBuffer buffer = BufferPool.DIRECT.acquire(64 * 1024);
+            try (SocketChannel dataChannel = session.openPassive()) {
+                session.expect("UPLD PART " + token + " " + start, "150");
+
+                long position = start;
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                    int bytesRead = fileChannel.read(buffer, position);
+                    if (bytesRead == -1) {
+                        throw new IOException("Local file shrank during upload");
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        dataChannel.write(buffer);
+                    }
+                    position += bytesRead;
+                }
+            } finally {
+                BufferPool.DIRECT.release(buffer);
+            }
+
+            String reply = session.readReply();
+            if (!reply.startsWith("226")) {
+                throw new IOException("UPLD PART failed: " + reply);
+            }
+        }
+    }
+}
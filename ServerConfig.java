@@ -0,0 +1,137 @@
+/**
+ * ServerConfig holds the tunable settings of the FTP server.
+ * Every setting is read once from a Java system property, so it can be changed on the
+ * command line without touching the code, e.g. {@code java -Dftp.engine=nio FTPServer}.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+public final class ServerConfig {
+    // Server engine: "thread" (one platform thread per client), "virtual" (one virtual thread per client) or "nio" (selector event loops)
+    public static final String ENGINE = System.getProperty("ftp.engine", "thread");
+
+    // Number of selector event loops used by the nio engine (defaults to one per core)
+    public static final int EVENT_LOOPS = Integer.getInteger("ftp.eventLoops", Runtime.getRuntime().availableProcessors());
+
+    // Number of worker threads that run RETR/STOR/LIST for the nio engine
+    public static final int TRANSFER_WORKERS = Integer.getInteger("ftp.transferWorkers", 2 * Runtime.getRuntime().availableProcessors());
+
+    // Maximum number of concurrent sessions, 0 for no limit
+    public static final int MAX_SESSIONS = Integer.getInteger("ftp.maxSessions", 0);
+
+    // Maximum number of concurrent sessions from one client IP address, 0 for no limit
+    public static final int MAX_SESSIONS_PER_IP = Integer.getInteger("ftp.maxSessionsPerIp", 0);
+
+    // Number of bytes requested per FileChannel.transferFrom call when receiving a binary stream-mode STOR
+    public static final long STOR_CHUNK_SIZE = Long.getLong("ftp.storChunkSize", 1024 * 1024);
+
+    // Milliseconds an unfinished UPLD upload may go without a part before it is abandoned, 0 to keep it
+    public static final long UPLOAD_IDLE_TIMEOUT = Long.getLong("ftp.uploadIdleTimeout", 10 * 60 * 1000);
+
+    // Maximum number of unfinished UPLD uploads one user may have, 0 for no limit
+    public static final int MAX_UPLOADS_PER_USER = Integer.getInteger("ftp.maxUploadsPerUser", 8);
+
+    // Files of at least this many bytes are read through memory-mapped windows for framed RETR, 0 to disable
+    public static final long MMAP_THRESHOLD = Long.getLong("ftp.mmapThreshold", 64L * 1024 * 1024);
+
+    // Number of bytes mapped at a time when reading a file through memory-mapped windows
+    public static final long MMAP_WINDOW_SIZE = Long.getLong("ftp.mmapWindowSize", 16L * 1024 * 1024);
+
+    // Range of ports used for passive-mode data connections
+    public static final int PASSIVE_PORT_MIN = Integer.getInteger("ftp.passivePortMin", 49152);
+    public static final int PASSIVE_PORT_MAX = Integer.getInteger("ftp.passivePortMax", 65535);
+
+    // Number of passive-mode listeners bound when the server starts; more are bound on demand
+    public static final int PASSIVE_POOL_SIZE = Integer.getInteger("ftp.passivePoolSize", 64);
+
+    // Milliseconds a transfer waits for the client to open the data connection announced by PASV
+    public static final long DATA_CONNECTION_TIMEOUT = Long.getLong("ftp.dataTimeout", 30000);
+
+    // Maximum number of data bytes per MODE B block, at most 65535
+    public static final int BLOCK_SIZE = Integer.getInteger("ftp.blockSize", BlockOutputStream.MAX_BLOCK_SIZE);
+
+    // Bytes between the restart markers sent in MODE B, 0 to send none
+    public static final long BLOCK_RESTART_INTERVAL = Long.getLong("ftp.blockRestartInterval", 8L * 1024 * 1024);
+
+    // Whether a MODE B data connection stays open after a RETR or STOR for the next transfer, without another PASV
+    public static final boolean KEEP_BLOCK_CONNECTION = Boolean.parseBoolean(System.getProperty("ftp.keepBlockConnection", "true"));
+
+    // Codec framing MODE C data ("gzip" or "zlib") and deflate level for new sessions
+    public static final CompressionCodec COMPRESSION_CODEC = getCodec("ftp.compressCodec", GzipCodec.INSTANCE);
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("ftp.compressLevel", 6);
+
+    // Byte budget of the on-disk cache of compressed files for MODE C, 0 to disable it
+    public static final long COMPRESS_CACHE_BYTES = Long.getLong("ftp.compressCacheBytes", 256L * 1024 * 1024);
+
+    // Files smaller than this are compressed on every MODE C download rather than cached
+    public static final long COMPRESS_CACHE_MIN_SIZE = Long.getLong("ftp.compressCacheMinSize", 64 * 1024);
+
+    // Byte budget of the in-memory cache of small files for RETR, 0 to disable it
+    public static final long CONTENT_CACHE_BYTES = Long.getLong("ftp.contentCacheBytes", 64L * 1024 * 1024);
+
+    // Largest file kept in the in-memory cache
+    public static final long CONTENT_CACHE_MAX_FILE_SIZE = Long.getLong("ftp.contentCacheMaxFileSize", 1024 * 1024);
+
+    // Milliseconds a cached file is served before it is checked against the file on disk
+    public static final long CONTENT_CACHE_TTL = Long.getLong("ftp.contentCacheTtl", 5000);
+
+    // Byte budget of the cache of directory listings for LIST, 0 to disable it
+    public static final long LISTING_CACHE_BYTES = Long.getLong("ftp.listingCacheBytes", 16L * 1024 * 1024);
+
+    // Block size of the signatures sent for delta uploads, 0 to choose it from each file's size
+    public static final int DELTA_BLOCK_SIZE = Integer.getInteger("ftp.deltaBlockSize", 0);
+
+    // Digest algorithm for new sessions and inline transfer digests: SHA-256, SHA-1, MD5 or CRC32
+    public static final String HASH_ALGORITHM = getHashAlgorithm("ftp.hashAlgorithm", "SHA-256");
+
+    // Whether whole binary RETR and STOR transfers report the file's digest in the 226 reply
+    public static final boolean TRANSFER_DIGESTS = Boolean.parseBoolean(System.getProperty("ftp.transferDigests", "true"));
+
+    // File the accounts are loaded from, one "username:iterations:salt:hash" line each; keep it out of the FTP root
+    public static final String USERS_FILE = System.getProperty("ftp.usersFile", "ServerData/users.txt");
+
+    // Milliseconds between checks of the accounts file for changes, made when someone logs in
+    public static final long USERS_RELOAD_INTERVAL = Long.getLong("ftp.usersReloadInterval", 2000);
+
+    // PBKDF2 iterations for new password hashes
+    public static final int PBKDF2_ITERATIONS = Integer.getInteger("ftp.pbkdf2Iterations", 600000);
+
+    // Number of recently verified logins remembered to skip PBKDF2, 0 to remember none
+    public static final int CREDENTIAL_CACHE_SIZE = Integer.getInteger("ftp.credentialCacheSize", 10000);
+
+    // Milliseconds a verified login is remembered
+    public static final long CREDENTIAL_CACHE_TTL = Long.getLong("ftp.credentialCacheTtl", 10 * 60 * 1000);
+
+    // Bytes per second all sessions together may send, and receive, on data connections; 0 for no limit
+    public static final long GLOBAL_RATE_LIMIT = Long.getLong("ftp.rateLimit", 0);
+
+    // Bytes per second all sessions of one user together may send, and receive; 0 for no limit
+    public static final long USER_RATE_LIMIT = Long.getLong("ftp.userRateLimit", 0);
+
+    // Per-user exceptions to USER_RATE_LIMIT, e.g. "jane:1048576,joe:0"
+    public static final String USER_RATE_LIMITS = System.getProperty("ftp.userRateLimits", "");
+
+    // Bytes per second one session may send, and receive; 0 for no limit
+    public static final long SESSION_RATE_LIMIT = Long.getLong("ftp.sessionRateLimit", 0);
+
+    // Users allowed to change the global limit and other users' limits with SITE RATE
+    public static final String RATE_ADMINS = System.getProperty("ftp.rateAdmins", "john");
+
+    private ServerConfig() {
+    }
+
+    // Reads a codec name property, falling back to the default for unset or unknown names
+    private static CompressionCodec getCodec(String property, CompressionCodec defaultCodec) {
+        CompressionCodec codec = CompressionCodec.forName(System.getProperty(property, defaultCodec.getName()));
+        return codec != null ? codec : defaultCodec;
+    }
+
+    // Reads a digest algorithm property, falling back to the default for unset or unknown names
+    private static String getHashAlgorithm(String property, String defaultAlgorithm) {
+        String algorithm = DigestIndex.canonicalName(System.getProperty(property, defaultAlgorithm));
+        return algorithm != null ? algorithm : defaultAlgorithm;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * SessionLimiter bounds the number of concurrent client sessions, both in total and per
+ * client IP address. The server asks for a slot before starting a session and refuses the
+ * connection straight away with a 421 reply when none is available, so an overloaded server
+ * sheds new clients quickly instead of slowing down for everyone.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionLimiter {
+    private final int maxSessions;
+    private final int maxSessionsPerIp;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final ConcurrentHashMap<String, Integer> sessionsPerIp = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a SessionLimiter with the specified caps.
+     *
+     * @param maxSessions The maximum number of concurrent sessions, or 0 for no limit
+     * @param maxSessionsPerIp The maximum number of concurrent sessions per client IP address, or 0 for no limit
+    */
+    public SessionLimiter(int maxSessions, int maxSessionsPerIp) {
+        this.maxSessions = maxSessions;
+        this.maxSessionsPerIp = maxSessionsPerIp;
+    }
+
+    /**
+     * Tries to reserve a session slot for a client.
+     *
+     * @param ip The client IP address
+     * @return {@code true} if the session may start, {@code false} if a cap has been reached
+    */
+    public boolean tryAcquire(String ip) {
+        if (sessions.incrementAndGet() > maxSessions && maxSessions > 0) {
+            sessions.decrementAndGet();
+            return false;
+        }
+
+        if (maxSessionsPerIp > 0) {
+            boolean[] admitted = {false};
+            sessionsPerIp.compute(ip, (key, count) -> {
+                int current = count == null ? 0 : count;
+                if (current >= maxSessionsPerIp) {
+                    return count;
+                }
+                admitted[0] = true;
+                return current + 1;
+            });
+
+            if (!admitted[0]) {
+                sessions.decrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases a slot previously reserved with {@link #tryAcquire(String)}.
+     *
+     * @param ip The client IP address
+    */
+    public void release(String ip) {
+        sessions.decrementAndGet();
+        if (maxSessionsPerIp > 0) {
+            sessionsPerIp.computeIfPresent(ip, (key, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * Gets the number of sessions currently running.
+     *
+     * @return The number of active sessions
+    */
+    public int getActiveSessions() {
+        return sessions.get();
+    }
+}
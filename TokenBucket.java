@@ -0,0 +1,98 @@
+/**
+ * TokenBucket limits a flow of bytes to a rate. The bucket fills at the rate, in bytes per
+ * second, up to a quarter of a second's worth, which is how much may pass in a burst after an
+ * idle spell. Bytes are paid for after they have moved: a transfer reserves whole chunks, the
+ * bucket may go into debt, and the caller then sleeps once for as long as the debt takes to
+ * repay. Later callers sharing the bucket wait behind that debt, so several transfers share
+ * the rate instead of racing for it, and no thread ever sleeps per byte.
+ *
+ * The rate can be changed while transfers run. A rate of 0 means no limit; reserving from such
+ * a bucket costs one volatile read and takes no lock.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private volatile long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Constructs a full TokenBucket.
+     *
+     * @param rate The rate in bytes per second, 0 for no limit
+    */
+    public TokenBucket(long rate) {
+        setRate(rate);
+    }
+
+    /**
+     * Changes the rate. A bucket that starts limiting starts full; one that only changes its
+     * rate keeps the tokens saved up so far, or its debt.
+     *
+     * @param rate The rate in bytes per second, 0 for no limit
+    */
+    public synchronized void setRate(long rate) {
+        refill(System.nanoTime());
+        boolean wasLimited = this.rate > 0;
+        this.rate = Math.max(0, rate);
+        tokens = wasLimited ? Math.min(tokens, capacity()) : capacity();
+    }
+
+    /**
+     * Gets the rate.
+     *
+     * @return The rate in bytes per second, 0 for no limit
+    */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Tells whether the bucket limits anything.
+     *
+     * @return {@code true} if the rate is not 0
+    */
+    public boolean isLimited() {
+        return rate > 0;
+    }
+
+    /**
+     * Takes tokens for bytes that have moved, going into debt if there are not enough.
+     *
+     * @param bytes The number of bytes
+     * @return How long the caller should wait, in nanoseconds, before moving more bytes
+    */
+    public long reserve(long bytes) {
+        if (rate <= 0) {
+            return 0;
+        }
+        synchronized (this) {
+            long currentRate = rate;
+            if (currentRate <= 0) {
+                return 0;
+            }
+            refill(System.nanoTime());
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * NANOS_PER_SECOND / currentRate);
+        }
+    }
+
+    // Adds the tokens earned since the last refill, up to the capacity
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(capacity(), tokens + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+        }
+        lastRefill = now;
+    }
+
+    // A quarter of a second of traffic may pass at once after an idle spell
+    private double capacity() {
+        return Math.max(1, rate / 4.0);
+    }
+}
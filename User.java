@@ -1,6 +1,6 @@
 /**
- * The User class represents a user with a username and password for authentication purposes.
- * This class provides methods to retrieve the username and password.
+ * The User class represents a user who has logged in. Passwords are checked by {@link UserStore},
+ * which keeps only their salted hashes, so a User holds no password.
  * 
  * @author Ching, Nicolas Miguel T.
  * @author Santos, Kyle Adrian L.
@@ -10,18 +10,15 @@
 
 public class User {
     private String username;
-    private String password;
 
     /**
-     * Constructs a new User object with the specified username and password.
+     * Constructs a new User object with the specified username.
      * 
      * @param username The username of the user
-     * @param password The password of the user
     */
 
-    public User(String username, String password) {
+    public User(String username) {
         this.username = username;
-        this.password = password;
     }
 
     /**
@@ -33,14 +30,4 @@ public class User {
     public String getUsername() {
         return username;
     }
-
-    /**
-     * Gets the password of the user.
-     * 
-     * @return The password
-    */
-    
-    public String getPassword() {
-        return password;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,306 @@
+/**
+ * UserStore holds the accounts allowed to log in, loaded from a local file into a hash map keyed
+ * by username, so a login costs one lookup however many accounts there are. Passwords are never
+ * stored: each account keeps a random salt and a PBKDF2-HMAC-SHA256 hash of its password, and a
+ * login is checked by deriving the hash again from the password given.
+ *
+ * Deriving the hash is deliberately slow, so credentials that were verified recently are
+ * remembered in a small bounded cache, under a keyed hash that is only valid while this server
+ * runs. Batch jobs that log in over and over then pay the full cost only once.
+ *
+ * The file is checked for changes at most every {@link ServerConfig#USERS_RELOAD_INTERVAL}
+ * milliseconds when someone logs in, and reloaded if it changed. Sessions that are already
+ * logged in are not affected; accounts that were removed or whose password changed simply
+ * cannot log in again. A file that fails to load leaves the previous accounts in place. The file
+ * is read under a ReentrantLock rather than a monitor, so a login on a virtual thread does not
+ * pin its carrier while it waits for the disk, and a login that finds another one already
+ * checking the file goes on with the accounts loaded before.
+ *
+ * Each line of the file is "username:iterations:salt:hash", with the salt and hash in Base64;
+ * blank lines and lines starting with '#' are ignored. Run "java UserStore [file] username
+ * password" to add an account or change its password.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class UserStore {
+    private static final String KDF = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Path file;
+    private final Map<String, CachedLogin> recentLogins;
+    private final Mac cacheKey; // keys the cached credentials; a new random key each time the server starts
+    private final Account unknownAccount; // checked for unknown names so they take as long as known ones
+    private volatile ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+    private volatile long loadedModified = -1;
+    private volatile long loadedSize = -1;
+    private volatile long nextCheck = 0;
+    private final ReentrantLock reloadLock = new ReentrantLock();
+
+    /**
+     * Constructs a UserStore and loads the accounts in the given file.
+     *
+     * @param file The accounts file
+     * @param cacheSize The number of recently verified credentials remembered, 0 to remember none
+    */
+    public UserStore(Path file, int cacheSize) {
+        this.file = file;
+        this.recentLogins = new LinkedHashMap<>(16, 0.75f, true) { // in LRU order
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedLogin> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        try {
+            byte[] key = new byte[32];
+            random.nextBytes(key);
+            cacheKey = Mac.getInstance("HmacSHA256");
+            cacheKey.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e); // Every Java platform has HmacSHA256
+        }
+        // Its random hash matches no password, and it costs nothing to make
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] hash = new byte[HASH_LENGTH];
+        random.nextBytes(salt);
+        random.nextBytes(hash);
+        unknownAccount = new Account("", ServerConfig.PBKDF2_ITERATIONS, salt, hash);
+        reloadIfChanged();
+    }
+
+    /**
+     * Gets the store shared by all sessions of this server.
+     *
+     * @return The shared store
+    */
+    public static UserStore getShared() {
+        return SharedStore.INSTANCE;
+    }
+
+    // Loads the accounts file on first use only, so the command-line tool does not need it
+    private static class SharedStore {
+        static final UserStore INSTANCE = new UserStore(Paths.get(ServerConfig.USERS_FILE), ServerConfig.CREDENTIAL_CACHE_SIZE);
+    }
+
+    /**
+     * Checks a username and password.
+     *
+     * @param username The username
+     * @param password The password
+     * @return The user if the password is correct, null otherwise
+    */
+    public User authenticate(String username, String password) {
+        if (System.currentTimeMillis() >= nextCheck) {
+            reloadIfChanged();
+        }
+
+        Account account = accounts.get(username);
+        byte[] token = cacheToken(username, password);
+        CachedLogin cached;
+        synchronized (recentLogins) {
+            cached = recentLogins.get(username);
+        }
+        // A changed password replaces the account, which makes logins cached for the old one useless
+        if (account != null && cached != null && cached.account == account && MessageDigest.isEqual(cached.token, token)
+                && System.currentTimeMillis() - cached.verifiedAt < ServerConfig.CREDENTIAL_CACHE_TTL) {
+            return account.user;
+        }
+
+        boolean valid = (account != null ? account : unknownAccount).matches(password);
+        if (account == null || !valid) {
+            return null;
+        }
+        synchronized (recentLogins) {
+            recentLogins.put(username, new CachedLogin(account, token, System.currentTimeMillis()));
+        }
+        return account.user;
+    }
+
+    /**
+     * Gets the number of accounts loaded.
+     *
+     * @return The account count
+    */
+    public int size() {
+        return accounts.size();
+    }
+
+    // Reloads the file if its modification time or size changed since it was last loaded
+    private void reloadIfChanged() {
+        if (!reloadLock.tryLock()) {
+            return; // Another login is checking the file
+        }
+        nextCheck = System.currentTimeMillis() + ServerConfig.USERS_RELOAD_INTERVAL;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long modified = attributes.lastModifiedTime().toMillis();
+            if (modified == loadedModified && attributes.size() == loadedSize) {
+                return;
+            }
+            ConcurrentHashMap<String, Account> loaded = new ConcurrentHashMap<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                Account account = parse(line);
+                if (account != null) {
+                    // Unchanged accounts are kept as they are, so their cached logins stay valid
+                    Account previous = accounts.get(account.user.getUsername());
+                    loaded.put(account.user.getUsername(), previous != null && previous.sameHash(account) ? previous : account);
+                }
+            }
+            accounts = loaded; // Swapped in one step, so a login never sees a half-loaded file
+            loadedModified = modified;
+            loadedSize = attributes.size();
+            System.out.println("Loaded " + loaded.size() + " accounts from " + file);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace(); // Keep the accounts loaded before
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    // Parses "username:iterations:salt:hash", or returns null for a blank or comment line
+    private static Account parse(String line) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        String[] fields = line.split(":");
+        if (fields.length != 4) {
+            throw new IllegalArgumentException("Malformed account line for " + fields[0]);
+        }
+        Base64.Decoder decoder = Base64.getDecoder();
+        return new Account(fields[0], Integer.parseInt(fields[1]), decoder.decode(fields[2]), decoder.decode(fields[3]));
+    }
+
+    // Creates an account for a password with a new random salt
+    private static Account newAccount(String username, char[] password, int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return new Account(username, iterations, salt, derive(password, salt, iterations));
+    }
+
+    private static byte[] derive(char[] password, byte[] salt, int iterations) {
+        KeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_LENGTH * 8);
+        try {
+            return SecretKeyFactory.getInstance(KDF).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e); // Every Java platform has PBKDF2WithHmacSHA256
+        }
+    }
+
+    // A keyed hash of the credentials; the cache never holds a password
+    private byte[] cacheToken(String username, String password) {
+        synchronized (cacheKey) {
+            cacheKey.update(username.getBytes(StandardCharsets.UTF_8));
+            cacheKey.update((byte) 0);
+            return cacheKey.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Adds an account to an accounts file, or changes its password, keeping the other lines.
+     * A running server picks up the change on its own.
+     *
+     * @param args The accounts file (optional, {@link ServerConfig#USERS_FILE} by default), the
+     *             username and the password
+    */
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: java UserStore [accounts file] username password");
+            System.exit(2);
+        }
+        Path path = Paths.get(args.length == 3 ? args[0] : ServerConfig.USERS_FILE);
+        String username = args[args.length - 2];
+        if (username.isEmpty() || username.contains(":") || username.contains(" ")) {
+            System.out.println("Usernames cannot be empty or contain ':' or spaces");
+            System.exit(2);
+        }
+
+        try {
+            List<String> lines = Files.exists(path) ? new ArrayList<>(Files.readAllLines(path, StandardCharsets.UTF_8)) : new ArrayList<>();
+            lines.removeIf(line -> line.startsWith(username + ":"));
+            lines.add(newAccount(username, args[args.length - 1].toCharArray(), ServerConfig.PBKDF2_ITERATIONS).toLine());
+
+            // Written beside the file and renamed over it, so the server never reads half a file
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temporary, lines, StandardCharsets.UTF_8);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Saved account " + username + " in " + path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // One account: the user and the salted hash of its password
+    private static class Account {
+        final User user;
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Account(String username, int iterations, byte[] salt, byte[] hash) {
+            if (iterations <= 0 || hash.length == 0) {
+                throw new IllegalArgumentException("Malformed account line for " + username);
+            }
+            this.user = new User(username);
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        boolean matches(String password) {
+            return MessageDigest.isEqual(derive(password.toCharArray(), salt, iterations), hash);
+        }
+
+        boolean sameHash(Account other) {
+            return iterations == other.iterations && MessageDigest.isEqual(salt, other.salt) && MessageDigest.isEqual(hash, other.hash);
+        }
+
+        String toLine() {
+            Base64.Encoder encoder = Base64.getEncoder();
+            return user.getUsername() + ":" + iterations + ":" + encoder.encodeToString(salt) + ":" + encoder.encodeToString(hash);
+        }
+    }
+
+    // A login verified recently: the account it was checked against and its keyed credentials
+    private static class CachedLogin {
+        final Account account;
+        final byte[] token;
+        final long verifiedAt;
+
+        CachedLogin(Account account, byte[] token, long verifiedAt) {
+            this.account = account;
+            this.token = token;
+            this.verifiedAt = verifiedAt;
+        }
+    }
+}
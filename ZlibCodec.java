@@ -0,0 +1,87 @@
+/**
+ * ZlibCodec frames MODE C data as a zlib stream (RFC 1950), which has a smaller header and
+ * trailer than gzip and checks the data with Adler-32 instead of CRC-32.
+ *
+ * @author Ching, Nicolas Miguel T.
+ * @author Santos, Kyle Adrian L.
+ * @version 1.0
+ * @since April 3, 2024
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class ZlibCodec implements CompressionCodec {
+    public static final ZlibCodec INSTANCE = new ZlibCodec();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ZlibCodec() {
+    }
+
+    @Override
+    public String getName() {
+        return "zlib";
+    }
+
+    @Override
+    public Deflater newDeflater(int level) {
+        return new Deflater(level);
+    }
+
+    @Override
+    public DeflaterOutputStream compress(OutputStream out, Deflater deflater) {
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public Checksum newChecksum() {
+        return new Adler32();
+    }
+
+    @Override
+    public void writeHeader(OutputStream out, int level) throws IOException {
+        int compressionMethod = 0x78; // Deflate with a 32 KB window
+        int levelFlag = level <= 1 ? 0 : level <= 5 ? 1 : level == 6 ? 2 : 3;
+        int flags = levelFlag << 6;
+        flags += 31 - (compressionMethod * 256 + flags) % 31; // Header check bits
+        out.write(new byte[] {(byte) compressionMethod, (byte) flags});
+    }
+
+    @Override
+    public void writeTrailer(OutputStream out, Checksum checksum, long length) throws IOException {
+        long value = checksum.getValue();
+        out.write(new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value});
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}